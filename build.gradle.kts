@@ -3,6 +3,7 @@ plugins {
     application
     id("com.gradleup.shadow") version "8.3.5"
     id("org.graalvm.buildtools.native") version "0.10.3"
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "dev.cwby.jasonify"
@@ -15,12 +16,99 @@ repositories {
 dependencies {
     implementation("org.jsoup:jsoup:1.18.2")
     implementation("com.fasterxml.jackson.core:jackson-databind:2.18.1")
+
+    testImplementation(platform("org.junit:junit-bom:5.11.3"))
+    testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
 }
 
 tasks.test {
     useJUnitPlatform()
 }
 
+// ./gradlew jmh jmhCompare runs the benchmarks of src/jmh against the committed baseline,
+// ./gradlew jmh jmhBaseline records a new baseline, on the machine the comparisons will run on
+jmh {
+    jmhVersion.set("1.37")
+    warmupIterations.set(3)
+    iterations.set(5)
+    fork.set(1)
+    profilers.add("gc")
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("results/jmh/results.json"))
+}
+
+val jmhResults = layout.buildDirectory.file("results/jmh/results.json")
+val jmhBaselineFile = layout.projectDirectory.file("src/jmh/baseline.json")
+val jmhTolerance = providers.gradleProperty("jmhTolerance").orElse("0.10")
+
+/** Reads a JMH JSON report as benchmark (with its parameters) to its score and its bytes per op. */
+@Suppress("UNCHECKED_CAST")
+fun readJmhResults(file: File): Map<String, Pair<Double, Double?>> {
+    val runs = groovy.json.JsonSlurper().parse(file) as List<Map<String, Any?>>
+    return runs.associate { run ->
+        val params = (run["params"] as Map<String, Any?>?)
+            ?.entries
+            ?.joinToString(",", "(", ")") { "${it.key}=${it.value}" }
+            ?: ""
+        val primary = run["primaryMetric"] as Map<String, Any?>
+        val secondary = run["secondaryMetrics"] as Map<String, Map<String, Any?>>? ?: emptyMap()
+        val allocated = secondary.entries
+            .firstOrNull { it.key.endsWith("gc.alloc.rate.norm") }
+            ?.value
+            ?.get("score") as Number?
+        "${run["benchmark"]}$params" to Pair((primary["score"] as Number).toDouble(), allocated?.toDouble())
+    }
+}
+
+tasks.register("jmhBaseline") {
+    group = "benchmark"
+    description = "Records the results of the last jmh run as the baseline."
+    mustRunAfter("jmh")
+    doLast {
+        jmhResults.get().asFile.copyTo(jmhBaselineFile.asFile, overwrite = true)
+        println("Baseline written to ${jmhBaselineFile.asFile}")
+    }
+}
+
+tasks.register("jmhCompare") {
+    group = "benchmark"
+    description = "Fails if a benchmark of the last jmh run got slower, or allocates more, than the baseline."
+    mustRunAfter("jmh")
+    doLast {
+        val baselineFile = jmhBaselineFile.asFile
+        if (!baselineFile.exists()) {
+            println("No baseline at $baselineFile, record one with: ./gradlew jmh jmhBaseline")
+            return@doLast
+        }
+        val tolerance = jmhTolerance.get().toDouble()
+        val baseline = readJmhResults(baselineFile)
+        val regressions = mutableListOf<String>()
+        // every benchmark runs in AverageTime mode, a higher score is a slower one
+        for ((name, current) in readJmhResults(jmhResults.get().asFile)) {
+            val previous = baseline[name]
+            if (previous == null) {
+                println("$name: not in the baseline")
+                continue
+            }
+            val change = current.first / previous.first - 1
+            println("$name: ${"%+.1f".format(change * 100)}% time")
+            if (change > tolerance) {
+                regressions += "$name is ${"%.1f".format(change * 100)}% slower"
+            }
+            val allocated = current.second
+            val previousAllocated = previous.second
+            if (allocated != null && previousAllocated != null && previousAllocated > 0 &&
+                allocated / previousAllocated - 1 > tolerance) {
+                regressions += "$name allocates ${allocated.toLong()} B/op, was ${previousAllocated.toLong()}"
+            }
+        }
+        if (regressions.isNotEmpty()) {
+            throw GradleException("Benchmark regressions:\n" + regressions.joinToString("\n"))
+        }
+    }
+}
+
 application {
     mainClass.set("dev.cwby.bakashi.Main") // replace with your main class path
 }
@@ -29,6 +117,8 @@ tasks.named<com.github.jengelman.gradle.plugins.shadow.tasks.ShadowJar>("shadowJ
     archiveBaseName.set("bakashi-cli")
     archiveClassifier.set("")
     archiveVersion.set("")
+    // scrappers shipped in other jars register through META-INF/services too
+    mergeServiceFiles()
 }
 
 
@@ -50,4 +140,115 @@ graalvmNative {
         buildArgs.add("--initialize-at-build-time=jdk.internal.net.http.HttpClientFacade")
         buildArgs.add("--no-fallback")
     }
+    // ./gradlew -Pagent run, then metadataCopy, to record what the committed metadata misses
+    // (e.g the AWT and ImageIO JNI metadata of the thumbnail scaler)
+    agent {
+        defaultMode.set("standard")
+        metadataCopy {
+            inputTaskNames.add("run")
+            outputDirectories.add("src/main/resources/META-INF/native-image/dev.cwby/bakashi-cli")
+            mergeWithExisting.set(true)
+        }
+    }
+}
+
+// Startup measurements: every packaging is started with -Dbakashi.startupProbe=exit against a stub
+// fzf, and exits as soon as the first result of "-s <startupQuery>" is written into it.
+val startupQuery = providers.gradleProperty("startupQuery").orElse("naruto")
+val startupRuns = providers.gradleProperty("startupRuns").orElse("10")
+val startupProbe = "-Dbakashi.startupProbe=exit"
+val cdsArchive = layout.buildDirectory.file("libs/bakashi-cli.jsa")
+val shadowJarFile = tasks.named<com.github.jengelman.gradle.plugins.shadow.tasks.ShadowJar>("shadowJar")
+    .flatMap { it.archiveFile }
+val nativeBinary = layout.buildDirectory.file("native/nativeCompile/bakashi-cli")
+val javaExecutable = File(System.getProperty("java.home"), "bin/java").absolutePath
+
+/** Writes an fzf that only drains its input, so no terminal is needed. */
+fun stubFzfDir(buildDir: File): File {
+    val dir = File(buildDir, "startup/bin")
+    dir.mkdirs()
+    val fzf = File(dir, "fzf")
+    fzf.writeText("#!/bin/sh\ncat > /dev/null\n")
+    fzf.setExecutable(true)
+    return dir
+}
+
+/**
+ * Starts the command once, returning the wall time until the probe reported the first result and
+ * the time the probe itself measured from the process start time, both in milliseconds.
+ */
+fun timeToFirstResult(command: List<String>, stubDir: File): Pair<Long, Long> {
+    val builder = ProcessBuilder(command)
+        .redirectInput(ProcessBuilder.Redirect.from(File("/dev/null")))
+        .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+    builder.environment()["PATH"] = stubDir.absolutePath + File.pathSeparator + System.getenv("PATH")
+    val start = System.nanoTime()
+    val process = builder.start()
+    val line = process.errorStream.bufferedReader().useLines { lines ->
+        lines.firstOrNull { it.startsWith("startup: ") }
+    }
+    val wall = (System.nanoTime() - start) / 1_000_000
+    process.waitFor()
+    if (line == null) {
+        throw GradleException("No result was shown by: ${command.joinToString(" ")}")
+    }
+    return Pair(wall, line.removePrefix("startup: ").removeSuffix(" ms").toLong())
+}
+
+tasks.register("appCdsArchive") {
+    group = "distribution"
+    description = "Dumps an AppCDS archive of the classes the shadow JAR loads until its first result."
+    dependsOn("shadowJar")
+    outputs.file(cdsArchive)
+    doLast {
+        val archive = cdsArchive.get().asFile
+        archive.delete()
+        timeToFirstResult(
+            listOf(
+                javaExecutable,
+                "-XX:ArchiveClassesAtExit=${archive.absolutePath}",
+                startupProbe,
+                "-jar",
+                shadowJarFile.get().asFile.absolutePath,
+                "-s",
+                startupQuery.get()),
+            stubFzfDir(layout.buildDirectory.get().asFile))
+        println("Run with: java -XX:SharedArchiveFile=${archive.absolutePath} -jar ${shadowJarFile.get().asFile}")
+    }
+}
+
+tasks.register("startupBenchmark") {
+    group = "verification"
+    description = "Reports the time from process start to the first line written into fzf, per packaging."
+    dependsOn("appCdsArchive")
+    doLast {
+        val jar = shadowJarFile.get().asFile.absolutePath
+        val arguments = listOf("-s", startupQuery.get())
+        val packagings = linkedMapOf(
+            "jar" to listOf(javaExecutable, startupProbe, "-jar", jar) + arguments,
+            "jar+appcds" to listOf(
+                javaExecutable,
+                "-XX:SharedArchiveFile=${cdsArchive.get().asFile.absolutePath}",
+                startupProbe,
+                "-jar",
+                jar) + arguments)
+        val native = nativeBinary.get().asFile
+        if (native.canExecute()) {
+            packagings["native"] = listOf(native.absolutePath, startupProbe) + arguments
+        } else {
+            println("native: skipped, run nativeCompile first")
+        }
+        val stubDir = stubFzfDir(layout.buildDirectory.get().asFile)
+        val runs = startupRuns.get().toInt()
+        for ((name, command) in packagings) {
+            // the first run warms the page cache and the response cache, it is not counted
+            timeToFirstResult(command, stubDir)
+            val samples = (1..runs).map { timeToFirstResult(command, stubDir) }
+            val wall = samples.map { it.first }.sorted()
+            val probe = samples.map { it.second }.sorted()
+            println(
+                "$name: median ${wall[runs / 2]} ms, min ${wall.first()} ms, max ${wall.last()} ms " +
+                    "(probe median ${probe[runs / 2]} ms, $runs runs)")
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,108 @@
+package dev.cwby.bakashi;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import javax.imageio.ImageIO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The write paths {@link ThumbnailUtils} drives once a thumbnail is downloaded: recording it in the
+ * {@link ThumbnailCache} (with evictions once the budget is reached), persisting the cache index,
+ * and writing the downscaled preview with {@link ThumbnailScaler}.
+ *
+ * <p>Everything happens in a temporary folder, the thumbnail cache of the user is never touched.
+ * The source image is generated with noise, so it compresses like a photo rather than a flat fill.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class ThumbnailWriteBenchmark {
+
+  private static final int INDEXED_THUMBNAILS = 2_000;
+  private static final long THUMBNAIL_BYTES = 40_000;
+
+  /** Size of the downloaded image, the default preview box is 800x900. */
+  @Param({"1280x1920", "1920x2880"})
+  public String sourceSize;
+
+  private Path folder;
+  private ThumbnailCache cache;
+  private String[] keys;
+  private int next;
+  private Path source;
+  private Path preview;
+
+  @Setup(Level.Trial)
+  public void prepare() throws IOException {
+    this.folder = Files.createTempDirectory("bakashi-jmh");
+    // room for half of the keys, so that every put past the first half evicts
+    this.cache =
+        ThumbnailCache.open(
+            folder, ThumbnailUtils.THUMB_EXTENSION, INDEXED_THUMBNAILS / 2 * THUMBNAIL_BYTES);
+    this.keys = new String[INDEXED_THUMBNAILS];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = ThumbnailCache.keyOf("https://static.anroll.net/images/animes/capas/" + i + ".jpg");
+      cache.put(keys[i], THUMBNAIL_BYTES);
+    }
+    this.source = folder.resolve("source" + ThumbnailUtils.THUMB_EXTENSION);
+    this.preview = folder.resolve("source" + ThumbnailUtils.PREVIEW_SUFFIX);
+    final String[] size = sourceSize.split("x");
+    ImageIO.write(
+        noise(Integer.parseInt(size[0]), Integer.parseInt(size[1])), "jpeg", source.toFile());
+  }
+
+  @TearDown(Level.Trial)
+  public void delete() throws IOException {
+    try (final Stream<Path> files = Files.walk(folder)) {
+      files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  @Benchmark
+  public String thumbnailKey() {
+    return ThumbnailCache.keyOf("https://static.anroll.net/images/animes/capas/" + next++ + ".jpg");
+  }
+
+  @Benchmark
+  public long cachePut() {
+    cache.put(keys[next++ % keys.length], THUMBNAIL_BYTES);
+    return cache.totalBytes();
+  }
+
+  @Benchmark
+  public void cacheSave() throws IOException {
+    cache.save();
+  }
+
+  @Benchmark
+  public boolean scaleToPreview() throws IOException {
+    return ThumbnailScaler.scaleToPreview(source, preview);
+  }
+
+  private static BufferedImage noise(final int width, final int height) {
+    final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    final Random random = new Random(17);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        final int base = (x * 255 / width) << 16 | (y * 255 / height) << 8;
+        image.setRGB(x, y, base | random.nextInt(64));
+      }
+    }
+    return image;
+  }
+}
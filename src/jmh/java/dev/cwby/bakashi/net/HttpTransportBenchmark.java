@@ -0,0 +1,117 @@
+package dev.cwby.bakashi.net;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Latency distribution of {@link HttpTransport} requests against a local stand-in server, which
+ * answers most requests quickly and stalls every {@code slowEvery}th one, like an edge node having
+ * a bad moment.
+ *
+ * <p>Sampled, so the JMH report shows the percentiles: with hedging the tail stays close to the p95
+ * of the host plus one fast answer instead of the stall. {@code flaky} fails the first of every
+ * three requests with a {@code 503}, which the retries absorb.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class HttpTransportBenchmark {
+
+  /** Stall one request in this many. */
+  @Param({"33"})
+  public int slowEvery;
+
+  /** How long a stalled request takes to be answered. */
+  @Param({"500"})
+  public int slowMillis;
+
+  private static final int FAST_MILLIS = 10;
+
+  private final AtomicInteger requests = new AtomicInteger();
+  private final AtomicInteger flakyRequests = new AtomicInteger();
+  private HttpServer server;
+  private ExecutorService serverExecutor;
+  private HttpTransport transport;
+  private String slowUrl;
+  private String flakyUrl;
+
+  @Setup
+  public void start() throws IOException {
+    this.serverExecutor = Executors.newCachedThreadPool();
+    this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.setExecutor(serverExecutor);
+    server.createContext(
+        "/stalling",
+        exchange -> {
+          final boolean slow = requests.incrementAndGet() % slowEvery == 0;
+          sleep(slow ? slowMillis : FAST_MILLIS);
+          respond(exchange, 200);
+        });
+    server.createContext(
+        "/flaky",
+        exchange -> {
+          sleep(FAST_MILLIS);
+          respond(exchange, flakyRequests.incrementAndGet() % 3 == 1 ? 503 : 200);
+        });
+    server.start();
+
+    final String base = "http://127.0.0.1:" + server.getAddress().getPort();
+    this.slowUrl = base + "/stalling";
+    this.flakyUrl = base + "/flaky";
+    this.transport =
+        new HttpTransport(
+            HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build(),
+            Files.createTempDirectory("bakashi-http-benchmark"));
+  }
+
+  @TearDown
+  public void stop() {
+    server.stop(0);
+    serverExecutor.shutdownNow();
+  }
+
+  @Benchmark
+  public String stalling() throws IOException {
+    return transport.getString(slowUrl, HttpTransport.API_TIMEOUT);
+  }
+
+  @Benchmark
+  public String flaky() throws IOException {
+    return transport.getString(flakyUrl, HttpTransport.API_TIMEOUT);
+  }
+
+  private static void respond(final HttpExchange exchange, final int status) throws IOException {
+    final byte[] body = "{\"data\":[]}".getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(status, body.length);
+    try (final OutputStream output = exchange.getResponseBody()) {
+      output.write(body);
+    }
+  }
+
+  private static void sleep(final int millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package dev.cwby.bakashi.process;
+
+import dev.cwby.bakashi.data.EpisodeData;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Resolving the line selected in fzf back to its entry with {@link
+ * FzfManager#getEpisodeDataFromResult(String)}, for the first, the last and a missing entry of
+ * lists of increasing size.
+ *
+ * <p>The list is written to {@code cat} instead of fzf, so no terminal is needed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class FzfLookupBenchmark {
+
+  /** A season, a long running show, and a whole catalog of releases. */
+  @Param({"25", "500", "5000"})
+  public int size;
+
+  private FzfManager selector;
+  private String first;
+  private String last;
+
+  @Setup
+  public void spawn() {
+    this.selector =
+        new FzfManager(null, false) {
+          @Override
+          Process startFzf(final String command) {
+            return startShProcess("cat > /dev/null");
+          }
+        };
+    selector.spawn();
+    final List<EpisodeData> episodes = new ArrayList<>(size);
+    for (int i = 1; i <= size; i++) {
+      // no thumbnail, nothing is prefetched
+      episodes.add(
+          new EpisodeData("Naruto Shippuden " + i, "https://www.anroll.net/e/" + i, null));
+    }
+    selector.appendEpisodes(episodes);
+    this.first = episodes.get(0).episodeName();
+    this.last = episodes.get(size - 1).episodeName();
+  }
+
+  @TearDown
+  public void exit() {
+    selector.closeInput();
+    selector.exit();
+  }
+
+  @Benchmark
+  public EpisodeData lookupFirst() {
+    return selector.getEpisodeDataFromResult(first);
+  }
+
+  @Benchmark
+  public EpisodeData lookupLast() {
+    return selector.getEpisodeDataFromResult(last);
+  }
+
+  @Benchmark
+  public EpisodeData lookupMissing() {
+    return selector.getEpisodeDataFromResult("Naruto Shippuden 0");
+  }
+}
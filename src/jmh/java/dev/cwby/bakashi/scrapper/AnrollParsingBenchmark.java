@@ -0,0 +1,137 @@
+package dev.cwby.bakashi.scrapper;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import dev.cwby.bakashi.data.AnimePage;
+import dev.cwby.bakashi.data.EpisodeData;
+import dev.cwby.bakashi.data.Json;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Parsing paths of {@link AnrollScrapper} over the fixtures in {@code fixtures/anroll}, one
+ * benchmark per kind of response the site serves, without any network access. The fixtures are
+ * synthetic: generated in the shape and size of the site's responses, not captured from it.
+ *
+ * <p>{@code dashboardNextData} and {@code dashboardHtml} read the same page, the former through the
+ * {@code __NEXT_DATA__} payload and the latter through Jsoup, which is the fallback when the
+ * payload is unusable.
+ *
+ * <p>{@code searchLegacy} and {@code episodesLegacy} keep the decoding the scrapper used before
+ * {@link AnrollJsonDecoder}: {@code readTree}, the {@code data} array turned back into a string
+ * with {@code toString()}, then parsed again with {@code readValue}. They build the same values as
+ * {@code search} and {@code episodes}, so both pairs can be compared in one run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class AnrollParsingBenchmark {
+
+  private static final AnimePage ANIME =
+      new AnimePage(
+          "1042", "Naruto Shippuden", "naruto-shippuden", null, 500, "/a/naruto-shippuden", null);
+
+  private final AnrollScrapper scrapper = new AnrollScrapper();
+  private byte[] dashboard;
+  private byte[] search;
+  private byte[] episodes;
+  private byte[] episode;
+
+  @Setup
+  public void loadFixtures() throws IOException {
+    this.dashboard = fixture("dashboard.html");
+    this.search = fixture("search.json");
+    this.episodes = fixture("episodes.json");
+    this.episode = fixture("episode.html");
+  }
+
+  @Benchmark
+  public List<AnimePage> search() throws IOException {
+    return scrapper.decodeSearch(new ByteArrayInputStream(search));
+  }
+
+  @Benchmark
+  public List<EpisodeData> episodes() throws IOException {
+    return scrapper.decodeEpisodesPage(ANIME, new ByteArrayInputStream(episodes)).episodes();
+  }
+
+  @Benchmark
+  public List<AnimePage> searchLegacy() throws IOException {
+    final JsonNode response = Json.MAPPER.readTree(new ByteArrayInputStream(search));
+    final List<JsonNode> nodes =
+        Json.MAPPER.readValue(response.get("data").toString(), new TypeReference<>() {});
+    final List<AnimePage> pages = new ArrayList<>();
+    for (final JsonNode node : nodes) {
+      final String slug = node.get("slug").asText();
+      pages.add(
+          new AnimePage(
+              node.get("id").asText(),
+              node.get("title").asText(),
+              slug,
+              node.get("synopsis").asText(),
+              node.has("total_eps") ? node.get("total_eps").asInt() : 0,
+              node.get("generic_path").asText(),
+              "https://static.anroll.net/images/animes/capas/" + slug + ".jpg"));
+    }
+    return pages;
+  }
+
+  @Benchmark
+  public List<EpisodeData> episodesLegacy() throws IOException {
+    final JsonNode response = Json.MAPPER.readTree(new ByteArrayInputStream(episodes));
+    final List<JsonNode> nodes =
+        Json.MAPPER.readValue(response.get("data").toString(), new TypeReference<>() {});
+    final List<EpisodeData> decoded = new ArrayList<>();
+    for (final JsonNode episode : nodes) {
+      final String episodeNum = episode.get("n_episodio").asText();
+      decoded.add(
+          new EpisodeData(
+              ANIME.title() + " " + episodeNum,
+              scrapper.referer() + "/e/" + episode.get("generate_id").asText(),
+              "https://www.anroll.net/_next/image?url=https%3A%2F%2Fstatic.anroll.net%2Fimages"
+                  + "%2Fanimes%2Fscreens%2F"
+                  + ANIME.slug()
+                  + "%2F"
+                  + episodeNum
+                  + ".jpg&w=256&q=75"));
+    }
+    return decoded;
+  }
+
+  @Benchmark
+  public List<EpisodeData> dashboardNextData() throws IOException {
+    return scrapper.decodeDashboard(new ByteArrayInputStream(dashboard));
+  }
+
+  @Benchmark
+  public List<EpisodeData> dashboardHtml() throws IOException {
+    return scrapper.decodeDashboardHtml(new ByteArrayInputStream(dashboard));
+  }
+
+  @Benchmark
+  public String episodePage() throws IOException {
+    return scrapper.decodeEpisodePage(
+        new ByteArrayInputStream(episode), "https://www.anroll.net/e/fixture");
+  }
+
+  private static byte[] fixture(final String name) throws IOException {
+    try (final InputStream input =
+        AnrollParsingBenchmark.class.getResourceAsStream("/fixtures/anroll/" + name)) {
+      if (input == null) {
+        throw new IOException("Missing fixture: " + name);
+      }
+      return input.readAllBytes();
+    }
+  }
+}
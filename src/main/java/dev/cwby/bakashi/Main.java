@@ -1,17 +1,44 @@
 package dev.cwby.bakashi;
 
+import dev.cwby.bakashi.catalog.CatalogIndex;
+import dev.cwby.bakashi.daemon.RemoteScrapper;
+import dev.cwby.bakashi.daemon.ScrapperDaemon;
 import dev.cwby.bakashi.data.AnimePage;
 import dev.cwby.bakashi.data.EpisodeData;
+import dev.cwby.bakashi.hls.BandwidthLimiter;
+import dev.cwby.bakashi.hls.HlsDownloader;
+import dev.cwby.bakashi.hls.HlsProxy;
 import dev.cwby.bakashi.process.FzfManager;
+import dev.cwby.bakashi.process.FzfSession;
+import dev.cwby.bakashi.process.MpvManager;
+import dev.cwby.bakashi.process.Selector;
+import dev.cwby.bakashi.process.TerminalSelector;
 import dev.cwby.bakashi.process.UeberzugManager;
+import dev.cwby.bakashi.profile.Profiler;
 import dev.cwby.bakashi.scrapper.IScrapper;
 import dev.cwby.bakashi.scrapper.ScrapperManager;
+import dev.cwby.bakashi.scrapper.VideoUrlResolver;
+import dev.cwby.bakashi.state.PlaybackHistory;
+import dev.cwby.bakashi.state.StateStore;
+import dev.cwby.bakashi.watch.ReleaseWatcher;
 
 import java.io.*;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Main {
   // TODO: remember to put fillers tags (https://www.animefillerlist.com/shows/naruto-shippuden)
@@ -19,6 +46,8 @@ public class Main {
   public static final String TEMP = "/tmp/bakashicli/";
   public static final String THUMBNAIL_FOLDER = TEMP + "thumbnails/";
 
+  private static final int CATALOG_RESULTS = 50;
+
   private static void makeTempDir() {
     var thumbDir = new File(THUMBNAIL_FOLDER);
     if (!thumbDir.exists()) {
@@ -29,50 +58,208 @@ public class Main {
   public static void main(String[] args) throws InterruptedException, IOException {
     makeTempDir();
 
-    FzfManager fzfManager = new FzfManager(new UeberzugManager());
-    IScrapper scrapper = ScrapperManager.getScrapper("anroll");
+    // the selector is needed by the first -s or -l, so -e and -k are looked up before the other
+    // options, and so is --profile to time everything from here
+    List<String> options = Arrays.asList(args);
+    int profile = options.indexOf("--profile");
+    if (profile >= 0 && profile < args.length - 1) {
+      Profiler.enableTrace(Paths.get(args[profile + 1]));
+    }
+    if (options.contains("--daemon")) {
+      ScrapperDaemon.serve();
+      return;
+    }
+
+    // a running daemon answers every scrapper request with warm connections and caches, it also
+    // downloads the thumbnails and already knows if ueberzug is there
+    RemoteScrapper daemon = RemoteScrapper.connect(ScrapperManager.DEFAULT_SCRAPPER);
+    if (daemon != null) {
+      ThumbnailUtils.setPrefetching(false);
+      UeberzugManager.assumePresence(daemon.isUeberzugPresent());
+    }
+    Selector selector =
+        options.contains("-e")
+            ? new TerminalSelector()
+            : options.contains("-k")
+                ? new FzfSession(new UeberzugManager())
+                : new FzfManager(new UeberzugManager());
+    IScrapper scrapper =
+        daemon != null ? daemon : ScrapperManager.getScrapper(ScrapperManager.DEFAULT_SCRAPPER);
+    CatalogIndex catalog;
+    try (Profiler.Span span = Profiler.span("catalog.open")) {
+      catalog = CatalogIndex.open(Paths.get(TEMP, CatalogIndex.CATALOG_FILE));
+    }
+    StateStore state = null;
+    try (Profiler.Span span = Profiler.span("state.open")) {
+      state = StateStore.open(StateStore.defaultDirectory());
+    } catch (IOException e) {
+      System.err.println("The watch history is disabled: " + e.getMessage());
+    }
+    PlaybackHistory history = state != null ? new PlaybackHistory(state) : null;
 
     List<EpisodeData> episodesToPlay = new ArrayList<>();
+    Map<EpisodeData, AnimePage> pagesOfEpisodes = new HashMap<>();
+    boolean useProxy = false;
+    boolean download = false;
+    long rateLimitKiB = 0;
 
     for (int i = 0; i < args.length; i++) {
       final String arg = args[i];
       switch (arg.toLowerCase()) {
         case "-o":
           if (i < (args.length - 1)) {
-            scrapper = ScrapperManager.getScrapperOrDefault(args[i + 1]);
+            scrapper =
+                daemon != null
+                    ? daemon.forOrigin(args[i + 1])
+                    : ScrapperManager.getScrapperOrDefault(args[i + 1]);
           } else {
-            System.out.println("Expected a value for -o, e.g 'anroll' (is the only available)");
+            System.out.println(
+                "Expected a value for -o, one of: "
+                    + String.join(", ", ScrapperManager.keys())
+                    + ", "
+                    + ScrapperManager.ALL_SCRAPPERS);
           }
           break;
         case "-l":
-          fzfManager.spawn();
-          fzfManager.writeEpisodes(scrapper.getLastEpisodes());
-          episodesToPlay.add(fzfManager.waitForEpisodeSelect());
+          try (Profiler.Span span = Profiler.span("latest")) {
+            selector.spawn();
+            // with -o all each origin shows up as soon as it answers
+            IScrapper source = scrapper;
+            CompletableFuture<Void> fetch =
+                CompletableFuture.runAsync(
+                    () -> {
+                      try {
+                        source.streamLastEpisodes(selector::appendEpisodes);
+                      } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                      } finally {
+                        selector.closeInput();
+                      }
+                    });
+            episodesToPlay.addAll(selector.waitForEpisodesSelect());
+            awaitListing(fetch, "the latest episodes");
+          }
           break;
         case "-s":
           if (i < (args.length - 1)) {
-            String search = URLEncoder.encode(args[i + 1], StandardCharsets.UTF_8);
-            List<AnimePage> animesPages = scrapper.findAnimePage(search);
-            fzfManager.spawn();
-            fzfManager.writeAnimePages(animesPages);
-            AnimePage page = fzfManager.waitForAnimeSelect();
+            AnimePage page;
+            try (Profiler.Span span = Profiler.span("search", args[i + 1])) {
+              page = selectAnimePage(selector, scrapper, catalog, args[i + 1]);
+            }
             if (page != null) {
-              fzfManager.exit();
-              fzfManager.spawn();
-              List<EpisodeData> episodes = scrapper.fetchEpisodesFromPage(page);
-              episodes.add(new EpisodeData("CMD: Play All", null, null));
-              fzfManager.writeEpisodes(episodes);
-              String result = fzfManager.getResult();
-              if (result.equals("CMD: Play All")) {
-                episodesToPlay.addAll(episodes);
+              selector.exit();
+              List<EpisodeData> known = history != null ? history.episodes(page) : List.of();
+              IScrapper source = scrapper;
+              CompletableFuture<Void> fetch;
+              if (known.isEmpty()) {
+                // nothing stored yet, the episodes stream in while the user is already filtering
+                selector.spawn();
+                fetch =
+                    CompletableFuture.runAsync(
+                        () -> {
+                          try {
+                            List<EpisodeData> fetched =
+                                source.streamEpisodesFromPage(page, selector::appendEpisodes);
+                            if (history != null) {
+                              history.saveEpisodes(page, fetched);
+                            }
+                          } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                          } finally {
+                            selector.closeInput();
+                          }
+                        });
               } else {
-                episodesToPlay.add(fzfManager.getEpisodeDataFromResult(result));
+                // the episodes stored by the last run are listed right away, in release order,
+                // and the ones released since are appended once fetched: listed latest first,
+                // they land on top of a newest-first list, and the next episode to watch keeps
+                // its position, even when it is one of them
+                boolean newestFirst = scrapper.newestEpisodesFirst(page);
+                List<EpisodeData> released = new ArrayList<>(known);
+                if (newestFirst) {
+                  Collections.reverse(released);
+                }
+                selector.spawn(history.nextPosition(page, released), newestFirst);
+                selector.appendEpisodes(released);
+                Set<String> knownUrls = new HashSet<>();
+                known.forEach(episode -> knownUrls.add(episode.episodeUrl()));
+                fetch =
+                    CompletableFuture.runAsync(
+                        () -> {
+                          try {
+                            List<EpisodeData> fetched = source.fetchEpisodesFromPage(page);
+                            List<EpisodeData> fresh = new ArrayList<>();
+                            for (EpisodeData episode : fetched) {
+                              if (!knownUrls.contains(episode.episodeUrl())) {
+                                fresh.add(episode);
+                              }
+                            }
+                            if (newestFirst) {
+                              Collections.reverse(fresh);
+                            }
+                            selector.appendEpisodes(fresh);
+                            history.saveEpisodes(page, fetched);
+                          } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                          } finally {
+                            selector.closeInput();
+                          }
+                        });
               }
+              // Tab marks several episodes and Ctrl-A all of them
+              for (EpisodeData episode : selector.waitForEpisodesSelect()) {
+                episodesToPlay.add(episode);
+                pagesOfEpisodes.put(episode, page);
+              }
+              // the list is stored before the store is closed
+              awaitListing(fetch, "the episodes of " + page.title());
             }
           } else {
             System.out.println("Expected a value for -s, e.g 'naruto'");
           }
           break;
+        case "--watch":
+          int minutes = ReleaseWatcher.DEFAULT_INTERVAL_MINUTES;
+          if (i < (args.length - 1) && args[i + 1].matches("\\d+")) {
+            minutes = Math.max(1, Integer.parseInt(args[i + 1]));
+          }
+          // runs until interrupted, the options after it are not looked at
+          new ReleaseWatcher(
+                  scrapper, Duration.ofMinutes(minutes), Paths.get(TEMP, ReleaseWatcher.SEEN_FILE))
+              .watch();
+          return;
+        case "-i":
+          if (i < (args.length - 1)) {
+            try (InputStream seed = new FileInputStream(args[i + 1])) {
+              System.out.println("Imported " + catalog.seed(seed) + " animes into the catalog");
+            }
+          } else {
+            System.out.println("Expected a value for -i, e.g 'catalog.json'");
+          }
+          break;
+        case "-e":
+        case "-k":
+        case "--profile":
+        case "--daemon":
+          // already handled before parsing the other options
+          break;
+        case "-p":
+          useProxy = true;
+          break;
+        case "-d":
+          download = true;
+          break;
+        case "-r":
+          if (i < (args.length - 1)) {
+            try {
+              rateLimitKiB = Long.parseLong(args[i + 1]);
+            } catch (NumberFormatException e) {
+              System.out.println("Expected a number for -r, e.g '2048' (KiB/s)");
+            }
+          } else {
+            System.out.println("Expected a value for -r, e.g '2048' (KiB/s)");
+          }
+          break;
         case "-h":
           displayHelp();
           break;
@@ -80,35 +267,196 @@ public class Main {
     }
 
     try {
-      fzfManager.exit();
+      selector.close();
     } catch (Exception e) {
     }
 
     if (!episodesToPlay.isEmpty()) {
-      for (EpisodeData episode : episodesToPlay) {
-        if (episode != null) {
-          String videoUrl = scrapper.extractVideoUrl(episode.episodeUrl());
-          spawnMpv(scrapper.referer(), videoUrl, episode.episodeName());
+      // one downloader for the whole queue, so the rate limit applies to all episodes together
+      HlsDownloader downloader =
+          download
+              ? new HlsDownloader(
+                  HlsDownloader.DEFAULT_PARALLELISM, new BandwidthLimiter(rateLimitKiB * 1024))
+              : null;
+      if (downloader == null && !useProxy) {
+        List<EpisodeData> queue = new ArrayList<>(episodesToPlay);
+        queue.removeIf(episode -> episode == null);
+        playQueue(scrapper, queue, history, pagesOfEpisodes);
+      } else {
+        for (EpisodeData episode : episodesToPlay) {
+          if (episode != null) {
+            IScrapper source = scrapper.sourceOf(episode);
+            String videoUrl = source.extractVideoUrl(episode.episodeUrl());
+            if (downloader != null) {
+              Path output =
+                  Paths.get(episode.episodeName().replaceAll("[/\\\\:*?\"<>|]", "_") + ".ts");
+              System.out.println("Downloading " + output);
+              try (Profiler.Span span = Profiler.span("download", episode.episodeName())) {
+                downloader.download(videoUrl, source.referer(), output);
+              }
+            } else {
+              try (Profiler.Span span = Profiler.span("play", episode.episodeName());
+                  HlsProxy proxy =
+                      new HlsProxy(
+                          videoUrl,
+                          source.referer(),
+                          HlsProxy.DEFAULT_PREFETCH_SEGMENTS,
+                          HlsProxy.DEFAULT_BUFFER_BYTES)) {
+                spawnMpv(source.referer(), proxy.start(), episode.episodeName());
+              }
+            }
+            if (history != null && downloader == null) {
+              history.markWatched(pagesOfEpisodes.get(episode), episode);
+            }
+          }
         }
       }
     } else {
       displayHelp();
     }
+    if (state != null) {
+      state.close();
+    }
+  }
+
+  /**
+   * Lets the user pick an anime for a search, answering from the local catalog when it has matches
+   * and adding the network results to the list once they arrive.
+   */
+  private static AnimePage selectAnimePage(
+      Selector selector, IScrapper scrapper, CatalogIndex catalog, String query)
+      throws IOException {
+    String search = URLEncoder.encode(query, StandardCharsets.UTF_8);
+    List<AnimePage> local = catalog.search(query, CATALOG_RESULTS);
+    selector.spawn();
+    if (local.isEmpty()) {
+      List<AnimePage> animesPages = scrapper.streamAnimePages(search, selector::appendAnimePages);
+      selector.closeInput();
+      catalog.addAll(animesPages);
+      return selector.waitForAnimeSelect();
+    }
+
+    selector.appendAnimePages(local);
+    AtomicBoolean selected = new AtomicBoolean();
+    Thread refresh =
+        new Thread(
+            () -> {
+              try {
+                List<AnimePage> fresh =
+                    scrapper.streamAnimePages(
+                        search,
+                        batch -> {
+                          List<AnimePage> unseen = new ArrayList<>();
+                          for (AnimePage page : batch) {
+                            if (local.stream()
+                                .noneMatch(shown -> shown.slug().equals(page.slug()))) {
+                              unseen.add(page);
+                            }
+                          }
+                          // once a page is selected the next fzf may already be running, never
+                          // write to it
+                          synchronized (selected) {
+                            if (!selected.get()) {
+                              selector.appendAnimePages(unseen);
+                            }
+                          }
+                        });
+                catalog.addAll(fresh);
+              } catch (IOException e) {
+                // offline, the catalog results are all there is
+              }
+              synchronized (selected) {
+                if (!selected.get()) {
+                  selector.closeInput();
+                }
+              }
+            },
+            "bakashi-catalog-refresh");
+    refresh.setDaemon(true);
+    refresh.start();
+
+    AnimePage page = selector.waitForAnimeSelect();
+    synchronized (selected) {
+      selected.set(true);
+    }
+    return page;
+  }
+
+  /**
+   * Waits for a list fetched while the user was picking from it, reporting why it failed: the
+   * picker only shows what arrived, so a failed fetch would otherwise look like an empty list.
+   */
+  private static void awaitListing(CompletableFuture<Void> fetch, String what) {
+    try {
+      fetch.join();
+    } catch (CompletionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof UncheckedIOException unchecked) {
+        cause = unchecked.getCause();
+      }
+      System.err.println("Failed to fetch " + what + ": " + cause.getMessage());
+    }
   }
 
   // TODO: maybe extract this to another class
+  /**
+   * Plays a queue in a single mpv. Each episode is queued once the previous one started, so mpv
+   * only holds the episode playing and the next one, while the resolver already extracts the video
+   * URLs of the following ones.
+   */
+  private static void playQueue(
+      IScrapper scrapper,
+      List<EpisodeData> queue,
+      PlaybackHistory history,
+      Map<EpisodeData, AnimePage> pagesOfEpisodes)
+      throws IOException, InterruptedException {
+    VideoUrlResolver resolver =
+        new VideoUrlResolver(scrapper, queue, VideoUrlResolver.DEFAULT_LOOKAHEAD);
+    try (Profiler.Span span = Profiler.span("play", queue.size() + " episodes");
+        MpvManager mpv = new MpvManager()) {
+      // the first page is fetched while mpv starts
+      resolver.prefetch(0);
+      mpv.spawn();
+      int queued = 0;
+      for (int i = 0; i < queue.size(); i++) {
+        VideoUrlResolver.Resolved video;
+        try {
+          video = resolver.get(i);
+        } catch (IOException e) {
+          System.out.println(
+              "Failed to extract the video of "
+                  + queue.get(i).episodeName()
+                  + ": "
+                  + e.getMessage());
+          continue;
+        }
+        try {
+          mpv.append(video.videoUrl(), video.referer(), video.episode().episodeName());
+        } catch (IOException e) {
+          // mpv was closed, and the rest of the queue with it
+          break;
+        }
+        queued++;
+        if (!mpv.awaitStarted(queued)) {
+          break;
+        }
+        if (history != null) {
+          history.markWatched(pagesOfEpisodes.get(video.episode()), video.episode());
+        }
+      }
+      mpv.awaitEnded(queued);
+    }
+  }
+
   private static void spawnMpv(String referer, String url, String title)
       throws IOException, InterruptedException {
+    // no shell in between, the title and the urls come from the scrapper and are passed verbatim
     new ProcessBuilder(
-            "bash",
-            "-c",
-            "mpv -fs --force-media-title='"
-                + title
-                + "' --http-header-fields='referer: "
-                + referer
-                + "' '"
-                + url
-                + "'")
+            "mpv",
+            "-fs",
+            "--force-media-title=" + title,
+            "--http-header-fields=referer: " + referer,
+            url)
         .redirectOutput(ProcessBuilder.Redirect.DISCARD)
         .redirectError(ProcessBuilder.Redirect.DISCARD)
         .start()
@@ -121,7 +469,39 @@ public class Main {
     builder.append("OPTIONS:\n");
     builder.append("\t-s").append("\tanime search\n");
     builder.append("\t-l").append("\tdisplay the latests episodes available\n");
-    builder.append("\t-o").append("\tset the origin for search: anroll\n");
+    builder
+        .append("\t-o")
+        .append("\tset the origin for search: ")
+        .append(String.join(", ", ScrapperManager.keys()))
+        .append(", or all to search every origin at once\n");
+    builder.append("\t-i").append("\timport a JSON list of animes into the local catalog\n");
+    builder.append("\t-e").append("\tuse the embedded selector instead of fzf\n");
+    builder.append("\t-k").append("\tkeep a single fzf open for every step (fzf 0.40+)\n");
+    builder
+        .append("\t-p")
+        .append("\tplay through a local proxy that prefetches the next segments\n");
+    builder
+        .append("\t-d")
+        .append("\tdownload the episodes to the current directory instead of playing\n");
+    builder.append("\t-r").append("\tlimit the download rate, in KiB/s\n");
+    builder
+        .append("\t--watch")
+        .append("\tprint new episodes as they are released, polling every N minutes (5)\n");
+    builder
+        .append("\t--daemon")
+        .append("\tkeep the scrappers, connections and caches warm for the next runs\n");
+    builder
+        .append("\t--profile")
+        .append("\twrite a Chrome trace of the phases of the run to a file at exit\n");
+    builder.append("\nKEYS:\n");
+    builder.append("\tTab").append("\tmark several episodes to play or download in a row\n");
+    builder.append("\tCtrl-A").append("\tmark every listed episode\n");
+    builder.append("\t>").append("\tin mpv, skip to the next queued episode, q ends the queue\n");
+    builder.append("\nENVIRONMENT:\n");
+    builder
+        .append("\t")
+        .append(StateStore.DATA_DIR_ENV)
+        .append("\twhere the watch history is kept, ~/.local/share/bakashi-cli by default\n");
     System.out.println(builder);
   }
 }
@@ -0,0 +1,219 @@
+package dev.cwby.bakashi;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A size-bounded, content-addressed store for thumbnail files.
+ *
+ * <p>Every thumbnail is stored as {@code <key>.jpg}, where the key is the SHA-1 of its source URL,
+ * so titles containing {@code /} or differing only in case can no longer break or collide. The
+ * cache keeps an in-memory index of the size and last access time of every file, ordered from least
+ * to most recently used, and deletes the least recently used files once the total size exceeds the
+ * configured byte budget.
+ *
+ * <p>The index is persisted to {@link #INDEX_FILE} with {@link #save()}. When the cache is opened,
+ * the folder is listed once to reconcile the index with files that were added or removed while the
+ * index was not saved; afterwards lookups never touch the filesystem.
+ */
+public class ThumbnailCache {
+
+  public static final String INDEX_FILE = "index";
+
+  private final Path folder;
+  private final String extension;
+  private final long maxBytes;
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+  private long totalBytes;
+
+  private static final class Entry {
+    private final long size;
+    private long lastAccess;
+
+    private Entry(final long size, final long lastAccess) {
+      this.size = size;
+      this.lastAccess = lastAccess;
+    }
+  }
+
+  private ThumbnailCache(final Path folder, final String extension, final long maxBytes) {
+    this.folder = folder;
+    this.extension = extension;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Opens the cache stored in the given folder, loading its index and reconciling it with the files
+   * actually present.
+   *
+   * @param folder The folder holding the cached files and the index.
+   * @param extension The extension of the cached files, e.g {@code ".jpg"}.
+   * @param maxBytes The byte budget after which the least recently used files are evicted.
+   * @return The opened cache.
+   */
+  public static ThumbnailCache open(final Path folder, final String extension, final long maxBytes) {
+    final ThumbnailCache cache = new ThumbnailCache(folder, extension, maxBytes);
+    cache.load();
+    return cache;
+  }
+
+  /**
+   * Computes the cache key of a source URL.
+   *
+   * @param url The URL the cached file was downloaded from, {@code null} is treated as empty.
+   * @return The lowercase hexadecimal SHA-1 of the URL.
+   */
+  public static String keyOf(final String url) {
+    try {
+      final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      final byte[] hash = digest.digest((url == null ? "" : url).getBytes(StandardCharsets.UTF_8));
+      return HexFormat.of().formatHex(hash);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 is not available", e);
+    }
+  }
+
+  /**
+   * Returns the path where the file for the given key is stored, whether it exists or not.
+   *
+   * @param key The cache key, see {@link #keyOf(String)}.
+   * @return The {@link Path} of the cached file.
+   */
+  public Path pathOf(final String key) {
+    return folder.resolve(key + extension);
+  }
+
+  /**
+   * Checks if a file is cached for the given key, marking it as recently used.
+   *
+   * @param key The cache key, see {@link #keyOf(String)}.
+   * @return {@code true} if the file is present in the index.
+   */
+  public synchronized boolean contains(final String key) {
+    final Entry entry = entries.get(key);
+    if (entry == null) {
+      return false;
+    }
+    entry.lastAccess = System.currentTimeMillis();
+    return true;
+  }
+
+  /**
+   * Records a file that was just written to {@link #pathOf(String)}, evicting the least recently
+   * used files if the byte budget is exceeded.
+   *
+   * @param key The cache key, see {@link #keyOf(String)}.
+   * @param size The size in bytes of the written file.
+   */
+  public synchronized void put(final String key, final long size) {
+    final Entry previous = entries.put(key, new Entry(size, System.currentTimeMillis()));
+    if (previous != null) {
+      totalBytes -= previous.size;
+    }
+    totalBytes += size;
+    evict();
+  }
+
+  /**
+   * Returns the total size in bytes of the cached files.
+   *
+   * @return The sum of the sizes of every indexed file.
+   */
+  public synchronized long totalBytes() {
+    return totalBytes;
+  }
+
+  /**
+   * Writes the index to {@link #INDEX_FILE}, replacing the previous one atomically.
+   *
+   * @throws IOException If the index cannot be written.
+   */
+  public synchronized void save() throws IOException {
+    final Path index = folder.resolve(INDEX_FILE);
+    final Path temp = folder.resolve(INDEX_FILE + ".tmp");
+    try (final BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+      for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+        writer.write(entry.getKey());
+        writer.write(' ');
+        writer.write(Long.toString(entry.getValue().size));
+        writer.write(' ');
+        writer.write(Long.toString(entry.getValue().lastAccess));
+        writer.newLine();
+      }
+    }
+    Files.move(temp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private void evict() {
+    final Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+    while (totalBytes > maxBytes && iterator.hasNext()) {
+      final Map.Entry<String, Entry> eldest = iterator.next();
+      iterator.remove();
+      totalBytes -= eldest.getValue().size;
+      try {
+        Files.deleteIfExists(pathOf(eldest.getKey()));
+      } catch (IOException e) {
+        // the file is already out of the index, it will be picked up again on the next open
+      }
+    }
+  }
+
+  private void load() {
+    final Map<String, Entry> indexed = readIndex();
+    final List<Map.Entry<String, Entry>> present = new ArrayList<>();
+
+    try (final DirectoryStream<Path> stream = Files.newDirectoryStream(folder, "*" + extension)) {
+      for (final Path file : stream) {
+        final String name = file.getFileName().toString();
+        final String key = name.substring(0, name.length() - extension.length());
+        Entry entry = indexed.get(key);
+        if (entry == null) {
+          entry = new Entry(Files.size(file), Files.getLastModifiedTime(file).toMillis());
+        }
+        present.add(Map.entry(key, entry));
+      }
+    } catch (IOException e) {
+      // an unreadable folder is treated as an empty cache
+    }
+
+    present.sort(Comparator.comparingLong(entry -> entry.getValue().lastAccess));
+    for (final Map.Entry<String, Entry> entry : present) {
+      entries.put(entry.getKey(), entry.getValue());
+      totalBytes += entry.getValue().size;
+    }
+    evict();
+  }
+
+  private Map<String, Entry> readIndex() {
+    final Map<String, Entry> indexed = new LinkedHashMap<>();
+    final Path index = folder.resolve(INDEX_FILE);
+    if (!Files.exists(index)) {
+      return indexed;
+    }
+    try {
+      for (final String line : Files.readAllLines(index, StandardCharsets.UTF_8)) {
+        final String[] parts = line.split(" ");
+        if (parts.length == 3) {
+          indexed.put(parts[0], new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+        }
+      }
+    } catch (IOException | NumberFormatException e) {
+      // a corrupted index is rebuilt from the files on disk
+    }
+    return indexed;
+  }
+}
@@ -0,0 +1,192 @@
+package dev.cwby.bakashi;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Downscales thumbnails to the size they are actually drawn at in the preview pane.
+ *
+ * <p>The preview pane of fzf takes the right half of the terminal, so the largest image ueberzug
+ * can draw is half the terminal columns by its rows, times the size of a cell in pixels. The
+ * terminal size is read once with {@code stty}; the cell size cannot be queried portably and
+ * defaults to {@value #DEFAULT_CELL_WIDTH}x{@value #DEFAULT_CELL_HEIGHT} pixels, overridable with
+ * the {@code BAKASHI_CELL_SIZE} environment variable, e.g {@code 9x18}.
+ *
+ * <p>Images are scaled down by successive halvings followed by a bilinear pass, which is close to
+ * an area average at a fraction of its cost, and written back as baseline JPEG without metadata.
+ */
+public final class ThumbnailScaler {
+
+  public static final int DEFAULT_CELL_WIDTH = 10;
+  public static final int DEFAULT_CELL_HEIGHT = 20;
+
+  /** JPEG quality of the scaled variants, previews do not need more. */
+  public static final float JPEG_QUALITY = 0.8f;
+
+  private static final int DEFAULT_COLUMNS = 160;
+  private static final int DEFAULT_ROWS = 45;
+
+  private static volatile int[] previewBox;
+
+  static {
+    // ImageIO must never try to reach a display
+    System.setProperty("java.awt.headless", "true");
+  }
+
+  private ThumbnailScaler() {}
+
+  /**
+   * Writes a downscaled copy of an image fitting the preview pane.
+   *
+   * @param source The original image.
+   * @param target The file to write the scaled image to, may be the same as {@code source}.
+   * @return {@code true} if a scaled image was written, {@code false} if the source cannot be
+   *     decoded (e.g a format ImageIO does not know) or is already small enough.
+   * @throws IOException If the source cannot be read or the target cannot be written.
+   */
+  public static boolean scaleToPreview(final Path source, final Path target) throws IOException {
+    final BufferedImage image = ImageIO.read(source.toFile());
+    if (image == null) {
+      return false;
+    }
+    final int[] box = previewBox();
+    final double ratio =
+        Math.min((double) box[0] / image.getWidth(), (double) box[1] / image.getHeight());
+    if (ratio >= 1) {
+      return false;
+    }
+    final int width = Math.max(1, (int) Math.round(image.getWidth() * ratio));
+    final int height = Math.max(1, (int) Math.round(image.getHeight() * ratio));
+    writeJpeg(scale(image, width, height), target);
+    return true;
+  }
+
+  /**
+   * Returns the largest size, in pixels, an image can be drawn at in the preview pane.
+   *
+   * @return The width and height of the preview pane.
+   */
+  public static int[] previewBox() {
+    int[] box = previewBox;
+    if (box == null) {
+      final int[] terminal = terminalSize();
+      final int[] cell = cellSize();
+      box = new int[] {terminal[1] / 2 * cell[0], terminal[0] * cell[1]};
+      previewBox = box;
+    }
+    return box;
+  }
+
+  private static BufferedImage scale(final BufferedImage image, final int width, final int height) {
+    BufferedImage current = toRgb(image);
+    int currentWidth = current.getWidth();
+    int currentHeight = current.getHeight();
+    while (currentWidth / 2 >= width && currentHeight / 2 >= height) {
+      currentWidth /= 2;
+      currentHeight /= 2;
+      current = resize(current, currentWidth, currentHeight);
+    }
+    return currentWidth == width && currentHeight == height
+        ? current
+        : resize(current, width, height);
+  }
+
+  private static BufferedImage resize(
+      final BufferedImage image, final int width, final int height) {
+    final BufferedImage resized = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    final Graphics2D graphics = resized.createGraphics();
+    try {
+      graphics.setRenderingHint(
+          RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      graphics.drawImage(image, 0, 0, width, height, null);
+    } finally {
+      graphics.dispose();
+    }
+    return resized;
+  }
+
+  /** JPEG has no alpha channel, transparent images are flattened first. */
+  private static BufferedImage toRgb(final BufferedImage image) {
+    return image.getType() == BufferedImage.TYPE_INT_RGB
+        ? image
+        : resize(image, image.getWidth(), image.getHeight());
+  }
+
+  private static void writeJpeg(final BufferedImage image, final Path target) throws IOException {
+    final Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+    if (!writers.hasNext()) {
+      throw new IOException("No JPEG writer available");
+    }
+    final ImageWriter writer = writers.next();
+    final ImageWriteParam param = writer.getDefaultWriteParam();
+    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+    param.setCompressionQuality(JPEG_QUALITY);
+
+    final Path temp = Files.createTempFile(target.toAbsolutePath().getParent(), "scaled", ".part");
+    try {
+      try (final ImageOutputStream output = ImageIO.createImageOutputStream(temp.toFile())) {
+        writer.setOutput(output);
+        writer.write(null, new IIOImage(image, null, null), param);
+      } finally {
+        writer.dispose();
+      }
+      Files.move(
+          temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /** Returns the rows and columns of the terminal, or a large default when there is none. */
+  private static int[] terminalSize() {
+    try {
+      final Process process =
+          new ProcessBuilder("stty", "size").redirectInput(new File("/dev/tty")).start();
+      final String[] size =
+          new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8)
+              .trim()
+              .split(" ");
+      if (process.waitFor() == 0 && size.length == 2) {
+        final int rows = Integer.parseInt(size[0]);
+        final int columns = Integer.parseInt(size[1]);
+        if (rows > 0 && columns > 0) {
+          return new int[] {rows, columns};
+        }
+      }
+    } catch (IOException | NumberFormatException e) {
+      // not attached to a terminal
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return new int[] {DEFAULT_ROWS, DEFAULT_COLUMNS};
+  }
+
+  private static int[] cellSize() {
+    final String value = System.getenv("BAKASHI_CELL_SIZE");
+    if (value != null) {
+      final String[] size = value.trim().toLowerCase().split("x");
+      try {
+        if (size.length == 2) {
+          return new int[] {Integer.parseInt(size[0]), Integer.parseInt(size[1])};
+        }
+      } catch (NumberFormatException e) {
+        // falls through to the warning
+      }
+      System.err.println("Ignoring invalid BAKASHI_CELL_SIZE: " + value);
+    }
+    return new int[] {DEFAULT_CELL_WIDTH, DEFAULT_CELL_HEIGHT};
+  }
+}
@@ -1,118 +1,321 @@
 package dev.cwby.bakashi;
 
-import java.io.ByteArrayOutputStream;
-import java.io.FileOutputStream;
+import dev.cwby.bakashi.net.HttpTransport;
+import dev.cwby.bakashi.profile.Profiler;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URI;
-import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ThumbnailUtils {
 
   public static final String THUMB_EXTENSION = ".jpg";
 
   /**
-   * Returns the path where the thumbnail for the specified episode name would be stored.
+   * Suffix of the downscaled variant of a thumbnail, stored as {@code <key>.preview.jpg} and drawn
+   * by the preview instead of the original when present.
+   */
+  public static final String PREVIEW_SUFFIX = ".preview";
+
+  /** Maximum number of thumbnails downloaded at the same time. */
+  public static final int MAX_CONCURRENT_FETCHES = 8;
+
+  /**
+   * Bounded pool used by every asynchronous thumbnail download. Its queue is FIFO, so thumbnails
+   * requested first (the top of the fzf list) are fetched first.
+   */
+  private static final ExecutorService FETCH_EXECUTOR =
+      Executors.newFixedThreadPool(
+          MAX_CONCURRENT_FETCHES,
+          runnable -> {
+            final Thread thread = new Thread(runnable, "bakashi-thumbnail-fetcher");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  /**
+   * Pool scaling the downloaded thumbnails to their preview size, one thread per core since the
+   * work is CPU bound.
+   */
+  private static final ExecutorService SCALE_EXECUTOR =
+      Executors.newFixedThreadPool(
+          Runtime.getRuntime().availableProcessors(),
+          runnable -> {
+            final Thread thread = new Thread(runnable, "bakashi-thumbnail-scaler");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  /**
+   * Whether the originals are replaced by their preview variant, read from the {@code
+   * BAKASHI_THUMBNAIL_DISCARD_ORIGINALS} environment variable.
+   */
+  public static final boolean DISCARD_ORIGINALS =
+      "1".equals(System.getenv("BAKASHI_THUMBNAIL_DISCARD_ORIGINALS"))
+          || "true".equalsIgnoreCase(System.getenv("BAKASHI_THUMBNAIL_DISCARD_ORIGINALS"));
+
+  /**
+   * Whether listing entries downloads their thumbnails, turned off when a daemon already does it
+   * for the entries it sends, see {@link #setPrefetching(boolean)}.
+   */
+  private static volatile boolean prefetching = true;
+
+  /**
+   * Whether downloaded thumbnails are scaled to their preview size, turned off for the rest of the
+   * run once ImageIO turns out to be unusable, e.g in a native image built without the JNI and
+   * AWT metadata its codecs need.
+   */
+  private static volatile boolean scaling = true;
+
+  /** Downloads currently running, keyed by thumbnail key, so each one is only started once. */
+  private static final ConcurrentHashMap<String, CompletableFuture<Path>> IN_FLIGHT =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Byte budget of the thumbnail cache, read from the {@code BAKASHI_THUMBNAIL_CACHE_MB}
+   * environment variable and defaulting to 100 MiB.
+   */
+  public static final long CACHE_MAX_BYTES = readCacheBudget();
+
+  private static final ThumbnailCache CACHE =
+      ThumbnailCache.open(Paths.get(Main.THUMBNAIL_FOLDER), THUMB_EXTENSION, CACHE_MAX_BYTES);
+
+  static {
+    Runtime.getRuntime()
+        .addShutdownHook(
+            new Thread(
+                () -> {
+                  try {
+                    CACHE.save();
+                  } catch (IOException e) {
+                    // the index is rebuilt from the thumbnail folder on the next run
+                  }
+                }));
+  }
+
+  /**
+   * Returns the cache key of a thumbnail, which is also the name of its file without extension.
+   *
+   * <p>The fzf preview command relies on this key being the first tab-delimited field of every
+   * line, see {@link dev.cwby.bakashi.process.FzfManager}.
+   *
+   * @param thumbnailUrl The URL of the thumbnail image.
+   * @return The content-addressed key of the thumbnail.
+   */
+  public static String getThumbnailKey(final String thumbnailUrl) {
+    return ThumbnailCache.keyOf(thumbnailUrl);
+  }
+
+  /**
+   * Returns the path where the thumbnail downloaded from the specified URL would be stored.
    *
    * <p>Note that this method only returns the file path; the thumbnail file is not actually
    * generated or downloaded by this method. The thumbnail must be fetched using {@link
-   * #fetchThumbnail(String, String)}.
+   * #fetchThumbnail(String)}.
+   *
+   * @param thumbnailUrl The URL of the thumbnail image.
+   * @return The {@link Path} representing the file location for the thumbnail.
+   */
+  public static Path getThumbnailPath(final String thumbnailUrl) {
+    return CACHE.pathOf(getThumbnailKey(thumbnailUrl));
+  }
+
+  /**
+   * Returns the path of the image the preview should draw for a thumbnail key: the downscaled
+   * variant when it exists, the original otherwise.
    *
-   * @param episodeName The name of the episode for which the thumbnail file path is to be
-   *     generated.
-   * @return The {@link Path} representing the file location for the episode thumbnail.
+   * @param key The cache key of the thumbnail, see {@link #getThumbnailKey(String)}.
+   * @return The {@link Path} of the image to draw, which may not exist yet.
    */
-  public static Path getThumbnailPath(final String episodeName) {
-    return Paths.get(Main.THUMBNAIL_FOLDER, episodeName + THUMB_EXTENSION);
+  public static Path getPreviewPath(final String key) {
+    final Path variant = CACHE.pathOf(key + PREVIEW_SUFFIX);
+    return Files.exists(variant) ? variant : CACHE.pathOf(key);
   }
 
   /**
-   * Checks if the thumbnail for the specified episode already exists in the temporary storage.
+   * Checks if the thumbnail downloaded from the specified URL is already cached.
    *
-   * <p>This method is useful for skipping redundant thumbnail downloads by verifying if the
-   * thumbnail has already been fetched and stored previously.
+   * <p>This method only looks at the in-memory cache index, so it is cheap enough to be called for
+   * every listed entry. A hit also marks the thumbnail as recently used.
    *
-   * @param episodeName The name of the episode to check for an existing thumbnail.
-   * @return {@code true} if the thumbnail file exists; {@code false} otherwise.
+   * @param thumbnailUrl The URL of the thumbnail image.
+   * @return {@code true} if the thumbnail is cached; {@code false} otherwise.
    */
-  public static boolean thumbnailExists(final String episodeName) {
-    return Files.exists(getThumbnailPath(episodeName));
+  public static boolean thumbnailExists(final String thumbnailUrl) {
+    return CACHE.contains(getThumbnailKey(thumbnailUrl));
   }
 
   /**
-   * Downloads the thumbnail image from the given URL and saves it in the temporary folder for later
+   * Downloads the thumbnail image from the given URL and saves it in the thumbnail cache for later
    * use.
    *
-   * <p>This method will download the thumbnail and store it on disk at the path specified by the
-   * episode name.
+   * <p>This method blocks until the download finished, sharing it with any concurrent request for
+   * the same thumbnail, see {@link #fetchThumbnailAsync(String)}.
    *
    * @param thumbnailUrl The URL of the thumbnail image to download.
-   * @param fileName The name to assign to the downloaded thumbnail file.
    * @return The {@link Path} to the saved thumbnail file.
    * @throws IOException If there is an error while downloading or saving the thumbnail.
    */
-  public static Path fetchThumbnail(final String thumbnailUrl, final String fileName)
-      throws IOException {
-    final Path thumbnailPath = getThumbnailPath(fileName);
-    try (final ByteArrayOutputStream outputStream = fetchThumbnailOutputStream(thumbnailUrl);
-        final FileOutputStream fos = new FileOutputStream(thumbnailPath.toFile())) {
-      fos.write(outputStream.toByteArray());
-      return thumbnailPath;
+  public static Path fetchThumbnail(final String thumbnailUrl) throws IOException {
+    try {
+      return fetchThumbnailAsync(thumbnailUrl).join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof IOException ioException) {
+        throw ioException;
+      }
+      throw new IOException("Failed to fetch thumbnail: " + thumbnailUrl, e.getCause());
     }
   }
 
   /**
-   * Asynchronously downloads the thumbnail image from the given URL and saves it in the temporary
-   * folder for later use.
+   * Asynchronously downloads the thumbnail image from the given URL and saves it in the thumbnail
+   * cache for later use.
    *
-   * <p>This method fetches the thumbnail in a non-blocking manner and stores it on disk at the path
-   * specified by the given file name.
+   * <p>This method fetches the thumbnail in a non-blocking manner on a bounded pool of {@link
+   * #MAX_CONCURRENT_FETCHES} threads. Downloads are started in the order they were requested, and
+   * concurrent requests for the same thumbnail share a single download.
+   *
+   * <p>The image is streamed straight to a temporary file next to its final location and atomically
+   * renamed into place once complete, so fzf and ueberzug never read a partially written file.
+   * Once saved, a variant scaled to the preview pane is produced in the background, see {@link
+   * #getPreviewPath(String)}.
    *
    * @param thumbnailUrl The URL of the thumbnail image to download.
-   * @param fileName The name to assign to the downloaded thumbnail file.
    * @return A {@link CompletableFuture} containing the {@link Path} to the saved thumbnail file.
    */
-  public static CompletableFuture<Path> fetchThumbnailAsync(
-      final String thumbnailUrl, final String fileName) {
-    return CompletableFuture.supplyAsync(() -> getThumbnailPath(fileName))
-        .thenApply(
-            thumbnailPath -> {
-              try {
-                return fetchThumbnail(thumbnailUrl, fileName);
-              } catch (IOException e) {
-                throw new RuntimeException(e);
-              }
-            });
+  public static CompletableFuture<Path> fetchThumbnailAsync(final String thumbnailUrl) {
+    final String key = getThumbnailKey(thumbnailUrl);
+    final CompletableFuture<Path> download = new CompletableFuture<>();
+    final CompletableFuture<Path> inFlight = IN_FLIGHT.putIfAbsent(key, download);
+    if (inFlight != null) {
+      return inFlight;
+    }
+
+    FETCH_EXECUTOR.execute(
+        () -> {
+          try {
+            final Path thumbnail = downloadThumbnail(thumbnailUrl, key);
+            SCALE_EXECUTOR.execute(() -> scaleThumbnail(key));
+            download.complete(thumbnail);
+          } catch (Throwable throwable) {
+            download.completeExceptionally(throwable);
+          } finally {
+            IN_FLIGHT.remove(key, download);
+          }
+        });
+    return download;
+  }
+
+  /**
+   * Queues the download of a thumbnail that is not yet cached, ignoring any failure.
+   *
+   * <p>This is the fire-and-forget variant of {@link #fetchThumbnailAsync(String)} used when
+   * listing entries: a missing thumbnail only means an empty preview, so errors are not reported.
+   *
+   * @param thumbnailUrl The URL of the thumbnail image to download, may be {@code null}.
+   */
+  public static void prefetchThumbnail(final String thumbnailUrl) {
+    if (thumbnailUrl == null || !prefetching) {
+      return;
+    }
+    if (thumbnailExists(thumbnailUrl)) {
+      Profiler.count(Profiler.Counter.THUMBNAIL_CACHE_HITS, 1);
+      return;
+    }
+    fetchThumbnailAsync(thumbnailUrl).exceptionally(throwable -> null);
+  }
+
+  /**
+   * Turns {@link #prefetchThumbnail(String)} on or off.
+   *
+   * @param enabled {@code false} when another process downloads the thumbnails into the same
+   *     folder.
+   */
+  public static void setPrefetching(final boolean enabled) {
+    prefetching = enabled;
   }
 
   /**
-   * Downloads the thumbnail image into memory (as a {@link ByteArrayOutputStream}) from the
-   * specified URL.
+   * Streams the thumbnail image at the specified URL to disk and records it in the cache.
    *
-   * <p>This method is used to download the thumbnail image and store it temporarily in memory. The
-   * data can be later saved to a file using {@link #fetchThumbnail(String, String)} if needed.
+   * <p>The body is written by the shared {@link HttpTransport} directly into a temporary file,
+   * without being copied through the heap, then moved over the final path with an atomic rename.
    *
    * @param thumbnailUrl The URL of the thumbnail image to download.
-   * @return A {@link ByteArrayOutputStream} containing the thumbnail image data.
-   * @throws IOException If there is an error while downloading the thumbnail.
+   * @param key The cache key of the thumbnail.
+   * @return The {@link Path} to the saved thumbnail file.
+   * @throws IOException If there is an error while downloading or saving the thumbnail.
    */
-  public static ByteArrayOutputStream fetchThumbnailOutputStream(final String thumbnailUrl)
+  private static Path downloadThumbnail(final String thumbnailUrl, final String key)
       throws IOException {
-    final URL url = URI.create(thumbnailUrl).toURL();
-    try (final InputStream inputStream = url.openStream();
-        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
-      final byte[] buffer = new byte[4096];
-      int bytesRead;
-
-      while ((bytesRead = inputStream.read(buffer)) != -1) {
-        outputStream.write(buffer, 0, bytesRead);
+    final Path thumbnailPath = CACHE.pathOf(key);
+    if (CACHE.contains(key)) {
+      Profiler.count(Profiler.Counter.THUMBNAIL_CACHE_HITS, 1);
+      return thumbnailPath;
+    }
+    Profiler.count(Profiler.Counter.THUMBNAIL_CACHE_MISSES, 1);
+
+    final Path partialPath = Files.createTempFile(thumbnailPath.getParent(), key, ".part");
+    try (final Profiler.Span span = Profiler.span("thumbnail.download", thumbnailUrl)) {
+      HttpTransport.shared()
+          .download(thumbnailUrl, partialPath, HttpTransport.DOWNLOAD_TIMEOUT);
+      final long size = Files.size(partialPath);
+      Files.move(
+          partialPath,
+          thumbnailPath,
+          StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+      CACHE.put(key, size);
+      return thumbnailPath;
+    } finally {
+      Files.deleteIfExists(partialPath);
+    }
+  }
+
+  /**
+   * Writes the preview variant of a downloaded thumbnail, or replaces the original with it when
+   * {@link #DISCARD_ORIGINALS} is set. Thumbnails that cannot be decoded or are already small
+   * enough are left as they are and previewed from the original, and so is every thumbnail once
+   * ImageIO failed to link.
+   *
+   * @param key The cache key of the thumbnail.
+   */
+  private static void scaleThumbnail(final String key) {
+    if (!scaling) {
+      return;
+    }
+    final Path original = CACHE.pathOf(key);
+    final String variantKey = DISCARD_ORIGINALS ? key : key + PREVIEW_SUFFIX;
+    if (!DISCARD_ORIGINALS && CACHE.contains(variantKey)) {
+      return;
+    }
+    try (final Profiler.Span span = Profiler.span("thumbnail.scale", key)) {
+      if (ThumbnailScaler.scaleToPreview(original, CACHE.pathOf(variantKey))) {
+        CACHE.put(variantKey, Files.size(CACHE.pathOf(variantKey)));
       }
+    } catch (IOException | RuntimeException e) {
+      // the preview falls back to the original image
+    } catch (LinkageError e) {
+      // the native libraries of ImageIO are missing, no other thumbnail will scale either
+      scaling = false;
+    }
+  }
 
-      return outputStream;
+  private static long readCacheBudget() {
+    final String megabytes = System.getenv("BAKASHI_THUMBNAIL_CACHE_MB");
+    if (megabytes != null) {
+      try {
+        return Long.parseLong(megabytes.trim()) * 1024 * 1024;
+      } catch (NumberFormatException e) {
+        System.err.println("Ignoring invalid BAKASHI_THUMBNAIL_CACHE_MB: " + megabytes);
+      }
     }
+    return 100L * 1024 * 1024;
   }
 }
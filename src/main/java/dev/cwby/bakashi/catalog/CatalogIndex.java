@@ -0,0 +1,336 @@
+package dev.cwby.bakashi.catalog;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import dev.cwby.bakashi.data.AnimePage;
+import dev.cwby.bakashi.data.Json;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A persistent local catalog of {@link AnimePage} records, searchable offline and tolerant to
+ * typos.
+ *
+ * <p>Titles and slugs are normalized (lowercase, no accents, punctuation as spaces) and split into
+ * trigrams, each word padded the same way as PostgreSQL's {@code pg_trgm}. Every trigram maps to
+ * the list of pages containing it, so a search only counts, per page, how many trigrams of the
+ * query it shares. A page matches when it shares at least {@link #MIN_COVERAGE} of the query
+ * trigrams, which still holds with a missing, extra or swapped letter.
+ *
+ * <p>The catalog is stored as one JSON object per line. New or changed pages are appended, later
+ * lines override earlier ones with the same slug, and the file is rewritten once it holds too many
+ * stale lines.
+ */
+public class CatalogIndex {
+
+  public static final String CATALOG_FILE = "catalog.jsonl";
+
+  /** Fraction of the query trigrams a page must contain to be returned. */
+  public static final double MIN_COVERAGE = 0.5;
+
+  private final Path file;
+  private final List<AnimePage> pages = new ArrayList<>();
+  private final List<String> normalizedTitles = new ArrayList<>();
+  private final Map<String, Integer> bySlug = new HashMap<>();
+  private final Map<Long, Postings> postings = new HashMap<>();
+  private int[] trigramCounts = new int[64];
+  private int storedLines;
+
+  /** The ids of the pages containing a trigram, in increasing order. */
+  private static final class Postings {
+    private int[] pages = new int[4];
+    private int size;
+
+    private void add(final int page) {
+      if (size > 0 && pages[size - 1] == page) {
+        return;
+      }
+      if (size == pages.length) {
+        pages = Arrays.copyOf(pages, size * 2);
+      }
+      pages[size++] = page;
+    }
+  }
+
+  private CatalogIndex(final Path file) {
+    this.file = file;
+  }
+
+  /**
+   * Opens the catalog stored in the given file, creating an empty one if it does not exist yet.
+   *
+   * @param file The JSON lines file holding the catalog.
+   * @return The opened catalog, with its whole index in memory.
+   */
+  public static CatalogIndex open(final Path file) {
+    final CatalogIndex catalog = new CatalogIndex(file);
+    catalog.load();
+    return catalog;
+  }
+
+  /**
+   * Searches the catalog.
+   *
+   * @param query The text typed by the user, not URL encoded.
+   * @param limit The maximum amount of pages returned.
+   * @return The best matching pages, best first, empty if nothing is similar enough.
+   */
+  public synchronized List<AnimePage> search(final String query, final int limit) {
+    final String normalized = normalize(query);
+    final long[] grams = trigrams(normalized);
+    if (grams.length == 0 || pages.isEmpty()) {
+      return List.of();
+    }
+
+    // only the pages sharing at least one trigram are ever visited, not the whole catalog
+    final int[] shared = new int[pages.size()];
+    int[] touched = new int[16];
+    int touchedCount = 0;
+    for (final long gram : grams) {
+      final Postings list = postings.get(gram);
+      if (list == null) {
+        continue;
+      }
+      for (int i = 0; i < list.size; i++) {
+        final int page = list.pages[i];
+        if (shared[page]++ == 0) {
+          if (touchedCount == touched.length) {
+            touched = Arrays.copyOf(touched, touchedCount * 2);
+          }
+          touched[touchedCount++] = page;
+        }
+      }
+    }
+
+    final List<Integer> matches = new ArrayList<>();
+    final Map<Integer, Double> scores = new HashMap<>();
+    for (int i = 0; i < touchedCount; i++) {
+      final int page = touched[i];
+      final double coverage = (double) shared[page] / grams.length;
+      if (coverage < MIN_COVERAGE) {
+        continue;
+      }
+      // coverage ranks first, the similarity of the whole title breaks ties so "naruto" prefers
+      // "Naruto" over "Naruto Shippuden"
+      final double similarity =
+          (double) shared[page] / (grams.length + trigramCounts[page] - shared[page]);
+      final double exact = normalizedTitles.get(page).contains(normalized) ? 1 : 0;
+      scores.put(page, exact + coverage + similarity / 2);
+      matches.add(page);
+    }
+
+    matches.sort((a, b) -> Double.compare(scores.get(b), scores.get(a)));
+    final List<AnimePage> result = new ArrayList<>(Math.min(limit, matches.size()));
+    for (int i = 0; i < matches.size() && i < limit; i++) {
+      result.add(pages.get(matches.get(i)));
+    }
+    return result;
+  }
+
+  /**
+   * Adds pages to the catalog, e.g the results of a network search, persisting the new or changed
+   * ones.
+   *
+   * @param newPages The pages to add, replacing the stored ones with the same slug.
+   * @throws IOException If the catalog file cannot be written.
+   */
+  public synchronized void addAll(final List<AnimePage> newPages) throws IOException {
+    final List<AnimePage> changed = new ArrayList<>();
+    for (final AnimePage page : newPages) {
+      if (page != null && page.slug() != null && index(page)) {
+        changed.add(page);
+      }
+    }
+    if (changed.isEmpty()) {
+      return;
+    }
+    if (storedLines + changed.size() > 2 * pages.size() + 64) {
+      compact();
+      return;
+    }
+    Files.createDirectories(file.toAbsolutePath().getParent());
+    try (final BufferedWriter writer =
+        Files.newBufferedWriter(
+            file,
+            StandardCharsets.UTF_8,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.APPEND)) {
+      for (final AnimePage page : changed) {
+        writer.write(Json.ANIME_PAGE_WRITER.writeValueAsString(page));
+        writer.newLine();
+      }
+    }
+    storedLines += changed.size();
+  }
+
+  /**
+   * Bulk-loads pages into the catalog, e.g from a dump of the whole site catalog.
+   *
+   * @param seed A JSON array of pages, or one JSON page per line.
+   * @return The amount of pages read from the seed.
+   * @throws IOException If the seed cannot be read or parsed, or the catalog cannot be written.
+   */
+  public int seed(final InputStream seed) throws IOException {
+    final String text = new String(seed.readAllBytes(), StandardCharsets.UTF_8).strip();
+    final List<AnimePage> seeded = new ArrayList<>();
+    if (text.startsWith("[")) {
+      seeded.addAll(Arrays.asList(Json.ANIME_PAGES_READER.<AnimePage[]>readValue(text)));
+    } else {
+      for (final String line : text.split("\r?\n")) {
+        if (!line.isBlank()) {
+          seeded.add(Json.ANIME_PAGE_READER.readValue(line));
+        }
+      }
+    }
+    addAll(seeded);
+    return seeded.size();
+  }
+
+  /**
+   * Returns the amount of pages in the catalog.
+   *
+   * @return The number of distinct slugs.
+   */
+  public synchronized int size() {
+    return pages.size();
+  }
+
+  /** Indexes a page, returning {@code false} if the very same page is already indexed. */
+  private boolean index(final AnimePage page) {
+    final Integer existing = bySlug.get(page.slug());
+    if (existing != null) {
+      if (pages.get(existing).equals(page)) {
+        return false;
+      }
+      // the title of a slug practically never changes, so its postings are kept as they are
+      pages.set(existing, page);
+      normalizedTitles.set(existing, normalize(page.title()));
+      return true;
+    }
+
+    final int id = pages.size();
+    pages.add(page);
+    bySlug.put(page.slug(), id);
+    final String title = normalize(page.title());
+    normalizedTitles.add(title);
+    final long[] grams = trigrams(title + " " + normalize(page.slug().replace('-', ' ')));
+    for (final long gram : grams) {
+      postings.computeIfAbsent(gram, key -> new Postings()).add(id);
+    }
+    if (id == trigramCounts.length) {
+      trigramCounts = Arrays.copyOf(trigramCounts, id * 2);
+    }
+    trigramCounts[id] = grams.length;
+    return true;
+  }
+
+  private void load() {
+    if (!Files.exists(file)) {
+      return;
+    }
+    try (final BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isBlank()) {
+          continue;
+        }
+        storedLines++;
+        try {
+          final AnimePage page = Json.ANIME_PAGE_READER.readValue(line);
+          if (page.slug() != null) {
+            index(page);
+          }
+        } catch (JsonProcessingException e) {
+          // a torn last line from an interrupted write, the rest of the catalog is still usable
+        }
+      }
+    } catch (IOException e) {
+      // an unreadable catalog is treated as an empty one, it is rebuilt by the next searches
+    }
+  }
+
+  private void compact() throws IOException {
+    Files.createDirectories(file.toAbsolutePath().getParent());
+    final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (final BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+      for (final AnimePage page : pages) {
+        writer.write(Json.ANIME_PAGE_WRITER.writeValueAsString(page));
+        writer.newLine();
+      }
+    }
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    storedLines = pages.size();
+  }
+
+  /** Lowercases, strips accents and turns everything but letters and digits into single spaces. */
+  static String normalize(final String text) {
+    if (text == null) {
+      return "";
+    }
+    final String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+    final StringBuilder builder = new StringBuilder(decomposed.length());
+    boolean space = true;
+    for (int i = 0; i < decomposed.length(); i++) {
+      final char c = decomposed.charAt(i);
+      if (Character.getType(c) == Character.NON_SPACING_MARK) {
+        continue;
+      }
+      if (Character.isLetterOrDigit(c)) {
+        builder.append(Character.toLowerCase(c));
+        space = false;
+      } else if (!space) {
+        builder.append(' ');
+        space = true;
+      }
+    }
+    final int length = builder.length();
+    return length > 0 && builder.charAt(length - 1) == ' '
+        ? builder.substring(0, length - 1)
+        : builder.toString();
+  }
+
+  /**
+   * Returns the distinct trigrams of a normalized text, each word padded with two spaces in front
+   * and one behind, packed as three 16 bit chars in a {@code long}.
+   */
+  static long[] trigrams(final String normalized) {
+    long[] grams = new long[Math.max(4, normalized.length() * 2)];
+    int count = 0;
+    for (final String word : normalized.split(" ")) {
+      if (word.isEmpty()) {
+        continue;
+      }
+      final String padded = "  " + word + " ";
+      for (int i = 0; i + 3 <= padded.length(); i++) {
+        if (count == grams.length) {
+          grams = Arrays.copyOf(grams, count * 2);
+        }
+        grams[count++] =
+            ((long) padded.charAt(i) << 32)
+                | ((long) padded.charAt(i + 1) << 16)
+                | padded.charAt(i + 2);
+      }
+    }
+    final long[] sorted = Arrays.copyOf(grams, count);
+    Arrays.sort(sorted);
+    int distinct = 0;
+    for (int i = 0; i < sorted.length; i++) {
+      if (distinct == 0 || sorted[distinct - 1] != sorted[i]) {
+        sorted[distinct++] = sorted[i];
+      }
+    }
+    return Arrays.copyOf(sorted, distinct);
+  }
+}
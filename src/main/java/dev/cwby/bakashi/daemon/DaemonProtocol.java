@@ -0,0 +1,152 @@
+package dev.cwby.bakashi.daemon;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import dev.cwby.bakashi.data.Json;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The messages exchanged between {@link RemoteScrapper} and {@link ScrapperDaemon}, one JSON object
+ * per line over a UNIX domain socket.
+ *
+ * <p>A client opens one connection per request and sends a single line, e.g {@code
+ * {"op":"search","origin":"anroll","query":"naruto"}}. The daemon answers with any number of
+ * batches, {@code {"pages":[...]}} or {@code {"episodes":[...]}}, written as soon as the scrapper
+ * hands them over, then either {@code {"done":true,...}} carrying the result of the request or
+ * {@code {"error":"..."}}, and closes the connection.
+ *
+ * <p>Whoever can connect to the socket decides what the client lists and plays, so it lives in a
+ * directory only its owner can enter, {@code $XDG_RUNTIME_DIR/bakashicli} or else {@code
+ * /tmp/bakashicli-<user>}, and both sides check they own it before using it.
+ */
+final class DaemonProtocol {
+
+  /** The private directory of the socket. */
+  static final Path DIRECTORY = socketDirectory();
+
+  /** The socket the daemon listens on. */
+  static final Path SOCKET = DIRECTORY.resolve("daemon.sock");
+
+  private static final Set<PosixFilePermission> OWNER_ONLY =
+      PosixFilePermissions.fromString("rwx------");
+
+  static final String OP = "op";
+  static final String ORIGIN = "origin";
+  static final String QUERY = "query";
+  static final String PAGE = "page";
+  static final String EPISODE = "episode";
+  static final String URL = "url";
+  static final String REFERER = "referer";
+  static final String UEBERZUG = "ueberzug";
+  static final String NEWEST_FIRST = "newestFirst";
+
+  static final String PAGES = "pages";
+  static final String EPISODES = "episodes";
+  static final String DONE = "done";
+  static final String ERROR = "error";
+
+  /** Checks the daemon is alive, answered with whether ueberzug is installed. */
+  static final String OP_PING = "ping";
+
+  /** {@link dev.cwby.bakashi.scrapper.IScrapper#streamLastEpisodes}. */
+  static final String OP_LATEST = "latest";
+
+  /** {@link dev.cwby.bakashi.scrapper.IScrapper#pollLastEpisodes}. */
+  static final String OP_POLL = "poll";
+
+  /** {@link dev.cwby.bakashi.scrapper.IScrapper#streamAnimePages}, with {@link #QUERY}. */
+  static final String OP_SEARCH = "search";
+
+  /** {@link dev.cwby.bakashi.scrapper.IScrapper#streamEpisodesFromPage}, with {@link #PAGE}. */
+  static final String OP_EPISODES = "episodes";
+
+  /** {@link dev.cwby.bakashi.scrapper.IScrapper#newestEpisodesFirst}, with {@link #PAGE}. */
+  static final String OP_ORDER = "order";
+
+  /** {@link dev.cwby.bakashi.scrapper.IScrapper#extractVideoUrl}, with {@link #URL}. */
+  static final String OP_VIDEO = "video";
+
+  /** The referer of the origin, or of the source of {@link #EPISODE} when given. */
+  static final String OP_REFERER = "referer";
+
+  private DaemonProtocol() {}
+
+  /**
+   * Creates {@link #DIRECTORY} accessible to the current user only, or checks that it is, so that
+   * a socket bound in it cannot be reached or replaced by anybody else.
+   *
+   * @throws IOException If the directory belongs to another user or cannot be created.
+   */
+  static void createDirectory() throws IOException {
+    if (!Files.isDirectory(DIRECTORY, LinkOption.NOFOLLOW_LINKS)) {
+      Files.createDirectories(DIRECTORY, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+    }
+    if (!isOwned(DIRECTORY)) {
+      throw new IOException(DIRECTORY + " belongs to another user");
+    }
+    // created by an earlier version, or with a umask narrowing the requested permissions
+    Files.setPosixFilePermissions(DIRECTORY, OWNER_ONLY);
+  }
+
+  /**
+   * Checks that a file belongs to the current user, without following symbolic links.
+   *
+   * @param path The file.
+   * @return {@code true} if the current user owns it.
+   * @throws IOException If the file or the current user cannot be looked up.
+   */
+  static boolean isOwned(final Path path) throws IOException {
+    final UserPrincipal user =
+        path.getFileSystem()
+            .getUserPrincipalLookupService()
+            .lookupPrincipalByName(System.getProperty("user.name"));
+    return user.equals(Files.getOwner(path, LinkOption.NOFOLLOW_LINKS));
+  }
+
+  private static Path socketDirectory() {
+    final String runtime = System.getenv("XDG_RUNTIME_DIR");
+    if (runtime != null && !runtime.isBlank()) {
+      return Paths.get(runtime, "bakashicli");
+    }
+    return Paths.get("/tmp", "bakashicli-" + System.getProperty("user.name"));
+  }
+
+  /**
+   * Writes a message as a single line and flushes it.
+   *
+   * @param writer The connection.
+   * @param message The message.
+   * @throws IOException If the connection is closed.
+   */
+  static void write(final Writer writer, final Map<String, ?> message) throws IOException {
+    writer.write(Json.MAPPER.writeValueAsString(message));
+    writer.write('\n');
+    writer.flush();
+  }
+
+  /**
+   * Reads the next message.
+   *
+   * @param reader The connection.
+   * @return The message.
+   * @throws IOException If the connection is closed or the line is not JSON.
+   */
+  static JsonNode read(final BufferedReader reader) throws IOException {
+    final String line = reader.readLine();
+    if (line == null) {
+      throw new EOFException("The daemon connection was closed");
+    }
+    return Json.MAPPER.readTree(line);
+  }
+}
@@ -0,0 +1,264 @@
+package dev.cwby.bakashi.daemon;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import dev.cwby.bakashi.data.AnimePage;
+import dev.cwby.bakashi.data.EpisodeData;
+import dev.cwby.bakashi.data.Json;
+import dev.cwby.bakashi.scrapper.IScrapper;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * A scrapper forwarding every request to a running {@link ScrapperDaemon}, the thin client used by
+ * {@code Main} whenever a daemon answers.
+ *
+ * <p>Each request opens its own connection, so requests made concurrently, e.g the episode list
+ * streaming while a search refreshes, do not wait for each other. Batches are handed to the
+ * consumers as the daemon writes them.
+ */
+public final class RemoteScrapper implements IScrapper {
+
+  private final String origin;
+  private final boolean isUeberzugPresent;
+  private volatile String referer;
+
+  private RemoteScrapper(
+      final String origin, final boolean isUeberzugPresent, final String referer) {
+    this.origin = origin;
+    this.isUeberzugPresent = isUeberzugPresent;
+    this.referer = referer;
+  }
+
+  /**
+   * Connects to the running daemon, if any.
+   *
+   * @param origin The origin the requests are for, as given to {@code -o}.
+   * @return A scrapper for the origin, or {@code null} if no daemon answers, or if the socket was
+   *     not created by the current user.
+   */
+  public static RemoteScrapper connect(final String origin) {
+    if (!Files.exists(DaemonProtocol.SOCKET, LinkOption.NOFOLLOW_LINKS)) {
+      return null;
+    }
+    try {
+      if (!DaemonProtocol.isOwned(DaemonProtocol.DIRECTORY)
+          || !DaemonProtocol.isOwned(DaemonProtocol.SOCKET)) {
+        System.err.println("Ignoring " + DaemonProtocol.SOCKET + ", it belongs to another user");
+        return null;
+      }
+      final JsonNode done = request(message(DaemonProtocol.OP_PING, origin), batch -> {});
+      return new RemoteScrapper(origin, done.path(DaemonProtocol.UEBERZUG).asBoolean(), null);
+    } catch (IOException e) {
+      // a socket left behind by a daemon that was killed
+      return null;
+    }
+  }
+
+  /**
+   * Returns a scrapper for another origin of the same daemon.
+   *
+   * @param origin The origin, as given to {@code -o}.
+   * @return The scrapper.
+   */
+  public RemoteScrapper forOrigin(final String origin) {
+    return new RemoteScrapper(origin, isUeberzugPresent, null);
+  }
+
+  /**
+   * Checks if the daemon found ueberzug, so the client does not have to.
+   *
+   * @return {@code true} if ueberzug is installed.
+   */
+  public boolean isUeberzugPresent() {
+    return isUeberzugPresent;
+  }
+
+  @Override
+  public List<EpisodeData> getLastEpisodes() throws IOException {
+    return streamLastEpisodes(episodes -> {});
+  }
+
+  @Override
+  public List<EpisodeData> streamLastEpisodes(final Consumer<List<EpisodeData>> consumer)
+      throws IOException {
+    return requestEpisodes(message(DaemonProtocol.OP_LATEST, origin), consumer);
+  }
+
+  @Override
+  public List<EpisodeData> pollLastEpisodes() throws IOException {
+    return requestEpisodes(message(DaemonProtocol.OP_POLL, origin), episodes -> {});
+  }
+
+  @Override
+  public List<AnimePage> findAnimePage(final String search) throws IOException {
+    return streamAnimePages(search, pages -> {});
+  }
+
+  @Override
+  public List<AnimePage> streamAnimePages(
+      final String search, final Consumer<List<AnimePage>> consumer) throws IOException {
+    final Map<String, Object> message = message(DaemonProtocol.OP_SEARCH, origin);
+    message.put(DaemonProtocol.QUERY, search);
+    final List<AnimePage> pages = new ArrayList<>();
+    request(
+        message,
+        batch -> {
+          final List<AnimePage> received =
+              Arrays.asList(
+                  Json.MAPPER.treeToValue(batch.get(DaemonProtocol.PAGES), AnimePage[].class));
+          pages.addAll(received);
+          consumer.accept(received);
+        });
+    return pages;
+  }
+
+  @Override
+  public List<EpisodeData> fetchEpisodesFromPage(final AnimePage animePage) throws IOException {
+    return streamEpisodesFromPage(animePage, episodes -> {});
+  }
+
+  @Override
+  public List<EpisodeData> streamEpisodesFromPage(
+      final AnimePage animePage, final Consumer<List<EpisodeData>> consumer) throws IOException {
+    final Map<String, Object> message = message(DaemonProtocol.OP_EPISODES, origin);
+    message.put(DaemonProtocol.PAGE, animePage);
+    return requestEpisodes(message, consumer);
+  }
+
+  /**
+   * Asks the daemon in which order the origin of the anime lists its episodes.
+   *
+   * @throws UncheckedIOException If the daemon cannot be reached.
+   */
+  @Override
+  public boolean newestEpisodesFirst(final AnimePage animePage) {
+    final Map<String, Object> message = message(DaemonProtocol.OP_ORDER, origin);
+    message.put(DaemonProtocol.PAGE, animePage);
+    try {
+      return request(message, batch -> {}).path(DaemonProtocol.NEWEST_FIRST).asBoolean();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public String extractVideoUrl(final String episodeLink) throws IOException {
+    final Map<String, Object> message = message(DaemonProtocol.OP_VIDEO, origin);
+    message.put(DaemonProtocol.URL, episodeLink);
+    return request(message, batch -> {}).path(DaemonProtocol.URL).asText();
+  }
+
+  /**
+   * Asks the daemon for the referer of the origin on first use.
+   *
+   * @throws UncheckedIOException If the daemon cannot be reached.
+   */
+  @Override
+  public String referer() {
+    if (referer == null) {
+      referer = requestReferer(message(DaemonProtocol.OP_REFERER, origin));
+    }
+    return referer;
+  }
+
+  /**
+   * Asks the daemon which origin an episode comes from, which only differs from this one for
+   * {@code -o all}.
+   *
+   * @throws UncheckedIOException If the daemon cannot be reached.
+   */
+  @Override
+  public IScrapper sourceOf(final EpisodeData episode) {
+    final Map<String, Object> message = message(DaemonProtocol.OP_REFERER, origin);
+    message.put(DaemonProtocol.EPISODE, episode);
+    return new RemoteScrapper(origin, isUeberzugPresent, requestReferer(message));
+  }
+
+  private static String requestReferer(final Map<String, Object> message) {
+    try {
+      return request(message, batch -> {}).path(DaemonProtocol.REFERER).asText();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static List<EpisodeData> requestEpisodes(
+      final Map<String, Object> message, final Consumer<List<EpisodeData>> consumer)
+      throws IOException {
+    final List<EpisodeData> episodes = new ArrayList<>();
+    request(
+        message,
+        batch -> {
+          final List<EpisodeData> received =
+              Arrays.asList(
+                  Json.MAPPER.treeToValue(
+                      batch.get(DaemonProtocol.EPISODES), EpisodeData[].class));
+          episodes.addAll(received);
+          consumer.accept(received);
+        });
+    return episodes;
+  }
+
+  private static Map<String, Object> message(final String op, final String origin) {
+    final Map<String, Object> message = new LinkedHashMap<>();
+    message.put(DaemonProtocol.OP, op);
+    message.put(DaemonProtocol.ORIGIN, origin);
+    return message;
+  }
+
+  /**
+   * Sends a request on a new connection and reads the answer.
+   *
+   * @param message The request.
+   * @param batches Receives every batch written before the end of the answer.
+   * @return The final {@code done} message.
+   * @throws IOException If the daemon cannot be reached or answers with an error.
+   */
+  private static JsonNode request(final Map<String, Object> message, final BatchHandler batches)
+      throws IOException {
+    try (final SocketChannel channel =
+            SocketChannel.open(UnixDomainSocketAddress.of(DaemonProtocol.SOCKET));
+        final BufferedReader reader =
+            new BufferedReader(
+                new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+        final Writer writer =
+            new BufferedWriter(
+                new OutputStreamWriter(
+                    Channels.newOutputStream(channel), StandardCharsets.UTF_8))) {
+      DaemonProtocol.write(writer, message);
+      while (true) {
+        final JsonNode answer = DaemonProtocol.read(reader);
+        if (answer.has(DaemonProtocol.ERROR)) {
+          throw new IOException(answer.get(DaemonProtocol.ERROR).asText());
+        }
+        if (answer.path(DaemonProtocol.DONE).asBoolean()) {
+          return answer;
+        }
+        batches.accept(answer);
+      }
+    }
+  }
+
+  /** Handles a batch of an answer. */
+  @FunctionalInterface
+  private interface BatchHandler {
+    void accept(JsonNode batch) throws IOException;
+  }
+}
@@ -0,0 +1,189 @@
+package dev.cwby.bakashi.daemon;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import dev.cwby.bakashi.ThumbnailUtils;
+import dev.cwby.bakashi.data.AnimePage;
+import dev.cwby.bakashi.data.EpisodeData;
+import dev.cwby.bakashi.data.Json;
+import dev.cwby.bakashi.process.UeberzugManager;
+import dev.cwby.bakashi.profile.Profiler;
+import dev.cwby.bakashi.scrapper.IScrapper;
+import dev.cwby.bakashi.scrapper.ScrapperManager;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A long running process answering the scrapper requests of {@link RemoteScrapper} clients, started
+ * with {@code --daemon}.
+ *
+ * <p>It keeps what every run would otherwise build again warm: the scrappers of each origin (and
+ * the origins a {@code -o all} search remembered), the pooled HTTP/2 connections and their TLS
+ * sessions, the Jackson bindings, the thumbnail cache index and the JIT compiled code. The
+ * thumbnails of every listed entry are prefetched here too, into the folder the clients preview
+ * from, and whether ueberzug is installed is checked once.
+ *
+ * <p>The socket is bound in a directory only accessible to its owner. See {@link DaemonProtocol}
+ * for the messages.
+ */
+public final class ScrapperDaemon {
+
+  private final Map<String, IScrapper> origins = new ConcurrentHashMap<>();
+  private final boolean isUeberzugPresent = UeberzugManager.checkUeberzugPresence();
+  private final ExecutorService connections =
+      Executors.newCachedThreadPool(
+          runnable -> {
+            final Thread thread = new Thread(runnable, "bakashi-daemon-connection");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private ScrapperDaemon() {}
+
+  /**
+   * Listens on {@link DaemonProtocol#SOCKET} until the process is stopped.
+   *
+   * @throws IOException If another daemon is already listening or the socket cannot be bound.
+   */
+  public static void serve() throws IOException {
+    new ScrapperDaemon().listen();
+  }
+
+  private void listen() throws IOException {
+    if (RemoteScrapper.connect(ScrapperManager.DEFAULT_SCRAPPER) != null) {
+      throw new IOException("A daemon is already listening on " + DaemonProtocol.SOCKET);
+    }
+    // bound straight into the private directory, it is never reachable by anybody else
+    DaemonProtocol.createDirectory();
+    // left behind by a daemon that was killed
+    Files.deleteIfExists(DaemonProtocol.SOCKET);
+
+    try (final ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+      server.bind(UnixDomainSocketAddress.of(DaemonProtocol.SOCKET));
+      Runtime.getRuntime()
+          .addShutdownHook(
+              new Thread(
+                  () -> {
+                    try {
+                      Files.deleteIfExists(DaemonProtocol.SOCKET);
+                    } catch (IOException e) {
+                      // replaced by the next daemon anyway
+                    }
+                  },
+                  "bakashi-daemon-cleanup"));
+      System.out.println("Listening on " + DaemonProtocol.SOCKET);
+
+      while (true) {
+        final SocketChannel connection = server.accept();
+        connections.execute(() -> handle(connection));
+      }
+    }
+  }
+
+  private void handle(final SocketChannel connection) {
+    try (connection;
+        final BufferedReader reader =
+            new BufferedReader(
+                new InputStreamReader(
+                    Channels.newInputStream(connection), StandardCharsets.UTF_8));
+        final Writer writer =
+            new BufferedWriter(
+                new OutputStreamWriter(
+                    Channels.newOutputStream(connection), StandardCharsets.UTF_8))) {
+      final JsonNode request = DaemonProtocol.read(reader);
+      final String op = request.path(DaemonProtocol.OP).asText();
+      try (final Profiler.Span span = Profiler.span("daemon." + op)) {
+        answer(op, request, writer);
+      } catch (IOException | RuntimeException e) {
+        final Throwable cause = e instanceof UncheckedIOException ? e.getCause() : e;
+        final String message = cause.getMessage() != null ? cause.getMessage() : cause.toString();
+        DaemonProtocol.write(writer, Map.of(DaemonProtocol.ERROR, message));
+      }
+    } catch (IOException e) {
+      // the client went away, there is no one left to answer
+    }
+  }
+
+  private void answer(final String op, final JsonNode request, final Writer writer)
+      throws IOException {
+    final IScrapper scrapper =
+        origins.computeIfAbsent(
+            request.path(DaemonProtocol.ORIGIN).asText(ScrapperManager.DEFAULT_SCRAPPER),
+            ScrapperManager::getScrapperOrDefault);
+    final Map<String, Object> done = new LinkedHashMap<>();
+    done.put(DaemonProtocol.DONE, true);
+
+    switch (op) {
+      case DaemonProtocol.OP_PING -> done.put(DaemonProtocol.UEBERZUG, isUeberzugPresent);
+      case DaemonProtocol.OP_LATEST ->
+          scrapper.streamLastEpisodes(episodes -> sendEpisodes(writer, episodes));
+      case DaemonProtocol.OP_POLL -> sendEpisodes(writer, scrapper.pollLastEpisodes());
+      case DaemonProtocol.OP_SEARCH ->
+          scrapper.streamAnimePages(
+              request.path(DaemonProtocol.QUERY).asText(), pages -> sendPages(writer, pages));
+      case DaemonProtocol.OP_EPISODES -> {
+        final AnimePage page =
+            Json.MAPPER.treeToValue(request.get(DaemonProtocol.PAGE), AnimePage.class);
+        scrapper.streamEpisodesFromPage(page, episodes -> sendEpisodes(writer, episodes));
+      }
+      case DaemonProtocol.OP_ORDER -> {
+        final AnimePage page =
+            Json.MAPPER.treeToValue(request.get(DaemonProtocol.PAGE), AnimePage.class);
+        done.put(DaemonProtocol.NEWEST_FIRST, scrapper.newestEpisodesFirst(page));
+      }
+      case DaemonProtocol.OP_VIDEO ->
+          done.put(
+              DaemonProtocol.URL,
+              scrapper.extractVideoUrl(request.path(DaemonProtocol.URL).asText()));
+      case DaemonProtocol.OP_REFERER -> {
+        final JsonNode episode = request.get(DaemonProtocol.EPISODE);
+        final IScrapper source =
+            episode == null
+                ? scrapper
+                : scrapper.sourceOf(Json.MAPPER.treeToValue(episode, EpisodeData.class));
+        done.put(DaemonProtocol.REFERER, source.referer());
+      }
+      default -> throw new IOException("Unknown daemon request: " + op);
+    }
+    DaemonProtocol.write(writer, done);
+  }
+
+  private static void sendEpisodes(final Writer writer, final List<EpisodeData> episodes) {
+    for (final EpisodeData episode : episodes) {
+      ThumbnailUtils.prefetchThumbnail(episode.thumbnailUrl());
+    }
+    send(writer, DaemonProtocol.EPISODES, episodes);
+  }
+
+  private static void sendPages(final Writer writer, final List<AnimePage> pages) {
+    for (final AnimePage page : pages) {
+      ThumbnailUtils.prefetchThumbnail(page.thumbnail());
+    }
+    send(writer, DaemonProtocol.PAGES, pages);
+  }
+
+  private static void send(final Writer writer, final String field, final List<?> batch) {
+    try {
+      DaemonProtocol.write(writer, Map.of(field, batch));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package dev.cwby.bakashi.data;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * The Jackson instances shared by the whole application.
+ *
+ * <p>An {@link ObjectMapper} is expensive to create and to warm up, it introspects every type the
+ * first time it is bound. Keeping a single one, and the reader and writer of {@link AnimePage}
+ * resolved once here, lets the native image initialize this class at build time: the binding of
+ * {@link AnimePage} is then part of the image heap instead of being rebuilt on every start.
+ */
+public final class Json {
+
+  public static final ObjectMapper MAPPER = new ObjectMapper();
+
+  /** The factory of {@link #MAPPER}, for streaming parsers. */
+  public static final JsonFactory FACTORY = MAPPER.getFactory();
+
+  public static final ObjectReader ANIME_PAGE_READER = MAPPER.readerFor(AnimePage.class);
+  public static final ObjectReader ANIME_PAGES_READER = MAPPER.readerFor(AnimePage[].class);
+  public static final ObjectWriter ANIME_PAGE_WRITER = MAPPER.writerFor(AnimePage.class);
+
+  private Json() {}
+}
@@ -0,0 +1,58 @@
+package dev.cwby.bakashi.hls;
+
+/**
+ * A token bucket shared by every download to cap the overall bandwidth.
+ *
+ * <p>Tokens are bytes, refilled continuously at the configured rate, and the bucket holds at most
+ * one second worth of them, so short bursts are allowed but the average never exceeds the cap.
+ */
+public class BandwidthLimiter {
+
+  private final long bytesPerSecond;
+  private double available;
+  private long lastRefill = System.nanoTime();
+
+  /**
+   * Creates a limiter.
+   *
+   * @param bytesPerSecond The maximum average rate, {@code 0} or less to disable the limit.
+   */
+  public BandwidthLimiter(final long bytesPerSecond) {
+    this.bytesPerSecond = bytesPerSecond;
+    this.available = Math.max(0, bytesPerSecond);
+  }
+
+  /**
+   * Returns a limiter that never waits.
+   *
+   * @return An unlimited {@link BandwidthLimiter}.
+   */
+  public static BandwidthLimiter unlimited() {
+    return new BandwidthLimiter(0);
+  }
+
+  /**
+   * Blocks until the given amount of bytes may be transferred.
+   *
+   * @param bytes The amount of bytes about to be transferred.
+   * @throws InterruptedException If the thread is interrupted while waiting.
+   */
+  public void acquire(final int bytes) throws InterruptedException {
+    if (bytesPerSecond <= 0) {
+      return;
+    }
+    final long waitNanos;
+    synchronized (this) {
+      final long now = System.nanoTime();
+      available =
+          Math.min(bytesPerSecond, available + (now - lastRefill) * bytesPerSecond / 1e9);
+      lastRefill = now;
+      // the debt is paid by the next callers waiting for the bucket to refill
+      available -= bytes;
+      waitNanos = available < 0 ? (long) (-available * 1e9 / bytesPerSecond) : 0;
+    }
+    if (waitNanos > 0) {
+      Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+    }
+  }
+}
@@ -0,0 +1,396 @@
+package dev.cwby.bakashi.hls;
+
+import dev.cwby.bakashi.net.HttpStatusException;
+import dev.cwby.bakashi.net.HttpTransport;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads an HLS stream into a single file, fetching its segments concurrently.
+ *
+ * <p>The size of every segment is learned up front with {@code HEAD} requests, so the output file
+ * can be preallocated and each segment written at its final offset with positional {@link
+ * FileChannel} writes, in whatever order the downloads complete. When a CDN leaves out the {@code
+ * Content-Length} of a segment, its size is only known once the segment is downloaded: the
+ * segments are then fetched ahead into memory and appended to the output in playlist order.
+ * Progress is recorded in a small manifest next to the output, one line per finished segment, so
+ * an interrupted download resumes where it stopped instead of starting over.
+ *
+ * <p>All downloads of a {@link HlsDownloader} share one {@link BandwidthLimiter}, so queuing a
+ * whole season respects the overall cap.
+ */
+public class HlsDownloader {
+
+  /** Default number of segments downloaded at the same time. */
+  public static final int DEFAULT_PARALLELISM = 6;
+
+  private static final String MANIFEST_HEADER = "bakashi-hls-manifest 1";
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  private final int parallelism;
+  private final BandwidthLimiter limiter;
+
+  /**
+   * Creates a downloader.
+   *
+   * @param parallelism How many segments are downloaded at the same time.
+   * @param limiter The bandwidth cap shared by every download.
+   */
+  public HlsDownloader(final int parallelism, final BandwidthLimiter limiter) {
+    this.parallelism = Math.max(1, parallelism);
+    this.limiter = limiter;
+  }
+
+  /**
+   * Downloads an HLS stream, resuming a previous interrupted download of the same output.
+   *
+   * @param playlistUrl The URL of the media (or master) playlist.
+   * @param referer The referer required by the CDN, may be {@code null}.
+   * @param output The file to write, only created once every segment is downloaded.
+   * @return The written file.
+   * @throws IOException If the playlist or a segment cannot be downloaded.
+   */
+  public Path download(final String playlistUrl, final String referer, final Path output)
+      throws IOException {
+    final HlsPlaylist playlist = HlsPlaylist.load(playlistUrl, referer);
+    final List<HlsPlaylist.Segment> segments = playlist.segments();
+    final Path partial = output.resolveSibling(output.getFileName() + ".part");
+    final Path manifestPath = output.resolveSibling(output.getFileName() + ".manifest");
+
+    final ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    try {
+      Manifest manifest = Manifest.read(manifestPath, playlistUrl, segments.size());
+      if (manifest == null || !Files.exists(partial)) {
+        final long[] sizes = probeSizes(segments, referer, executor);
+        manifest = Manifest.create(manifestPath, playlistUrl, sizes);
+        try (final RandomAccessFile file = new RandomAccessFile(partial.toFile(), "rw")) {
+          file.setLength(manifest.isSized() ? manifest.totalBytes() : 0);
+        }
+      }
+
+      if (manifest.isSized()) {
+        downloadAtOffsets(segments, referer, partial, manifest, executor);
+      } else {
+        downloadInOrder(segments, referer, partial, manifest, executor);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    Files.move(partial, output, StandardCopyOption.REPLACE_EXISTING);
+    Files.deleteIfExists(manifestPath);
+    return output;
+  }
+
+  private long[] probeSizes(
+      final List<HlsPlaylist.Segment> segments,
+      final String referer,
+      final ExecutorService executor)
+      throws IOException {
+    final List<Future<Long>> probes = new ArrayList<>();
+    for (final HlsPlaylist.Segment segment : segments) {
+      probes.add(executor.submit(() -> probeSize(segment, referer)));
+    }
+    final List<Long> lengths = awaitAll(probes);
+    final long[] sizes = new long[lengths.size()];
+    for (int i = 0; i < sizes.length; i++) {
+      sizes[i] = lengths.get(i);
+    }
+    return sizes;
+  }
+
+  private long probeSize(final HlsPlaylist.Segment segment, final String referer)
+      throws IOException {
+    final HttpRequest request =
+        HlsPlaylist.newRequest(segment.uri(), referer, HttpTransport.API_TIMEOUT)
+            .method("HEAD", HttpRequest.BodyPublishers.noBody())
+            .build();
+    final HttpResponse<Void> response =
+        HttpTransport.await(
+            HttpTransport.shared().sendAsync(request, HttpResponse.BodyHandlers.discarding()));
+    // learned from the GET instead, a failing HEAD (some CDNs only allow GET) is reported by it
+    if (response.statusCode() / 100 != 2) {
+      return Manifest.UNKNOWN_SIZE;
+    }
+    return response.headers().firstValueAsLong("Content-Length").orElse(Manifest.UNKNOWN_SIZE);
+  }
+
+  /** Downloads the segments not done yet concurrently, each one written at its final offset. */
+  private void downloadAtOffsets(
+      final List<HlsPlaylist.Segment> segments,
+      final String referer,
+      final Path partial,
+      final Manifest manifest,
+      final ExecutorService executor)
+      throws IOException {
+    try (final FileChannel channel = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+      final List<Future<Void>> downloads = new ArrayList<>();
+      for (final HlsPlaylist.Segment segment : segments) {
+        if (manifest.isDone(segment.index())) {
+          continue;
+        }
+        downloads.add(
+            executor.submit(
+                () -> {
+                  downloadSegment(segment, referer, channel, manifest);
+                  return null;
+                }));
+      }
+      awaitAll(downloads);
+      channel.force(false);
+    }
+  }
+
+  /**
+   * Downloads the segments not done yet in playlist order, appending each one to the output, for
+   * streams where the size of some segments is unknown. Up to {@link #parallelism} segments are
+   * fetched ahead into memory while the previous ones are written.
+   */
+  private void downloadInOrder(
+      final List<HlsPlaylist.Segment> segments,
+      final String referer,
+      final Path partial,
+      final Manifest manifest,
+      final ExecutorService executor)
+      throws IOException {
+    // in this mode the finished segments are always the first ones
+    int next = 0;
+    long position = 0;
+    while (next < segments.size() && manifest.isDone(next)) {
+      position += manifest.size(next);
+      next++;
+    }
+    try (final FileChannel channel = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+      // drops whatever an interrupted run wrote of the next segment
+      channel.truncate(position);
+      final Deque<Future<byte[]>> window = new ArrayDeque<>();
+      int fetched = next;
+      for (int index = next; index < segments.size(); index++) {
+        while (fetched < segments.size() && fetched - index < parallelism) {
+          final HlsPlaylist.Segment segment = segments.get(fetched++);
+          window.add(executor.submit(() -> fetchSegment(segment, referer, manifest)));
+        }
+        final byte[] body = awaitAll(List.of(window.poll())).get(0);
+        final ByteBuffer buffer = ByteBuffer.wrap(body);
+        while (buffer.hasRemaining()) {
+          position += channel.write(buffer, position);
+        }
+        channel.force(false);
+        manifest.markDone(index, body.length);
+      }
+    }
+  }
+
+  private byte[] fetchSegment(
+      final HlsPlaylist.Segment segment, final String referer, final Manifest manifest)
+      throws IOException, InterruptedException {
+    final long expected = manifest.size(segment.index());
+    final ByteArrayOutputStream output =
+        new ByteArrayOutputStream(expected > 0 ? Math.toIntExact(expected) : CHUNK_SIZE);
+    try (final InputStream body = openSegment(segment, referer)) {
+      final byte[] chunk = new byte[CHUNK_SIZE];
+      int read;
+      while ((read = body.read(chunk)) != -1) {
+        limiter.acquire(read);
+        output.write(chunk, 0, read);
+      }
+    }
+    if (expected != Manifest.UNKNOWN_SIZE && output.size() != expected) {
+      throw new IOException("Segment does not have the announced size: " + segment.uri());
+    }
+    return output.toByteArray();
+  }
+
+  private static InputStream openSegment(final HlsPlaylist.Segment segment, final String referer)
+      throws IOException {
+    final HttpRequest request =
+        HlsPlaylist.newRequest(segment.uri(), referer, HttpTransport.DOWNLOAD_TIMEOUT).build();
+    final HttpResponse<InputStream> response =
+        HttpTransport.await(
+            HttpTransport.shared().sendAsync(request, HttpResponse.BodyHandlers.ofInputStream()));
+    if (response.statusCode() / 100 != 2) {
+      response.body().close();
+      throw new HttpStatusException(response.statusCode(), segment.uri().toString());
+    }
+    return response.body();
+  }
+
+  private void downloadSegment(
+      final HlsPlaylist.Segment segment,
+      final String referer,
+      final FileChannel channel,
+      final Manifest manifest)
+      throws IOException, InterruptedException {
+    final long expected = manifest.size(segment.index());
+    long position = manifest.offset(segment.index());
+    long written = 0;
+    try (final InputStream body = openSegment(segment, referer)) {
+      final byte[] chunk = new byte[CHUNK_SIZE];
+      int read;
+      while ((read = body.read(chunk)) != -1) {
+        if (written + read > expected) {
+          throw new IOException("Segment is larger than announced: " + segment.uri());
+        }
+        limiter.acquire(read);
+        final ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, read);
+        while (buffer.hasRemaining()) {
+          position += channel.write(buffer, position);
+        }
+        written += read;
+      }
+    }
+    if (written != expected) {
+      throw new IOException("Segment is shorter than announced: " + segment.uri());
+    }
+    // the segment must be on disk before the manifest says so
+    channel.force(false);
+    manifest.markDone(segment.index(), written);
+  }
+
+  private static <T> List<T> awaitAll(final List<Future<T>> futures) throws IOException {
+    try {
+      final List<T> results = new ArrayList<>(futures.size());
+      for (final Future<T> future : futures) {
+        results.add(future.get());
+      }
+      return results;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while downloading", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException ioException) {
+        throw ioException;
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * The on-disk record of a download: the playlist it belongs to, the size of every segment, and
+   * one {@code done <index>} line appended for each segment fully written. A size unknown when the
+   * download started is written as {@value #UNKNOWN_SIZE}, and the actual one is appended along
+   * with the {@code done} line of its segment.
+   */
+  private static final class Manifest {
+
+    static final long UNKNOWN_SIZE = -1;
+
+    private final Path path;
+    private final long[] sizes;
+    private final long[] offsets;
+    private final boolean sized;
+    private final BitSet done;
+
+    private Manifest(final Path path, final long[] sizes, final BitSet done) {
+      this.path = path;
+      this.sizes = sizes;
+      this.done = done;
+      this.sized = Arrays.stream(sizes).noneMatch(size -> size == UNKNOWN_SIZE);
+      this.offsets = new long[sizes.length];
+      for (int i = 1; i < sizes.length && sized; i++) {
+        offsets[i] = offsets[i - 1] + sizes[i - 1];
+      }
+    }
+
+    static Manifest create(final Path path, final String playlistUrl, final long[] sizes)
+        throws IOException {
+      try (final BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+        writer.write(MANIFEST_HEADER + "\n");
+        writer.write("url " + playlistUrl + "\n");
+        writer.write("segments " + sizes.length + "\n");
+        for (int i = 0; i < sizes.length; i++) {
+          writer.write("size " + i + " " + sizes[i] + "\n");
+        }
+      }
+      return new Manifest(path, sizes, new BitSet(sizes.length));
+    }
+
+    /** Reads a manifest, returning {@code null} if it is missing or belongs to another stream. */
+    static Manifest read(final Path path, final String playlistUrl, final int segmentCount) {
+      if (!Files.exists(path)) {
+        return null;
+      }
+      try {
+        final List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        if (lines.size() < 3
+            || !MANIFEST_HEADER.equals(lines.get(0))
+            || !lines.get(1).equals("url " + playlistUrl)
+            || !lines.get(2).equals("segments " + segmentCount)) {
+          return null;
+        }
+        final long[] sizes = new long[segmentCount];
+        final BitSet sized = new BitSet(segmentCount);
+        final BitSet done = new BitSet(segmentCount);
+        for (final String line : lines.subList(3, lines.size())) {
+          final String[] parts = line.split(" ");
+          if (parts[0].equals("size") && parts.length == 3) {
+            // a size learned while downloading comes after the unknown one
+            sizes[Integer.parseInt(parts[1])] = Long.parseLong(parts[2]);
+            sized.set(Integer.parseInt(parts[1]));
+          } else if (parts[0].equals("done") && parts.length == 2) {
+            done.set(Integer.parseInt(parts[1]));
+          }
+        }
+        return sized.cardinality() == segmentCount ? new Manifest(path, sizes, done) : null;
+      } catch (IOException | RuntimeException e) {
+        return null;
+      }
+    }
+
+    /** Checks if the size of every segment is known, i.e the output can be laid out up front. */
+    boolean isSized() {
+      return sized;
+    }
+
+    synchronized long size(final int index) {
+      return sizes[index];
+    }
+
+    /** The offset of a segment in the output, only known when {@link #isSized()}. */
+    long offset(final int index) {
+      return offsets[index];
+    }
+
+    long totalBytes() {
+      return sizes.length == 0 ? 0 : offsets[sizes.length - 1] + sizes[sizes.length - 1];
+    }
+
+    synchronized boolean isDone(final int index) {
+      return done.get(index);
+    }
+
+    synchronized void markDone(final int index, final long size) throws IOException {
+      final String learned =
+          sizes[index] == UNKNOWN_SIZE ? "size " + index + " " + size + "\n" : "";
+      sizes[index] = size;
+      done.set(index);
+      Files.writeString(
+          path,
+          learned + "done " + index + "\n",
+          StandardCharsets.UTF_8,
+          StandardOpenOption.APPEND);
+    }
+  }
+}
@@ -0,0 +1,208 @@
+package dev.cwby.bakashi.hls;
+
+import dev.cwby.bakashi.net.HttpStatusException;
+import dev.cwby.bakashi.net.HttpTransport;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A parsed HLS media playlist.
+ *
+ * <p>Only what is needed to proxy or download a video is understood: the segment URIs and their
+ * durations, and the {@code URI="..."} attributes of tags such as {@code #EXT-X-KEY} and {@code
+ * #EXT-X-MAP}. Every other line is kept as is, so the playlist can be written back with only its
+ * URIs rewritten.
+ */
+public final class HlsPlaylist {
+
+  private static final Pattern URI_ATTRIBUTE = Pattern.compile("URI=\"([^\"]*)\"");
+  private static final Pattern BANDWIDTH = Pattern.compile("BANDWIDTH=(\\d+)");
+
+  /**
+   * A media segment of the playlist.
+   *
+   * @param index The position of the segment in the playlist, starting at 0.
+   * @param uri The absolute URI of the segment.
+   * @param duration The duration of the segment in seconds, from its {@code #EXTINF}.
+   */
+  public record Segment(int index, URI uri, double duration) {
+
+    /**
+     * Returns the last path element of the segment URI, e.g {@code seg-12.ts}.
+     *
+     * @return The file name of the segment, never empty.
+     */
+    public String fileName() {
+      final String path = uri.getPath() == null ? "" : uri.getPath();
+      final String name = path.substring(path.lastIndexOf('/') + 1);
+      return name.isEmpty() ? "segment.ts" : name;
+    }
+  }
+
+  private final URI base;
+  private final List<String> lines;
+  private final List<Segment> segments;
+
+  private HlsPlaylist(final URI base, final List<String> lines, final List<Segment> segments) {
+    this.base = base;
+    this.lines = lines;
+    this.segments = segments;
+  }
+
+  /**
+   * Downloads a playlist, following a master playlist to its highest bandwidth variant.
+   *
+   * @param url The URL of the media or master playlist.
+   * @param referer The referer required by the CDN, may be {@code null}.
+   * @return The media playlist.
+   * @throws IOException If a playlist cannot be fetched or contains no segment.
+   */
+  public static HlsPlaylist load(final String url, final String referer) throws IOException {
+    URI uri = URI.create(url);
+    for (int depth = 0; depth < 3; depth++) {
+      final String text = fetchText(uri, referer);
+      final URI variant = bestVariant(uri, text);
+      if (variant == null) {
+        final HlsPlaylist playlist = parse(uri, text);
+        if (playlist.segments().isEmpty()) {
+          throw new IOException("HLS playlist has no segments: " + uri);
+        }
+        return playlist;
+      }
+      uri = variant;
+    }
+    throw new IOException("Too many nested HLS master playlists: " + url);
+  }
+
+  /**
+   * Parses a media playlist.
+   *
+   * @param base The URI of the playlist, used to resolve relative URIs.
+   * @param text The content of the playlist.
+   * @return The parsed playlist.
+   */
+  public static HlsPlaylist parse(final URI base, final String text) {
+    final List<String> lines = new ArrayList<>();
+    final List<Segment> segments = new ArrayList<>();
+    double duration = 0;
+    for (final String rawLine : text.split("\r?\n")) {
+      final String line = rawLine.trim();
+      if (line.isEmpty()) {
+        continue;
+      }
+      lines.add(line);
+      if (line.startsWith("#EXTINF:")) {
+        duration = parseDuration(line);
+      } else if (!line.startsWith("#")) {
+        segments.add(new Segment(segments.size(), base.resolve(line), duration));
+        duration = 0;
+      }
+    }
+    return new HlsPlaylist(base, List.copyOf(lines), List.copyOf(segments));
+  }
+
+  /**
+   * Returns the media segments, in playback order.
+   *
+   * @return An immutable list of segments.
+   */
+  public List<Segment> segments() {
+    return segments;
+  }
+
+  /**
+   * Writes the playlist back with each segment line replaced, and every other URI made absolute.
+   *
+   * @param segmentUri Maps a segment to the URI written in its place.
+   * @return The rewritten playlist.
+   */
+  public String rewrite(final Function<Segment, String> segmentUri) {
+    final StringBuilder builder = new StringBuilder();
+    int segment = 0;
+    for (final String line : lines) {
+      if (!line.startsWith("#")) {
+        builder.append(segmentUri.apply(segments.get(segment++)));
+      } else {
+        final Matcher matcher = URI_ATTRIBUTE.matcher(line);
+        builder.append(
+            matcher.replaceAll(
+                match ->
+                    Matcher.quoteReplacement(
+                        "URI=\"" + base.resolve(match.group(1)).toString() + "\"")));
+      }
+      builder.append('\n');
+    }
+    return builder.toString();
+  }
+
+  private static URI bestVariant(final URI base, final String text) {
+    URI best = null;
+    long bestBandwidth = -1;
+    long bandwidth = -1;
+    boolean expectVariant = false;
+    for (final String rawLine : text.split("\r?\n")) {
+      final String line = rawLine.trim();
+      if (line.startsWith("#EXT-X-STREAM-INF")) {
+        final Matcher matcher = BANDWIDTH.matcher(line);
+        bandwidth = matcher.find() ? Long.parseLong(matcher.group(1)) : 0;
+        expectVariant = true;
+      } else if (expectVariant && !line.isEmpty() && !line.startsWith("#")) {
+        if (bandwidth > bestBandwidth) {
+          best = base.resolve(line);
+          bestBandwidth = bandwidth;
+        }
+        expectVariant = false;
+      }
+    }
+    return best;
+  }
+
+  private static double parseDuration(final String extinf) {
+    final int comma = extinf.indexOf(',');
+    final String value =
+        extinf.substring("#EXTINF:".length(), comma < 0 ? extinf.length() : comma);
+    try {
+      return Double.parseDouble(value.trim());
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Creates a request for a playlist or a segment, carrying the referer required by the CDN.
+   *
+   * @param uri The URI to request.
+   * @param referer The referer, may be {@code null}.
+   * @param timeout The maximum time to wait for the response headers.
+   * @return The request builder.
+   */
+  static HttpRequest.Builder newRequest(
+      final URI uri, final String referer, final Duration timeout) {
+    final HttpRequest.Builder request = HttpTransport.shared().newRequest(uri.toString(), timeout);
+    if (referer != null) {
+      request.header("Referer", referer);
+    }
+    return request;
+  }
+
+  private static String fetchText(final URI uri, final String referer) throws IOException {
+    final HttpResponse<String> response =
+        HttpTransport.await(
+            HttpTransport.shared()
+                .sendAsync(
+                    newRequest(uri, referer, HttpTransport.API_TIMEOUT).build(),
+                    HttpResponse.BodyHandlers.ofString()));
+    if (response.statusCode() / 100 != 2) {
+      throw new HttpStatusException(response.statusCode(), uri.toString());
+    }
+    return response.body();
+  }
+}
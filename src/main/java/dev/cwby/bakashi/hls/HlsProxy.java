@@ -0,0 +1,253 @@
+package dev.cwby.bakashi.hls;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import dev.cwby.bakashi.net.HttpStatusException;
+import dev.cwby.bakashi.net.HttpTransport;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A localhost HTTP proxy that serves an HLS stream to mpv from a prefetching segment buffer.
+ *
+ * <p>The upstream media playlist is rewritten so that every segment points back to the proxy. When
+ * mpv requests a segment, the proxy answers from its buffer (or fetches it right away on a miss)
+ * and starts fetching the next {@code prefetchSegments} segments in parallel, sending the referer
+ * required by the CDN. Segments are kept in memory up to {@code bufferBytes}, dropping the least
+ * recently requested ones first, so seeking back and stalls on a slow CDN edge are absorbed
+ * locally.
+ *
+ * <p>The upstream URL can point to any HTTP server, e.g a local stand-in HLS server in tests.
+ */
+public class HlsProxy implements AutoCloseable {
+
+  /** Default number of segments fetched ahead of the one being played. */
+  public static final int DEFAULT_PREFETCH_SEGMENTS = 4;
+
+  /** Default amount of segment data kept in memory. */
+  public static final long DEFAULT_BUFFER_BYTES = 128L * 1024 * 1024;
+
+  private static final String PLAYLIST_PATH = "/playlist.m3u8";
+  private static final String SEGMENT_PATH = "/segment/";
+
+  private final String playlistUrl;
+  private final String referer;
+  private final int prefetchSegments;
+  private final long bufferBytes;
+  private final ExecutorService fetchExecutor;
+
+  private final LinkedHashMap<Integer, CompletableFuture<byte[]>> buffer =
+      new LinkedHashMap<>(64, 0.75f, true);
+  private long bufferedBytes;
+
+  private HlsPlaylist playlist;
+  private HttpServer server;
+
+  /**
+   * Creates a proxy for an HLS stream, not started yet.
+   *
+   * @param playlistUrl The URL of the upstream media (or master) playlist.
+   * @param referer The referer required by the CDN, may be {@code null}.
+   * @param prefetchSegments How many segments to fetch ahead of the one requested.
+   * @param bufferBytes How much segment data to keep in memory.
+   */
+  public HlsProxy(
+      final String playlistUrl,
+      final String referer,
+      final int prefetchSegments,
+      final long bufferBytes) {
+    this.playlistUrl = playlistUrl;
+    this.referer = referer;
+    this.prefetchSegments = Math.max(0, prefetchSegments);
+    this.bufferBytes = bufferBytes;
+    this.fetchExecutor =
+        Executors.newFixedThreadPool(
+            Math.max(1, this.prefetchSegments),
+            runnable -> {
+              final Thread thread = new Thread(runnable, "bakashi-hls-prefetch");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /**
+   * Loads the upstream playlist and starts listening on an ephemeral localhost port.
+   *
+   * @return The local URL of the rewritten playlist, to be opened by the player.
+   * @throws IOException If the playlist cannot be loaded or the server cannot be started.
+   */
+  public String start() throws IOException {
+    this.playlist = HlsPlaylist.load(playlistUrl, referer);
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.setExecutor(
+        Executors.newCachedThreadPool(
+            runnable -> {
+              final Thread thread = new Thread(runnable, "bakashi-hls-proxy");
+              thread.setDaemon(true);
+              return thread;
+            }));
+    server.createContext("/", this::handle);
+    server.start();
+    // warm the buffer before the player even asks for the first segment
+    prefetchFrom(0);
+    return baseUrl() + PLAYLIST_PATH;
+  }
+
+  /**
+   * Returns the root URL of the running proxy.
+   *
+   * @return e.g {@code http://127.0.0.1:41234}.
+   */
+  public String baseUrl() {
+    if (server == null) {
+      throw new IllegalStateException("HLS proxy is not started.");
+    }
+    return "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  @Override
+  public void close() {
+    if (server != null) {
+      server.stop(0);
+      ((ExecutorService) server.getExecutor()).shutdownNow();
+    }
+    fetchExecutor.shutdownNow();
+    synchronized (buffer) {
+      buffer.clear();
+      bufferedBytes = 0;
+    }
+  }
+
+  private void handle(final HttpExchange exchange) throws IOException {
+    try (exchange) {
+      final String path = exchange.getRequestURI().getPath();
+      if (PLAYLIST_PATH.equals(path)) {
+        final String body =
+            playlist.rewrite(
+                segment -> SEGMENT_PATH + segment.index() + "/" + segment.fileName());
+        respond(
+            exchange,
+            200,
+            "application/vnd.apple.mpegurl",
+            body.getBytes(StandardCharsets.UTF_8));
+        return;
+      }
+
+      final int index = path.startsWith(SEGMENT_PATH) ? parseIndex(path) : -1;
+      if (index < 0 || index >= playlist.segments().size()) {
+        respond(exchange, 404, "text/plain", new byte[0]);
+        return;
+      }
+      final byte[] data;
+      try {
+        data = segment(index).join();
+      } catch (CompletionException e) {
+        final int status =
+            e.getCause() instanceof HttpStatusException statusException
+                ? statusException.getStatusCode()
+                : 502;
+        respond(exchange, status, "text/plain", new byte[0]);
+        return;
+      }
+      prefetchFrom(index + 1);
+      respond(exchange, 200, "video/mp2t", data);
+    }
+  }
+
+  private static void respond(
+      final HttpExchange exchange, final int status, final String contentType, final byte[] body)
+      throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    if ("HEAD".equalsIgnoreCase(exchange.getRequestMethod())) {
+      exchange.sendResponseHeaders(status, -1);
+      return;
+    }
+    exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+    if (body.length > 0) {
+      try (final OutputStream output = exchange.getResponseBody()) {
+        output.write(body);
+      }
+    }
+  }
+
+  private static int parseIndex(final String path) {
+    final String rest = path.substring(SEGMENT_PATH.length());
+    final int slash = rest.indexOf('/');
+    try {
+      return Integer.parseInt(slash < 0 ? rest : rest.substring(0, slash));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private void prefetchFrom(final int first) {
+    final int last = Math.min(playlist.segments().size(), first + prefetchSegments);
+    for (int index = first; index < last; index++) {
+      segment(index);
+    }
+  }
+
+  /** Returns the buffered or in-flight download of a segment, starting it if needed. */
+  private CompletableFuture<byte[]> segment(final int index) {
+    synchronized (buffer) {
+      final CompletableFuture<byte[]> buffered = buffer.get(index);
+      if (buffered != null && !buffered.isCompletedExceptionally()) {
+        return buffered;
+      }
+      final CompletableFuture<byte[]> download =
+          CompletableFuture.supplyAsync(() -> fetchSegment(index), fetchExecutor);
+      buffer.put(index, download);
+      download.thenAccept(data -> onSegmentBuffered(index, data.length));
+      return download;
+    }
+  }
+
+  private byte[] fetchSegment(final int index) {
+    final HlsPlaylist.Segment segment = playlist.segments().get(index);
+    try {
+      final HttpResponse<byte[]> response =
+          HttpTransport.await(
+              HttpTransport.shared()
+                  .sendAsync(
+                      HlsPlaylist.newRequest(
+                              segment.uri(), referer, HttpTransport.DOWNLOAD_TIMEOUT)
+                          .build(),
+                      HttpResponse.BodyHandlers.ofByteArray()));
+      if (response.statusCode() / 100 != 2) {
+        throw new HttpStatusException(response.statusCode(), segment.uri().toString());
+      }
+      return response.body();
+    } catch (IOException e) {
+      throw new CompletionException(e);
+    }
+  }
+
+  private void onSegmentBuffered(final int index, final int size) {
+    synchronized (buffer) {
+      bufferedBytes += size;
+      final Iterator<Map.Entry<Integer, CompletableFuture<byte[]>>> iterator =
+          buffer.entrySet().iterator();
+      while (bufferedBytes > bufferBytes && iterator.hasNext()) {
+        final Map.Entry<Integer, CompletableFuture<byte[]>> eldest = iterator.next();
+        if (eldest.getKey() == index || !eldest.getValue().isDone()) {
+          continue;
+        }
+        iterator.remove();
+        if (!eldest.getValue().isCompletedExceptionally()) {
+          bufferedBytes -= eldest.getValue().join().length;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package dev.cwby.bakashi.net;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Latency and concurrency bookkeeping of one host, shared by every request {@link HttpTransport}
+ * sends to it.
+ *
+ * <p>The latencies of the last {@link #WINDOW} responses are kept in a ring buffer, so percentiles
+ * follow the current state of the host rather than its whole history. Concurrency is bounded by a
+ * number of permits handed out asynchronously: a request waiting for one does not hold a thread.
+ */
+final class HostStats {
+
+  /** Number of recent latencies percentiles are computed over. */
+  static final int WINDOW = 128;
+
+  /** Number of latencies needed before any percentile is given. */
+  static final int MIN_SAMPLES = 16;
+
+  private final long[] latencies = new long[WINDOW];
+  private int samples;
+  private int next;
+
+  private final int maxConcurrent;
+  private int inFlight;
+  private final ArrayDeque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+
+  HostStats(final int maxConcurrent) {
+    this.maxConcurrent = maxConcurrent;
+  }
+
+  /**
+   * Records the latency of a response.
+   *
+   * @param nanos The time from sending the request to receiving the response headers.
+   */
+  synchronized void record(final long nanos) {
+    latencies[next] = nanos;
+    next = (next + 1) % WINDOW;
+    if (samples < WINDOW) {
+      samples++;
+    }
+  }
+
+  /**
+   * Returns the latency under which a fraction of the recent responses arrived.
+   *
+   * @param fraction The fraction, e.g {@code 0.95} for the p95.
+   * @return The latency in nanoseconds, or {@code -1} while fewer than {@link #MIN_SAMPLES} are
+   *     recorded.
+   */
+  synchronized long percentile(final double fraction) {
+    if (samples < MIN_SAMPLES) {
+      return -1;
+    }
+    final long[] sorted = Arrays.copyOf(latencies, samples);
+    Arrays.sort(sorted);
+    final int rank = (int) Math.ceil(fraction * samples) - 1;
+    return sorted[Math.max(0, Math.min(samples - 1, rank))];
+  }
+
+  /**
+   * Takes a permit, waiting for one to be released if all are in use. Waiters are served in order.
+   *
+   * @return A future completed once the permit is held, to be given back with {@link #release()}.
+   */
+  CompletableFuture<Void> acquire() {
+    synchronized (this) {
+      if (inFlight < maxConcurrent) {
+        inFlight++;
+        return CompletableFuture.completedFuture(null);
+      }
+      final CompletableFuture<Void> waiter = new CompletableFuture<>();
+      waiters.add(waiter);
+      return waiter;
+    }
+  }
+
+  /**
+   * Takes a permit only if one is free right away.
+   *
+   * @return {@code true} if the permit is held, to be given back with {@link #release()}.
+   */
+  synchronized boolean tryAcquire() {
+    if (inFlight < maxConcurrent) {
+      inFlight++;
+      return true;
+    }
+    return false;
+  }
+
+  /** Gives back a permit, handing it over to the oldest waiter if there is one. */
+  void release() {
+    final CompletableFuture<Void> waiter;
+    synchronized (this) {
+      waiter = waiters.poll();
+      if (waiter == null) {
+        inFlight--;
+        return;
+      }
+    }
+    // completed outside of the lock, the waiter goes on sending its request from here
+    waiter.complete(null);
+  }
+}
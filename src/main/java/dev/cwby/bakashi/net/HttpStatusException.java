@@ -0,0 +1,26 @@
+package dev.cwby.bakashi.net;
+
+import java.io.IOException;
+
+/** Thrown when a request completes with a status code other than the ones the caller expects. */
+public class HttpStatusException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final int statusCode;
+  private final String url;
+
+  public HttpStatusException(final int statusCode, final String url) {
+    super("HTTP " + statusCode + " returned by " + url);
+    this.statusCode = statusCode;
+    this.url = url;
+  }
+
+  public int getStatusCode() {
+    return statusCode;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+}
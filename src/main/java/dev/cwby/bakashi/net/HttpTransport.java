@@ -0,0 +1,593 @@
+package dev.cwby.bakashi.net;
+
+import dev.cwby.bakashi.Main;
+import dev.cwby.bakashi.profile.Profiler;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+
+/**
+ * The single HTTP stack shared by every scrapper and by the thumbnail fetcher.
+ *
+ * <p>All requests go through one {@link HttpClient} configured for HTTP/2, so connections (and
+ * their TLS sessions) are pooled and reused across the whole session instead of being opened for
+ * every page or thumbnail. Text responses are requested compressed and transparently decoded, and
+ * every request carries its own timeout.
+ *
+ * <p>Text resources can also be fetched through an on-disk {@link ResponseCache} under {@link
+ * Main#TEMP}, with a time to live chosen per call and conditional revalidation once it expires.
+ *
+ * <p>Every operation has an asynchronous variant returning a {@link CompletableFuture}, the
+ * blocking variants simply wait on it and unwrap the failure as an {@link IOException}.
+ *
+ * <p>The fetch methods also adapt to the latency of each host, tracked over its recent responses:
+ *
+ * <ul>
+ *   <li>At most {@link #MAX_REQUESTS_PER_HOST} requests are in flight to a host, the others wait
+ *       for a slot without holding a thread.
+ *   <li>A text request still unanswered past the p95 latency of its host is hedged: a duplicate is
+ *       sent if a slot is free, the first response wins and the other one is discarded.
+ *   <li>Connection failures, timeouts and {@code 429}/{@code 502}/{@code 503}/{@code 504} are
+ *       retried up to {@link #MAX_ATTEMPTS} times with a jittered exponential backoff. Every
+ *       attempt but the last times out after a few times the p95 of the host instead of the full
+ *       timeout.
+ * </ul>
+ */
+public final class HttpTransport {
+
+  /** Timeout used when opening a new connection. */
+  public static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+
+  /** Timeout for JSON API calls. */
+  public static final Duration API_TIMEOUT = Duration.ofSeconds(15);
+
+  /** Timeout for full HTML pages. */
+  public static final Duration PAGE_TIMEOUT = Duration.ofSeconds(20);
+
+  /** Timeout for images and other binary downloads. */
+  public static final Duration DOWNLOAD_TIMEOUT = Duration.ofSeconds(30);
+
+  /** Maximum number of requests in flight to the same host. */
+  public static final int MAX_REQUESTS_PER_HOST = 8;
+
+  /** Number of attempts of a request failing with a transient error. */
+  public static final int MAX_ATTEMPTS = 3;
+
+  /** Backoff before the first retry, doubled for every following one and jittered. */
+  private static final Duration RETRY_BASE_DELAY = Duration.ofMillis(250);
+
+  /** Latency percentile of a host after which a request to it is hedged. */
+  private static final double HEDGE_PERCENTILE = 0.95;
+
+  /** Shortest wait before hedging, so a fast host does not get every request twice. */
+  private static final Duration MIN_HEDGE_DELAY = Duration.ofMillis(50);
+
+  /** Every attempt but the last times out after this many times the p95 of the host. */
+  private static final int ATTEMPT_TIMEOUT_FACTOR = 4;
+
+  /** Shortest timeout of an attempt, whatever the p95 of the host. */
+  private static final Duration MIN_ATTEMPT_TIMEOUT = Duration.ofSeconds(2);
+
+  private static final String USER_AGENT = "Mozilla/5.0 (X11; Linux x86_64) bakashi-cli/1.0";
+
+  private static final HttpTransport SHARED =
+      new HttpTransport(
+          HttpClient.newBuilder()
+              .version(HttpClient.Version.HTTP_2)
+              .followRedirects(HttpClient.Redirect.NORMAL)
+              .connectTimeout(CONNECT_TIMEOUT)
+              .build());
+
+  private final HttpClient client;
+  private final ResponseCache cache;
+  private final ConcurrentHashMap<String, HostStats> hosts = new ConcurrentHashMap<>();
+
+  private HttpTransport(final HttpClient client) {
+    this(client, Paths.get(Main.TEMP, "http-cache"));
+  }
+
+  /**
+   * Creates a transport of its own, e.g to run against a local stand-in server.
+   *
+   * @param client The client sending the requests.
+   * @param cacheFolder The folder of the {@link ResponseCache}.
+   */
+  HttpTransport(final HttpClient client, final Path cacheFolder) {
+    this.client = client;
+    this.cache = new ResponseCache(cacheFolder);
+  }
+
+  /**
+   * Returns the transport shared by the whole application.
+   *
+   * @return The shared {@link HttpTransport}.
+   */
+  public static HttpTransport shared() {
+    return SHARED;
+  }
+
+  /**
+   * Creates a GET request builder with the default headers and the given timeout.
+   *
+   * @param url The URL to request.
+   * @param timeout The maximum time to wait for the response headers.
+   * @return A request builder that can be further customized.
+   */
+  public HttpRequest.Builder newRequest(final String url, final Duration timeout) {
+    return HttpRequest.newBuilder(URI.create(url)).timeout(timeout).header("User-Agent", USER_AGENT);
+  }
+
+  /**
+   * Sends a request asynchronously, leaving the status code handling to the caller.
+   *
+   * <p>The request is sent as is, without the per-host limit, hedging and retries of the fetch
+   * methods, for callers that handle their own, like the HLS segment fetchers.
+   *
+   * @param request The request to send.
+   * @param handler The body handler of the response.
+   * @return A future completed with the response.
+   */
+  public <T> CompletableFuture<HttpResponse<T>> sendAsync(
+      final HttpRequest request, final HttpResponse.BodyHandler<T> handler) {
+    return client.sendAsync(request, handler);
+  }
+
+  /**
+   * Asynchronously fetches a text resource, returning its decoded body as a stream.
+   *
+   * @param url The URL to fetch.
+   * @param timeout The maximum time to wait for the response headers.
+   * @return A future completed with the decompressed body, which the caller must close.
+   */
+  public CompletableFuture<InputStream> getStreamAsync(final String url, final Duration timeout) {
+    final HttpRequest request =
+        newRequest(url, timeout).header("Accept-Encoding", "gzip, deflate").build();
+    return exchange(request, HttpResponse.BodyHandlers.ofInputStream(), HttpTransport::closeQuietly)
+        .thenApply(response -> decodeBody(response, url));
+  }
+
+  /**
+   * Fetches a text resource, returning its decoded body as a stream.
+   *
+   * @param url The URL to fetch.
+   * @param timeout The maximum time to wait for the response headers.
+   * @return The decompressed body, which the caller must close.
+   * @throws IOException If the request fails or returns a non 2xx status.
+   */
+  public InputStream getStream(final String url, final Duration timeout) throws IOException {
+    return await(getStreamAsync(url, timeout));
+  }
+
+  /**
+   * Asynchronously fetches a text resource as a UTF-8 string.
+   *
+   * @param url The URL to fetch.
+   * @param timeout The maximum time to wait for the response headers.
+   * @return A future completed with the body.
+   */
+  public CompletableFuture<String> getStringAsync(final String url, final Duration timeout) {
+    return getStreamAsync(url, timeout)
+        .thenApply(
+            body -> {
+              try (body) {
+                return new String(body.readAllBytes(), StandardCharsets.UTF_8);
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            });
+  }
+
+  /**
+   * Fetches a text resource as a UTF-8 string.
+   *
+   * @param url The URL to fetch.
+   * @param timeout The maximum time to wait for the response headers.
+   * @return The body.
+   * @throws IOException If the request fails or returns a non 2xx status.
+   */
+  public String getString(final String url, final Duration timeout) throws IOException {
+    return await(getStringAsync(url, timeout));
+  }
+
+  /**
+   * Asynchronously fetches a text resource through the on-disk {@link ResponseCache}.
+   *
+   * <p>A fresh cached response is returned without any network access. A stale one is revalidated
+   * with {@code If-None-Match}/{@code If-Modified-Since}, so an unchanged resource only costs a
+   * {@code 304}. If the revalidation fails, the stale response is served instead of the error.
+   *
+   * @param url The URL to fetch.
+   * @param timeout The maximum time to wait for the response headers.
+   * @param ttl How long a new or revalidated response is considered fresh.
+   * @return A future completed with the decompressed body, which the caller must close.
+   */
+  public CompletableFuture<InputStream> getCachedStreamAsync(
+      final String url, final Duration timeout, final Duration ttl) {
+    final ResponseCache.Entry cached = cache.lookup(url);
+    if (cached != null && cached.isFresh()) {
+      Profiler.count(Profiler.Counter.RESPONSE_CACHE_HITS, 1);
+      return CompletableFuture.supplyAsync(() -> openCached(cached));
+    }
+
+    final HttpRequest.Builder builder =
+        newRequest(url, timeout).header("Accept-Encoding", "gzip, deflate");
+    if (cached != null && !cached.etag().isEmpty()) {
+      builder.header("If-None-Match", cached.etag());
+    }
+    if (cached != null && !cached.lastModified().isEmpty()) {
+      builder.header("If-Modified-Since", cached.lastModified());
+    }
+
+    final CompletableFuture<InputStream> response =
+        exchange(
+                builder.build(),
+                HttpResponse.BodyHandlers.ofInputStream(),
+                HttpTransport::closeQuietly)
+            .thenApply(
+                received -> {
+                  final long expiresAt = System.currentTimeMillis() + ttl.toMillis();
+                  if (received.statusCode() == 304 && cached != null) {
+                    Profiler.count(Profiler.Counter.RESPONSE_CACHE_REVALIDATIONS, 1);
+                    closeQuietly(received.body());
+                    cache.setExpiry(url, expiresAt);
+                    return openCached(cached);
+                  }
+                  Profiler.count(Profiler.Counter.RESPONSE_CACHE_MISSES, 1);
+                  try (final InputStream body = decodeBody(received, url)) {
+                    final ResponseCache.Entry stored =
+                        cache.store(
+                            url,
+                            received.headers().firstValue("ETag").orElse(null),
+                            received.headers().firstValue("Last-Modified").orElse(null),
+                            expiresAt,
+                            body);
+                    return openCached(stored);
+                  } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                  }
+                });
+    if (cached == null) {
+      return response;
+    }
+    return response.exceptionally(throwable -> openCached(cached));
+  }
+
+  /**
+   * Fetches a text resource through the on-disk {@link ResponseCache}.
+   *
+   * @param url The URL to fetch.
+   * @param timeout The maximum time to wait for the response headers.
+   * @param ttl How long a new or revalidated response is considered fresh.
+   * @return The decompressed body, which the caller must close.
+   * @throws IOException If the request fails and nothing is cached for the URL.
+   * @see #getCachedStreamAsync(String, Duration, Duration)
+   */
+  public InputStream getCachedStream(final String url, final Duration timeout, final Duration ttl)
+      throws IOException {
+    return await(getCachedStreamAsync(url, timeout, ttl));
+  }
+
+  /**
+   * Changes how long the cached response of a URL stays fresh, counting from now.
+   *
+   * <p>Used when the content of a response tells it will not change anymore, e.g the episode list
+   * of a finished show.
+   *
+   * @param url The URL of the cached response.
+   * @param ttl The new time to live of the response.
+   */
+  public void extendCache(final String url, final Duration ttl) {
+    cache.setExpiry(url, System.currentTimeMillis() + ttl.toMillis());
+  }
+
+  /**
+   * Fetches and parses an HTML document with Jsoup.
+   *
+   * @param url The URL to fetch.
+   * @param timeout The maximum time to wait for the response headers.
+   * @return The parsed {@link Document}.
+   * @throws IOException If the request fails or returns a non 2xx status.
+   */
+  public Document getDocument(final String url, final Duration timeout) throws IOException {
+    try (final InputStream body = getStream(url, timeout)) {
+      return Jsoup.parse(body, null, url);
+    }
+  }
+
+  /**
+   * Asynchronously streams a binary resource into a file, without buffering it in memory.
+   *
+   * @param url The URL to fetch.
+   * @param target The file to write, created or truncated.
+   * @param timeout The maximum time to wait for the response headers.
+   * @return A future completed with the written file.
+   */
+  public CompletableFuture<Path> downloadAsync(
+      final String url, final Path target, final Duration timeout) {
+    // truncated, a retry may write a shorter body than the failed attempt
+    final HttpResponse.BodyHandler<Path> handler =
+        HttpResponse.BodyHandlers.ofFile(
+            target,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+    return exchange(newRequest(url, timeout).build(), handler, null)
+        .thenApply(
+            response -> {
+              if (response.statusCode() / 100 != 2) {
+                throw new CompletionException(new HttpStatusException(response.statusCode(), url));
+              }
+              if (Profiler.isEnabled()) {
+                try {
+                  Profiler.count(Profiler.Counter.BYTES_FETCHED, Files.size(response.body()));
+                } catch (IOException e) {
+                  // only the counter misses it
+                }
+              }
+              return response.body();
+            });
+  }
+
+  /**
+   * Streams a binary resource into a file, without buffering it in memory.
+   *
+   * @param url The URL to fetch.
+   * @param target The file to write, created or truncated.
+   * @param timeout The maximum time to wait for the response headers.
+   * @return The written file.
+   * @throws IOException If the request fails or returns a non 2xx status.
+   */
+  public Path download(final String url, final Path target, final Duration timeout)
+      throws IOException {
+    return await(downloadAsync(url, target, timeout));
+  }
+
+  /**
+   * Sends a request under the per-host limit, retrying transient failures and hedging it when a
+   * losing response can be discarded.
+   *
+   * @param request The request, only idempotent ones are sent through here.
+   * @param handler The body handler of the response.
+   * @param discard Releases the body of a response that lost a hedge or is retried, {@code null}
+   *     if the body cannot be received twice, which disables hedging.
+   * @return A future completed with the response of the last attempt.
+   */
+  private <T> CompletableFuture<HttpResponse<T>> exchange(
+      final HttpRequest request,
+      final HttpResponse.BodyHandler<T> handler,
+      final Consumer<T> discard) {
+    final HostStats host =
+        hosts.computeIfAbsent(
+            String.valueOf(request.uri().getHost()),
+            name -> new HostStats(MAX_REQUESTS_PER_HOST));
+    return attempt(request, handler, discard, host, 1);
+  }
+
+  private <T> CompletableFuture<HttpResponse<T>> attempt(
+      final HttpRequest request,
+      final HttpResponse.BodyHandler<T> handler,
+      final Consumer<T> discard,
+      final HostStats host,
+      final int attempt) {
+    final boolean last = attempt >= MAX_ATTEMPTS;
+    final HttpRequest timed = last ? request : withAttemptTimeout(request, host);
+    final CompletableFuture<HttpResponse<T>> sent =
+        discard == null
+            ? host.acquire().thenCompose(permit -> sendHolding(timed, handler, host))
+            : hedged(timed, handler, discard, host);
+    return sent.handle(
+            (response, throwable) -> {
+              if (last || !isTransient(response, throwable)) {
+                return throwable == null
+                    ? CompletableFuture.completedFuture(response)
+                    : CompletableFuture.<HttpResponse<T>>failedFuture(throwable);
+              }
+              if (response != null && discard != null) {
+                discard.accept(response.body());
+              }
+              Profiler.count(Profiler.Counter.HTTP_RETRIES, 1);
+              return CompletableFuture.runAsync(
+                      () -> {},
+                      CompletableFuture.delayedExecutor(backoff(attempt), TimeUnit.MILLISECONDS))
+                  .thenCompose(ignored -> attempt(request, handler, discard, host, attempt + 1));
+            })
+        .thenCompose(Function.identity());
+  }
+
+  /**
+   * Sends a request, and a duplicate of it once the first one runs past the p95 latency of the
+   * host, completing with whichever response arrives first. Both must fail, or return a retriable
+   * status, for the request to fail.
+   */
+  private <T> CompletableFuture<HttpResponse<T>> hedged(
+      final HttpRequest request,
+      final HttpResponse.BodyHandler<T> handler,
+      final Consumer<T> discard,
+      final HostStats host) {
+    return host.acquire()
+        .thenCompose(
+            permit -> {
+              final long p95 = host.percentile(HEDGE_PERCENTILE);
+              final CompletableFuture<HttpResponse<T>> primary =
+                  sendHolding(request, handler, host);
+              if (p95 < 0) {
+                return primary;
+              }
+
+              final CompletableFuture<HttpResponse<T>> winner = new CompletableFuture<>();
+              final AtomicInteger running = new AtomicInteger(1);
+              final BiConsumer<HttpResponse<T>, Throwable> settle =
+                  (response, throwable) -> {
+                    final boolean failed =
+                        throwable != null || isRetriableStatus(response.statusCode());
+                    if (failed && running.decrementAndGet() > 0) {
+                      // the other request may still succeed
+                      if (response != null) {
+                        discard.accept(response.body());
+                      }
+                    } else if (throwable != null) {
+                      winner.completeExceptionally(throwable);
+                    } else if (!winner.complete(response)) {
+                      discard.accept(response.body());
+                    }
+                  };
+              primary.whenComplete(settle);
+
+              final long delay = Math.max(p95, MIN_HEDGE_DELAY.toNanos());
+              CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS)
+                  .execute(
+                      () -> {
+                        // a hedge only takes a free slot, it never queues behind other requests
+                        if (winner.isDone() || !host.tryAcquire()) {
+                          return;
+                        }
+                        running.incrementAndGet();
+                        Profiler.count(Profiler.Counter.HTTP_HEDGES, 1);
+                        sendHolding(request, handler, host).whenComplete(settle);
+                      });
+              return winner;
+            });
+  }
+
+  /** Sends a request for which a permit of the host is held, releasing it with the response. */
+  private <T> CompletableFuture<HttpResponse<T>> sendHolding(
+      final HttpRequest request, final HttpResponse.BodyHandler<T> handler, final HostStats host) {
+    final long start = System.nanoTime();
+    final CompletableFuture<HttpResponse<T>> response;
+    try {
+      response = client.sendAsync(request, handler);
+    } catch (RuntimeException e) {
+      host.release();
+      throw e;
+    }
+    return response.whenComplete(
+        (received, throwable) -> {
+          host.release();
+          if (received != null) {
+            host.record(System.nanoTime() - start);
+          }
+        });
+  }
+
+  /** Shortens the timeout of an attempt to a few times the p95 of the host, once it is known. */
+  private static HttpRequest withAttemptTimeout(final HttpRequest request, final HostStats host) {
+    final long p95 = host.percentile(HEDGE_PERCENTILE);
+    if (p95 < 0 || request.timeout().isEmpty()) {
+      return request;
+    }
+    final Duration timeout = request.timeout().get();
+    Duration adaptive = Duration.ofNanos(p95 * ATTEMPT_TIMEOUT_FACTOR);
+    if (adaptive.compareTo(MIN_ATTEMPT_TIMEOUT) < 0) {
+      adaptive = MIN_ATTEMPT_TIMEOUT;
+    }
+    if (adaptive.compareTo(timeout) >= 0) {
+      return request;
+    }
+    return HttpRequest.newBuilder(request, (name, value) -> true).timeout(adaptive).build();
+  }
+
+  private static boolean isTransient(final HttpResponse<?> response, final Throwable throwable) {
+    if (throwable != null) {
+      return unwrap(throwable) instanceof IOException;
+    }
+    return isRetriableStatus(response.statusCode());
+  }
+
+  private static boolean isRetriableStatus(final int status) {
+    return status == 429 || status == 502 || status == 503 || status == 504;
+  }
+
+  /** Full jitter: a random wait up to the exponential backoff of the attempt, in milliseconds. */
+  static long backoff(final int attempt) {
+    final long ceiling = RETRY_BASE_DELAY.toMillis() << (attempt - 1);
+    return ThreadLocalRandom.current().nextLong(ceiling + 1);
+  }
+
+  /**
+   * Waits for a future created by this transport, unwrapping its failure.
+   *
+   * @param future The future to wait for.
+   * @return The value of the future.
+   * @throws IOException If the future failed, or the thread was interrupted while waiting.
+   */
+  public static <T> T await(final CompletableFuture<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the response", e);
+    } catch (ExecutionException e) {
+      throw unwrap(e.getCause());
+    }
+  }
+
+  private static IOException unwrap(Throwable cause) {
+    while ((cause instanceof CompletionException || cause instanceof UncheckedIOException)
+        && cause.getCause() != null) {
+      cause = cause.getCause();
+    }
+    if (cause instanceof IOException ioException) {
+      return ioException;
+    }
+    return new IOException(cause);
+  }
+
+  private InputStream openCached(final ResponseCache.Entry entry) {
+    try {
+      return cache.openBody(entry);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static void closeQuietly(final InputStream stream) {
+    try {
+      stream.close();
+    } catch (IOException e) {
+      // nothing left to read from it anyway
+    }
+  }
+
+  private static InputStream decodeBody(final HttpResponse<InputStream> response, final String url) {
+    final InputStream body = Profiler.countBytes(response.body());
+    try {
+      if (response.statusCode() / 100 != 2) {
+        body.close();
+        throw new HttpStatusException(response.statusCode(), url);
+      }
+      final String encoding = response.headers().firstValue("Content-Encoding").orElse("");
+      return switch (encoding.toLowerCase()) {
+        case "gzip", "x-gzip" -> new GZIPInputStream(body, 8192);
+        case "deflate" -> new InflaterInputStream(body);
+        default -> body;
+      };
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,174 @@
+package dev.cwby.bakashi.net;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * On-disk cache of HTTP response bodies, keyed by request URL.
+ *
+ * <p>Each response is stored in a single {@code <sha1(url)>.cache} file made of one header line
+ * followed by the decoded body. The header holds the expiry time as a fixed-width number, so it can
+ * be updated in place after a {@code 304 Not Modified}, followed by the {@code ETag} and {@code
+ * Last-Modified} validators used to revalidate the entry once it is stale.
+ */
+public class ResponseCache {
+
+  private static final String EXTENSION = ".cache";
+  private static final int EXPIRY_WIDTH = 20;
+
+  private final Path folder;
+
+  /**
+   * A cached response.
+   *
+   * @param file The file holding the header and the body.
+   * @param expiresAt The epoch millisecond after which the entry must be revalidated.
+   * @param etag The {@code ETag} returned with the response, empty if none.
+   * @param lastModified The {@code Last-Modified} returned with the response, empty if none.
+   * @param bodyOffset The position of the first body byte in the file.
+   */
+  public record Entry(
+      Path file, long expiresAt, String etag, String lastModified, long bodyOffset) {
+
+    public boolean isFresh() {
+      return System.currentTimeMillis() < expiresAt;
+    }
+  }
+
+  public ResponseCache(final Path folder) {
+    this.folder = folder;
+  }
+
+  /**
+   * Looks up the cached response of a URL, fresh or not.
+   *
+   * @param url The request URL.
+   * @return The cached entry, or {@code null} if there is none or it cannot be read.
+   */
+  public Entry lookup(final String url) {
+    final Path file = fileOf(url);
+    if (!Files.exists(file)) {
+      return null;
+    }
+    try (final InputStream input = new BufferedInputStream(Files.newInputStream(file), 512)) {
+      final ByteArrayOutputStream header = new ByteArrayOutputStream(128);
+      int read;
+      while ((read = input.read()) != -1 && read != '\n') {
+        header.write(read);
+      }
+      final String[] fields = header.toString(StandardCharsets.UTF_8).split("\t", -1);
+      if (read == -1 || fields.length != 3) {
+        return null;
+      }
+      return new Entry(
+          file, Long.parseLong(fields[0].trim()), fields[1], fields[2], header.size() + 1L);
+    } catch (IOException | NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Opens the body of a cached response.
+   *
+   * @param entry The entry returned by {@link #lookup(String)} or {@link #store}.
+   * @return A stream positioned on the first body byte, which the caller must close.
+   * @throws IOException If the file cannot be read.
+   */
+  public InputStream openBody(final Entry entry) throws IOException {
+    final InputStream input = Files.newInputStream(entry.file());
+    input.skipNBytes(entry.bodyOffset());
+    return input;
+  }
+
+  /**
+   * Stores a response, replacing any previous entry atomically.
+   *
+   * @param url The request URL.
+   * @param etag The {@code ETag} of the response, may be {@code null}.
+   * @param lastModified The {@code Last-Modified} of the response, may be {@code null}.
+   * @param expiresAt The epoch millisecond after which the entry must be revalidated.
+   * @param body The decoded body, read until its end but not closed.
+   * @return The stored entry.
+   * @throws IOException If the entry cannot be written.
+   */
+  public Entry store(
+      final String url,
+      final String etag,
+      final String lastModified,
+      final long expiresAt,
+      final InputStream body)
+      throws IOException {
+    Files.createDirectories(folder);
+    final Path file = fileOf(url);
+    final Path partial = Files.createTempFile(folder, file.getFileName().toString(), ".part");
+    final String header =
+        formatExpiry(expiresAt) + "\t" + sanitize(etag) + "\t" + sanitize(lastModified) + "\n";
+    try {
+      try (final OutputStream output = Files.newOutputStream(partial)) {
+        output.write(header.getBytes(StandardCharsets.UTF_8));
+        body.transferTo(output);
+      }
+      Files.move(
+          partial, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(partial);
+    }
+    return new Entry(
+        file,
+        expiresAt,
+        sanitize(etag),
+        sanitize(lastModified),
+        header.getBytes(StandardCharsets.UTF_8).length);
+  }
+
+  /**
+   * Changes the expiry time of a cached response in place, e.g after a successful revalidation.
+   *
+   * @param url The request URL.
+   * @param expiresAt The new epoch millisecond after which the entry must be revalidated.
+   * @return {@code true} if an entry was updated.
+   */
+  public boolean setExpiry(final String url, final long expiresAt) {
+    final Path file = fileOf(url);
+    if (!Files.exists(file)) {
+      return false;
+    }
+    try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(formatExpiry(expiresAt).getBytes(StandardCharsets.US_ASCII)), 0);
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private Path fileOf(final String url) {
+    try {
+      final byte[] hash =
+          MessageDigest.getInstance("SHA-1").digest(url.getBytes(StandardCharsets.UTF_8));
+      return folder.resolve(HexFormat.of().formatHex(hash) + EXTENSION);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 is not available", e);
+    }
+  }
+
+  private static String formatExpiry(final long expiresAt) {
+    return String.format("%0" + EXPIRY_WIDTH + "d", expiresAt);
+  }
+
+  private static String sanitize(final String value) {
+    return value == null ? "" : value.replace('\t', ' ').replace('\n', ' ');
+  }
+}
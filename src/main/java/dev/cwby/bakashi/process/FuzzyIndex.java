@@ -0,0 +1,243 @@
+package dev.cwby.bakashi.process;
+
+import java.util.Arrays;
+
+/**
+ * An incremental fuzzy matcher over a growing list of candidates, stored in primitive arrays.
+ *
+ * <p>The lowercased text of every candidate is kept back to back in a single {@code char[]}, so
+ * scoring walks plain arrays without touching a {@link String}. Ranked matches are packed as {@code
+ * (inverted score << 32) | id} in a {@code long[]}, sorted with a primitive sort.
+ *
+ * <p>The matching is incremental in both directions: a candidate added while a query is active is
+ * scored alone and inserted in place, and a query that only extends the previous one (the usual
+ * case while typing) only rescores the previous matches instead of the whole list.
+ *
+ * <p>Like fzf, the query is split on spaces into terms that must all match, each term being a
+ * case-insensitive subsequence of the candidate. Consecutive characters and characters starting a
+ * word score higher, gaps lower. Equal scores keep the order of insertion, or its reverse for an
+ * index listing the latest candidates first.
+ */
+final class FuzzyIndex {
+
+  private static final int SCORE_MATCH = 16;
+  private static final int BONUS_CONSECUTIVE = 8;
+  private static final int BONUS_WORD_START = 8;
+  private static final int PENALTY_GAP = 1;
+  private static final int MAX_SCORE = Integer.MAX_VALUE / 2;
+
+  private final boolean latestFirst;
+  private char[] chars = new char[4096];
+  private int[] starts = new int[65];
+  private int size;
+
+  private String query = "";
+  private char[][] terms = new char[0][];
+  private long[] ranked = new long[64];
+  private int matchCount;
+
+  /** Creates an empty index, listing the candidates in the order of insertion. */
+  FuzzyIndex() {
+    this(false);
+  }
+
+  /**
+   * Creates an empty index.
+   *
+   * @param latestFirst {@code true} to list the candidates added last first when their scores are
+   *     equal, e.g every candidate while the query is empty.
+   */
+  FuzzyIndex(final boolean latestFirst) {
+    this.latestFirst = latestFirst;
+  }
+
+  /**
+   * Adds a candidate, ranking it against the current query.
+   *
+   * @param text The text matched against the queries.
+   * @return The id of the candidate, its position in the order of insertion.
+   */
+  int add(final String text) {
+    final int id = size;
+    final int start = starts[id];
+    if (start + text.length() > chars.length) {
+      chars = Arrays.copyOf(chars, Math.max(chars.length * 2, start + text.length()));
+    }
+    for (int i = 0; i < text.length(); i++) {
+      chars[start + i] = Character.toLowerCase(text.charAt(i));
+    }
+    if (id + 2 > starts.length) {
+      starts = Arrays.copyOf(starts, starts.length * 2);
+    }
+    starts[id + 1] = start + text.length();
+    size++;
+
+    final int score = score(id);
+    if (score >= 0) {
+      insert(pack(score, id));
+    }
+    return id;
+  }
+
+  /**
+   * Changes the query, rescoring only the previous matches when the new query extends the old one.
+   *
+   * @param newQuery The text typed by the user.
+   */
+  void setQuery(final String newQuery) {
+    final boolean narrowing = newQuery.startsWith(query);
+    this.query = newQuery;
+    this.terms =
+        Arrays.stream(newQuery.toLowerCase().split(" "))
+            .filter(term -> !term.isEmpty())
+            .map(String::toCharArray)
+            .toArray(char[][]::new);
+
+    int count = 0;
+    if (narrowing) {
+      for (int i = 0; i < matchCount; i++) {
+        final int id = idOf(ranked[i]);
+        final int score = score(id);
+        if (score >= 0) {
+          ranked[count++] = pack(score, id);
+        }
+      }
+    } else {
+      if (ranked.length < size) {
+        ranked = new long[Math.max(size, ranked.length * 2)];
+      }
+      for (int id = 0; id < size; id++) {
+        final int score = score(id);
+        if (score >= 0) {
+          ranked[count++] = pack(score, id);
+        }
+      }
+    }
+    matchCount = count;
+    Arrays.sort(ranked, 0, matchCount);
+  }
+
+  /**
+   * Returns the current query.
+   *
+   * @return The last query given to {@link #setQuery(String)}.
+   */
+  String query() {
+    return query;
+  }
+
+  /**
+   * Returns the amount of candidates.
+   *
+   * @return The number of candidates added.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns the amount of candidates matching the current query.
+   *
+   * @return The number of matches.
+   */
+  int matchCount() {
+    return matchCount;
+  }
+
+  /**
+   * Returns the id of a match.
+   *
+   * @param rank The position of the match, {@code 0} being the best one.
+   * @return The id of the candidate at that rank.
+   */
+  int match(final int rank) {
+    return idOf(ranked[rank]);
+  }
+
+  private void insert(final long entry) {
+    if (matchCount == ranked.length) {
+      ranked = Arrays.copyOf(ranked, ranked.length * 2);
+    }
+    int position = Arrays.binarySearch(ranked, 0, matchCount, entry);
+    if (position < 0) {
+      position = -position - 1;
+    }
+    System.arraycopy(ranked, position, ranked, position + 1, matchCount - position);
+    ranked[position] = entry;
+    matchCount++;
+  }
+
+  /**
+   * Orders by descending score, then by ascending id, so equal scores keep the input order, or by
+   * descending id when the latest candidates are listed first.
+   */
+  private long pack(final int score, final int id) {
+    return ((long) (MAX_SCORE - score) << 32) | (latestFirst ? Integer.MAX_VALUE - id : id);
+  }
+
+  private int idOf(final long entry) {
+    return latestFirst ? Integer.MAX_VALUE - (int) entry : (int) entry;
+  }
+
+  /** Returns the score of a candidate against every term, or {@code -1} if a term is missing. */
+  private int score(final int id) {
+    int total = 0;
+    for (final char[] term : terms) {
+      final int score = scoreTerm(term, starts[id], starts[id + 1]);
+      if (score < 0) {
+        return -1;
+      }
+      total += score;
+    }
+    return Math.min(total, MAX_SCORE);
+  }
+
+  /**
+   * Scores a term the way fzf's v1 algorithm does: find the first occurrence of the term as a
+   * subsequence, then walk it back from its end to the shortest window and score that window.
+   */
+  private int scoreTerm(final char[] term, final int from, final int to) {
+    int position = from;
+    for (final char c : term) {
+      while (position < to && chars[position] != c) {
+        position++;
+      }
+      if (position == to) {
+        return -1;
+      }
+      position++;
+    }
+
+    final int end = position;
+    int start = end - 1;
+    for (int t = term.length - 1; t >= 0; t--) {
+      while (chars[start] != term[t]) {
+        start--;
+      }
+      if (t > 0) {
+        start--;
+      }
+    }
+
+    int score = 0;
+    int t = 0;
+    boolean previousMatched = false;
+    for (int i = start; i < end; i++) {
+      if (t < term.length && chars[i] == term[t]) {
+        score += SCORE_MATCH;
+        if (previousMatched) {
+          score += BONUS_CONSECUTIVE;
+        }
+        if (i == from || !Character.isLetterOrDigit(chars[i - 1])) {
+          score += BONUS_WORD_START;
+        }
+        previousMatched = true;
+        t++;
+      } else {
+        score -= PENALTY_GAP;
+        previousMatched = false;
+      }
+    }
+    return Math.max(0, score);
+  }
+}
@@ -4,115 +4,238 @@ import dev.cwby.bakashi.Main;
 import dev.cwby.bakashi.ThumbnailUtils;
 import dev.cwby.bakashi.data.AnimePage;
 import dev.cwby.bakashi.data.EpisodeData;
+import dev.cwby.bakashi.profile.Profiler;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
-public class FzfManager {
+public class FzfManager implements Selector {
   // TODO: requires  refactor and proper documentation
 
+  /**
+   * Every line written to fzf is {@code <id><TAB><thumbnail key><TAB><title>}, only the title is
+   * displayed. The id is the position of the entry in its list, and resolves a selected line back
+   * to its record even when titles repeat; the key is used by the preview command to locate the
+   * cached thumbnail. {@code Tab} marks several entries and {@code Ctrl-A} marks all of them.
+   */
+  private static final String FZF_OPTIONS =
+      "fzf --reverse --multi --bind=ctrl-a:select-all --delimiter='\t' --with-nth=3..";
+
   private Process process;
+  private PrintWriter writer;
   private final UeberzugManager ueberzugManager;
   private final boolean isUeberzugPresent;
+  private PreviewDaemon previewDaemon;
   private List<EpisodeData> episodeDataList = new ArrayList<>();
   private List<AnimePage> animePageList = new ArrayList<>();
+  private Map<String, EpisodeData> episodesByTitle = new HashMap<>();
+  private List<String> selectedLines;
 
   public FzfManager(final UeberzugManager ueberzugManager) {
-    this.isUeberzugPresent = UeberzugManager.checkUeberzugPresence();
+    this(ueberzugManager, UeberzugManager.checkUeberzugPresence());
+  }
+
+  FzfManager(final UeberzugManager ueberzugManager, final boolean isUeberzugPresent) {
+    this.isUeberzugPresent = isUeberzugPresent;
     this.ueberzugManager = ueberzugManager;
   }
 
-  public Process spawn() {
+  @Override
+  public void spawn() {
+    spawn(-1, false);
+  }
+
+  /**
+   * Starts fzf, binding its {@code load} event to {@code pos(...)} when a position is given, which
+   * requires fzf 0.36 or newer. A list shown latest first is read with {@code --tac}, and the
+   * position counted from its end, so it holds whatever is appended before the input is closed.
+   */
+  @Override
+  public synchronized void spawn(final int position, final boolean latestFirst) {
+    this.writer = null;
+    this.episodeDataList = new ArrayList<>();
+    this.animePageList = new ArrayList<>();
+    this.episodesByTitle = new HashMap<>();
+    this.selectedLines = null;
+    String options = latestFirst ? FZF_OPTIONS + " --tac" : FZF_OPTIONS;
+    if (position >= 0) {
+      // fzf counts from 1, and negative positions from the end
+      final int target = latestFirst ? -(position + 1) : position + 1;
+      options += " --bind='load:pos(" + target + ")'";
+    }
     if (isUeberzugPresent) {
       ueberzugManager.spawn();
-      final String fullcmd =
-          "(fzf --reverse --preview=\"ueberzug cmd -s "
-              + ueberzugManager.getSocket()
-              + " -i bakashicli -a add -x \\$FZF_PREVIEW_LEFT -y \\$FZF_PREVIEW_TOP --max-width \"\\$FZF_PREVIEW_COLUMNS\" --max-height \"\\$FZF_PREVIEW_LINES\" -f "
-              + Main.THUMBNAIL_FOLDER
-              + "{}"
-              + ThumbnailUtils.THUMB_EXTENSION
-              + "\")";
-      this.process = startShProcess(fullcmd);
+      this.previewDaemon = startPreviewDaemon(ueberzugManager);
+      this.process = startFzf(options + previewDaemon.previewOption(2));
     } else {
-      this.process = startShProcess("(fzf --reverse)");
+      this.process = startFzf(options);
     }
+  }
 
-    return this.process;
+  /**
+   * Starts the process the list is written to, overridden by the benchmarks to run without a
+   * terminal.
+   *
+   * @param command The fzf command line.
+   * @return The started process.
+   */
+  Process startFzf(final String command) {
+    try (final Profiler.Span span = Profiler.span("fzf.spawn")) {
+      return startShProcess("(" + command + ")");
+    }
   }
 
-  public void writeEpisodes(final List<EpisodeData> episodeDataList) {
-    this.episodeDataList = episodeDataList;
-    final PrintWriter writer = new PrintWriter(process.getOutputStream());
-    for (final EpisodeData episodeData : episodeDataList) {
-      if (!ThumbnailUtils.thumbnailExists(episodeData.episodeName())) {
-        try {
-          if (episodeData.thumbnailUrl() != null && episodeData.episodeName() != null) {
-            ThumbnailUtils.fetchThumbnail(episodeData.thumbnailUrl(), episodeData.episodeName());
-          }
-        } catch (IOException e) {
-        }
-      }
-      writer.println(episodeData.episodeName());
+  /**
+   * Writes more episodes to the running fzf without closing its input, so they show up while the
+   * rest of the list is still being fetched. Call {@link #closeInput()} once everything is written.
+   *
+   * @param episodes The episodes to add to the list.
+   */
+  @Override
+  public synchronized void appendEpisodes(final List<EpisodeData> episodes) {
+    if (writer == null) {
+      writer = new PrintWriter(process.getOutputStream());
+    }
+    for (final EpisodeData episodeData : episodes) {
+      ThumbnailUtils.prefetchThumbnail(episodeData.thumbnailUrl());
+      writer.println(
+          formatEntry(
+              episodeDataList.size(), episodeData.thumbnailUrl(), episodeData.episodeName()));
+      episodeDataList.add(episodeData);
+      episodesByTitle.putIfAbsent(episodeData.episodeName(), episodeData);
     }
     writer.flush();
-    writer.close();
+    if (!episodes.isEmpty()) {
+      StartupProbe.firstResult();
+    }
   }
 
-  public void writeAnimePages(final List<AnimePage> pageList) {
-    this.animePageList = pageList;
-    final PrintWriter writer = new PrintWriter(process.getOutputStream());
-    for (final AnimePage page : animePageList) {
-      if (!ThumbnailUtils.thumbnailExists(page.title())) {
-        ThumbnailUtils.fetchThumbnailAsync(page.thumbnail(), page.title());
-      }
-      writer.println(page.title());
+  /** Closes the input of the running fzf, telling it that the list is complete. */
+  @Override
+  public synchronized void closeInput() {
+    if (writer != null) {
+      writer.close();
+    }
+  }
+
+  /**
+   * Writes more anime pages to the running fzf without closing its input, e.g network results
+   * arriving after the local ones. Call {@link #closeInput()} once everything is written.
+   *
+   * @param pages The anime pages to add to the list.
+   */
+  @Override
+  public synchronized void appendAnimePages(final List<AnimePage> pages) {
+    if (writer == null) {
+      writer = new PrintWriter(process.getOutputStream());
+    }
+    for (final AnimePage page : pages) {
+      ThumbnailUtils.prefetchThumbnail(page.thumbnail());
+      writer.println(formatEntry(animePageList.size(), page.thumbnail(), page.title()));
+      animePageList.add(page);
     }
     writer.flush();
-    writer.close();
+    if (!pages.isEmpty()) {
+      StartupProbe.firstResult();
+    }
   }
 
+  /**
+   * Waits for fzf to exit and returns the title of the first selected line.
+   *
+   * @return The title, or {@code null} if the selection was cancelled.
+   */
+  @Override
   public String getResult() {
-    try {
-      final int exitCode = process.waitFor();
-      if (exitCode == 0) {
-        return new BufferedReader(new InputStreamReader(process.getInputStream())).readLine();
-      }
-    } catch (InterruptedException | IOException e) {
-      throw new RuntimeException(e);
+    final List<String> lines = readSelection();
+    return lines.isEmpty() ? null : titleOf(lines.get(0));
+  }
+
+  @Override
+  public synchronized EpisodeData getEpisodeDataFromResult(final String result) {
+    return episodesByTitle.get(result);
+  }
+
+  @Override
+  public AnimePage waitForAnimeSelect() {
+    final List<String> lines = readSelection();
+    synchronized (this) {
+      return lines.isEmpty() ? null : animePageList.get(idOf(lines.get(0)));
     }
-    return null;
   }
 
-  public EpisodeData getEpisodeDataFromResult(final String result) {
-    for (final EpisodeData episodeData : episodeDataList) {
-      if (episodeData.episodeName().equals(result)) {
-        return episodeData;
+  @Override
+  public EpisodeData waitForEpisodeSelect() {
+    final List<EpisodeData> episodes = waitForEpisodesSelect();
+    return episodes.isEmpty() ? null : episodes.get(0);
+  }
+
+  @Override
+  public List<EpisodeData> waitForEpisodesSelect() {
+    final List<String> lines = readSelection();
+    final List<EpisodeData> episodes = new ArrayList<>(lines.size());
+    synchronized (this) {
+      for (final String line : lines) {
+        episodes.add(episodeDataList.get(idOf(line)));
       }
     }
-    return null;
+    return episodes;
   }
 
-  public AnimePage waitForAnimeSelect() {
-    String result = getResult();
-    for (final AnimePage page : animePageList) {
-      if (page.title().equals(result)) {
-        return page;
+  /**
+   * Waits for fzf to exit and returns the selected lines, in the order they were marked. The lines
+   * are kept, so every {@code waitFor} method of the same selection sees the same ones.
+   */
+  private List<String> readSelection() {
+    final Process running;
+    synchronized (this) {
+      if (selectedLines != null) {
+        return selectedLines;
       }
+      running = process;
     }
-    return null;
+    final List<String> lines = new ArrayList<>();
+    try (final Profiler.Span span = Profiler.span("fzf.wait")) {
+      // read before waiting, a large selection does not fit in the pipe buffer
+      try (final BufferedReader reader =
+          new BufferedReader(
+              new InputStreamReader(running.getInputStream(), StandardCharsets.UTF_8))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          lines.add(line);
+        }
+      }
+      if (running.waitFor() != 0) {
+        lines.clear();
+      }
+    } catch (InterruptedException | IOException e) {
+      throw new RuntimeException(e);
+    }
+    synchronized (this) {
+      selectedLines = lines;
+    }
+    return lines;
   }
 
-  public EpisodeData waitForEpisodeSelect() {
-    return getEpisodeDataFromResult(getResult());
+  private static int idOf(final String line) {
+    return Integer.parseInt(line.substring(0, line.indexOf('\t')));
   }
 
+  private static String titleOf(final String line) {
+    return line.substring(line.indexOf('\t', line.indexOf('\t') + 1) + 1);
+  }
+
+  @Override
   public void exit() {
     if (isUeberzugPresent) {
+      previewDaemon.close();
       ueberzugManager.exit();
     }
     try {
@@ -122,9 +245,34 @@ public class FzfManager {
     }
   }
 
-  private static Process startShProcess(final String fullCommand) {
+  static String formatEntry(final int id, final String thumbnailUrl, final String title) {
+    return id + "\t" + ThumbnailUtils.getThumbnailKey(thumbnailUrl) + "\t" + title;
+  }
+
+  static PreviewDaemon startPreviewDaemon(final UeberzugManager ueberzugManager) {
+    final PreviewDaemon daemon = new PreviewDaemon(ueberzugManager);
+    try {
+      daemon.start();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return daemon;
+  }
+
+  static Process startShProcess(final String fullCommand) {
+    return startShProcess(fullCommand, Map.of());
+  }
+
+  /**
+   * Starts a shell command with variables added to the environment it inherits, e.g a secret that
+   * must not show up in the command line.
+   */
+  static Process startShProcess(final String fullCommand, final Map<String, String> environment) {
     try {
-      return new ProcessBuilder("sh", "-c", fullCommand).redirectErrorStream(true).start();
+      final ProcessBuilder builder =
+          new ProcessBuilder("sh", "-c", fullCommand).redirectErrorStream(true);
+      builder.environment().putAll(environment);
+      return builder.start();
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
@@ -0,0 +1,541 @@
+package dev.cwby.bakashi.process;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import dev.cwby.bakashi.Main;
+import dev.cwby.bakashi.ThumbnailUtils;
+import dev.cwby.bakashi.data.AnimePage;
+import dev.cwby.bakashi.data.EpisodeData;
+import dev.cwby.bakashi.data.Json;
+import dev.cwby.bakashi.profile.Profiler;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.stream.Stream;
+
+/**
+ * A {@link Selector} keeping a single fzf, and a single ueberzug layer, running for the whole
+ * session.
+ *
+ * <p>fzf is started once with {@code --listen}, and every selection replaces its list through the
+ * HTTP control endpoint with {@code reload(cat <fifo>)} and {@code change-prompt(...)}: the entries
+ * of a selection are written to a new named pipe, which fzf reads until it is closed. {@code Enter}
+ * does not exit fzf, it is bound to {@code execute-silent} writing the selected line to another
+ * named pipe read by {@link #getResult()}. Stepping from the anime list to the episode list thus
+ * happens in place, without the flicker and the cost of starting fzf and ueberzug again.
+ *
+ * <p>Every line is {@code <selection><TAB><id><TAB><thumbnail key><TAB><title>}, so a selection
+ * made while the next list was loading is recognized and ignored, and the id resolves a line back
+ * to its record as in {@link FzfManager}. Entries marked with {@code Tab} or {@code Ctrl-A} are
+ * written together, followed by an end-of-batch line. Requires fzf 0.40 or newer ({@code start}
+ * event and {@code --listen}).
+ *
+ * <p>The control endpoint runs any action, {@code execute} included, for whoever can reach the
+ * port, so fzf is started with a random {@code FZF_API_KEY} that every request must carry. Requests
+ * are sent from a single thread of their own, in order, and never while holding the lock of the
+ * session: fzf may take a moment to start listening, and the scrapper appending entries must not
+ * wait for it.
+ */
+public class FzfSession implements Selector {
+
+  private static final String FZF_OPTIONS =
+      "fzf --reverse --multi --bind=ctrl-a:select-all --delimiter='\t' --with-nth=4..";
+  private static final String EXIT_LINE = "exit";
+  private static final String BATCH_END_LINE = "end";
+  private static final String API_KEY_HEADER = "X-Api-Key";
+  private static final int CONTROL_ATTEMPTS = 20;
+  private static final long CONTROL_RETRY_MILLIS = 25;
+  private static final HttpClient CONTROL_CLIENT =
+      HttpClient.newBuilder()
+          .version(HttpClient.Version.HTTP_1_1)
+          .connectTimeout(Duration.ofSeconds(2))
+          .build();
+
+  private final UeberzugManager ueberzugManager;
+  private final boolean isUeberzugPresent;
+  private final Path folder;
+  private final Path selectionFifo;
+  private final String apiKey;
+  private final ExecutorService control =
+      Executors.newSingleThreadExecutor(
+          runnable -> {
+            final Thread thread = new Thread(runnable, "bakashi-fzf-control");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private Process process;
+  private PreviewDaemon previewDaemon;
+  private int port;
+  private RandomAccessFile selectionFile;
+  private BufferedReader selections;
+  private int selection;
+  private int lists;
+  private ListFeed feed;
+  private String prompt;
+  private int position = -1;
+  private boolean latestFirst;
+  private final List<String> listed = new ArrayList<>();
+  private final List<EpisodeData> episodes = new ArrayList<>();
+  private final List<AnimePage> pages = new ArrayList<>();
+  private final Map<String, EpisodeData> episodesByTitle = new HashMap<>();
+
+  public FzfSession(final UeberzugManager ueberzugManager) {
+    this.isUeberzugPresent = UeberzugManager.checkUeberzugPresence();
+    this.ueberzugManager = ueberzugManager;
+    this.folder = Paths.get(Main.TEMP, "fzf-session-" + ProcessHandle.current().pid());
+    this.selectionFifo = folder.resolve("selection");
+    final byte[] key = new byte[32];
+    new SecureRandom().nextBytes(key);
+    this.apiKey = Base64.getUrlEncoder().withoutPadding().encodeToString(key);
+  }
+
+  @Override
+  public void spawn() {
+    spawn(-1, false);
+  }
+
+  /**
+   * Starts a new selection, moving the cursor to an entry once fzf has read the whole list, unless
+   * the user already moved it or typed a query by then. fzf shows the lines in the order they are
+   * read, so a list shown latest first is read again from its end whenever entries are appended
+   * after the first batch.
+   */
+  @Override
+  public synchronized void spawn(final int position, final boolean latestFirst) {
+    closeInput();
+    selection++;
+    prompt = null;
+    this.position = position;
+    this.latestFirst = latestFirst;
+    episodes.clear();
+    pages.clear();
+    episodesByTitle.clear();
+    listed.clear();
+    try {
+      if (process == null) {
+        Files.createDirectories(folder);
+        mkfifo(selectionFifo);
+        // a read-write open of a FIFO never blocks, and keeps it open between two writers
+        this.selectionFile = new RandomAccessFile(selectionFifo.toFile(), "rw");
+        this.selections =
+            new BufferedReader(
+                new InputStreamReader(
+                    new FileInputStream(selectionFile.getFD()), StandardCharsets.UTF_8));
+        start(openFeed());
+      } else {
+        post("reload(cat '" + openFeed() + "')+change-prompt(> )");
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public synchronized void appendEpisodes(final List<EpisodeData> newEpisodes) {
+    if (feed == null) {
+      return;
+    }
+    changePrompt("episode> ");
+    final List<String> lines = new ArrayList<>(newEpisodes.size());
+    for (final EpisodeData episode : newEpisodes) {
+      ThumbnailUtils.prefetchThumbnail(episode.thumbnailUrl());
+      lines.add(
+          selection
+              + "\t"
+              + FzfManager.formatEntry(
+                  episodes.size(), episode.thumbnailUrl(), episode.episodeName()));
+      episodes.add(episode);
+      episodesByTitle.putIfAbsent(episode.episodeName(), episode);
+    }
+    list(lines);
+  }
+
+  @Override
+  public synchronized void appendAnimePages(final List<AnimePage> newPages) {
+    if (feed == null) {
+      return;
+    }
+    changePrompt("anime> ");
+    final List<String> lines = new ArrayList<>(newPages.size());
+    for (final AnimePage page : newPages) {
+      ThumbnailUtils.prefetchThumbnail(page.thumbnail());
+      lines.add(
+          selection + "\t" + FzfManager.formatEntry(pages.size(), page.thumbnail(), page.title()));
+      pages.add(page);
+    }
+    list(lines);
+  }
+
+  @Override
+  public synchronized void closeInput() {
+    if (feed != null) {
+      feed.lines.add(ListFeed.END);
+      feed = null;
+      final int total = episodes.size() + pages.size();
+      final int target = latestFirst ? total - 1 - position : position;
+      if (position >= 0 && target >= 0 && target < total) {
+        final int current = selection;
+        control.execute(() -> preselect(current, target, total));
+      }
+      position = -1;
+    }
+  }
+
+  @Override
+  public String getResult() {
+    final List<String> lines = readSelection();
+    return lines.isEmpty() ? null : titleOf(lines.get(0));
+  }
+
+  @Override
+  public synchronized EpisodeData getEpisodeDataFromResult(final String result) {
+    return episodesByTitle.get(result);
+  }
+
+  @Override
+  public AnimePage waitForAnimeSelect() {
+    final List<String> lines = readSelection();
+    synchronized (this) {
+      return lines.isEmpty() ? null : pages.get(idOf(lines.get(0)));
+    }
+  }
+
+  @Override
+  public EpisodeData waitForEpisodeSelect() {
+    final List<EpisodeData> selected = waitForEpisodesSelect();
+    return selected.isEmpty() ? null : selected.get(0);
+  }
+
+  @Override
+  public List<EpisodeData> waitForEpisodesSelect() {
+    final List<String> lines = readSelection();
+    final List<EpisodeData> selected = new ArrayList<>(lines.size());
+    synchronized (this) {
+      for (final String line : lines) {
+        selected.add(episodes.get(idOf(line)));
+      }
+    }
+    return selected;
+  }
+
+  /** Ends the current selection only, fzf stays open for the next one. */
+  @Override
+  public void exit() {
+    closeInput();
+  }
+
+  @Override
+  public synchronized void close() {
+    closeInput();
+    if (process != null) {
+      try {
+        process.destroyForcibly().waitFor();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      process = null;
+      if (isUeberzugPresent) {
+        previewDaemon.close();
+        ueberzugManager.exit();
+      }
+    }
+    if (selectionFile != null) {
+      try {
+        selectionFile.close();
+      } catch (IOException e) {
+        // nothing is read from it anymore
+      }
+      selectionFile = null;
+      selections = null;
+    }
+    try (final Stream<Path> files = Files.walk(folder)) {
+      files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    } catch (IOException e) {
+      // leftovers in the temporary folder are harmless
+    }
+  }
+
+  /**
+   * Writes the lines of one selection to its named pipe from a daemon thread, since opening a pipe
+   * for writing blocks until fzf starts reading it, and data written before would be lost.
+   */
+  private static final class ListFeed {
+    private static final String END = "\u0000end";
+
+    private final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+
+    private ListFeed(final Path list) {
+      final Thread thread =
+          new Thread(
+              () -> {
+                try (final Writer writer =
+                    new BufferedWriter(
+                        new OutputStreamWriter(
+                            new FileOutputStream(list.toFile()), StandardCharsets.UTF_8))) {
+                  String line;
+                  while (!END.equals(line = lines.take())) {
+                    writer.write(line);
+                    writer.write('\n');
+                    if (lines.isEmpty()) {
+                      writer.flush();
+                      StartupProbe.firstResult();
+                    }
+                  }
+                } catch (IOException | InterruptedException e) {
+                  // fzf is gone, there is nobody left to read the list
+                }
+              },
+              "bakashi-fzf-feed");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /** Creates the named pipe of a new list, and the feed writing to it. */
+  private Path openFeed() throws IOException {
+    final Path list = folder.resolve("list-" + ++lists);
+    mkfifo(list);
+    this.feed = new ListFeed(list);
+    return list;
+  }
+
+  /**
+   * Hands the lines of appended entries to fzf. A list shown latest first gets its first batch in
+   * reverse, and is then listed again from a new pipe with every line, the last ones on top.
+   */
+  private void list(final List<String> lines) {
+    if (!latestFirst) {
+      feed.lines.addAll(lines);
+      return;
+    }
+    if (lines.isEmpty()) {
+      return;
+    }
+    final boolean first = listed.isEmpty();
+    listed.addAll(lines);
+    if (!first) {
+      feed.lines.add(ListFeed.END);
+      try {
+        post("reload(cat '" + openFeed() + "')");
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    final List<String> shown = first ? lines : listed;
+    for (int i = shown.size() - 1; i >= 0; i--) {
+      feed.lines.add(shown.get(i));
+    }
+  }
+
+  private void start(final Path list) throws IOException {
+    try (final ServerSocket socket = new ServerSocket(0)) {
+      this.port = socket.getLocalPort();
+    }
+    final String selectionPath = selectionFifo.toString();
+    final StringBuilder command = new StringBuilder("(").append(FZF_OPTIONS);
+    command.append(" --listen=").append(port);
+    command.append(" --bind='start:reload(cat \"").append(list).append("\")'");
+    command
+        .append(" --bind='enter:execute-silent(printf \"%s\\n\" {+} ")
+        .append(BATCH_END_LINE)
+        .append(" > \"")
+        .append(selectionPath)
+        .append("\")+clear-selection'");
+    if (isUeberzugPresent) {
+      ueberzugManager.spawn();
+      this.previewDaemon = FzfManager.startPreviewDaemon(ueberzugManager);
+      command.append(previewDaemon.previewOption(3));
+    }
+    command.append(" < /dev/null)");
+    try (final Profiler.Span span = Profiler.span("fzf.spawn")) {
+      this.process =
+          FzfManager.startShProcess(command.toString(), Map.of("FZF_API_KEY", apiKey));
+    }
+    // once fzf is gone, nothing will ever be selected, wake up whoever is waiting for it
+    process
+        .onExit()
+        .thenRun(
+            () -> {
+              try {
+                Files.writeString(selectionFifo, EXIT_LINE + "\n", StandardOpenOption.WRITE);
+              } catch (IOException e) {
+                // the session is being closed
+              }
+            });
+  }
+
+  /**
+   * Waits for a batch of lines selected in the current list, empty if fzf exited. Lines of a
+   * previous list, selected while this one was loading, are skipped, and so are batches made only
+   * of such lines or of an empty list.
+   */
+  private List<String> readSelection() {
+    final BufferedReader reader;
+    final String current;
+    synchronized (this) {
+      reader = selections;
+      current = selection + "\t";
+    }
+    final List<String> batch = new ArrayList<>();
+    if (reader == null) {
+      return batch;
+    }
+    try (final Profiler.Span span = Profiler.span("fzf.wait")) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.equals(EXIT_LINE)) {
+          batch.clear();
+          return batch;
+        }
+        if (line.equals(BATCH_END_LINE)) {
+          if (!batch.isEmpty()) {
+            return batch;
+          }
+        } else if (line.startsWith(current)) {
+          batch.add(line);
+        }
+      }
+      batch.clear();
+      return batch;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static int idOf(final String line) {
+    final int start = line.indexOf('\t') + 1;
+    return Integer.parseInt(line.substring(start, line.indexOf('\t', start)));
+  }
+
+  private static String titleOf(final String line) {
+    int start = 0;
+    for (int field = 0; field < 3; field++) {
+      start = line.indexOf('\t', start) + 1;
+    }
+    return line.substring(start);
+  }
+
+  private void changePrompt(final String newPrompt) {
+    if (newPrompt.equals(prompt)) {
+      return;
+    }
+    prompt = newPrompt;
+    post("change-prompt(" + newPrompt + ")");
+  }
+
+  /**
+   * Moves the cursor once fzf has read every line of a selection, as told by the state its endpoint
+   * answers {@code GET} requests with. Nothing is moved if another selection started meanwhile, or
+   * if the user already moved the cursor or typed a query.
+   */
+  private void preselect(final int listSelection, final int target, final int total) {
+    final HttpRequest request = controlRequest().GET().build();
+    for (int attempt = 0; attempt < CONTROL_ATTEMPTS * 4; attempt++) {
+      synchronized (this) {
+        if (process == null || selection != listSelection) {
+          return;
+        }
+      }
+      final String state = send(request);
+      if (state == null) {
+        return;
+      }
+      try {
+        final JsonNode root = Json.MAPPER.readTree(state);
+        if (!root.path("reading").asBoolean(true) && root.path("totalCount").asInt() >= total) {
+          if (root.path("query").asText().isEmpty() && root.path("position").asInt() == 0) {
+            final String actions = "pos(" + (target + 1) + ")";
+            send(controlRequest().POST(HttpRequest.BodyPublishers.ofString(actions)).build());
+          }
+          return;
+        }
+      } catch (IOException e) {
+        // an fzf too old to report its state, the cursor stays where it is
+        return;
+      }
+      sleep(CONTROL_RETRY_MILLIS);
+    }
+  }
+
+  /** Sends actions to fzf through its {@code --listen} endpoint, from the control thread. */
+  private void post(final String actions) {
+    final HttpRequest request =
+        controlRequest().POST(HttpRequest.BodyPublishers.ofString(actions)).build();
+    control.execute(() -> send(request));
+  }
+
+  private HttpRequest.Builder controlRequest() {
+    return HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port))
+        .timeout(Duration.ofSeconds(2))
+        .header(API_KEY_HEADER, apiKey);
+  }
+
+  /**
+   * Sends a request to the control endpoint, retrying while it is not listening yet right after fzf
+   * was started.
+   *
+   * @return The body of the response, or {@code null} if fzf could not be reached.
+   */
+  private static String send(final HttpRequest request) {
+    for (int attempt = 0; attempt < CONTROL_ATTEMPTS; attempt++) {
+      try {
+        return CONTROL_CLIENT.send(request, HttpResponse.BodyHandlers.ofString()).body();
+      } catch (IOException e) {
+        sleep(CONTROL_RETRY_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+    }
+    return null;
+  }
+
+  private static void mkfifo(final Path path) throws IOException {
+    try {
+      final int exitCode = new ProcessBuilder("mkfifo", path.toString()).start().waitFor();
+      if (exitCode != 0) {
+        throw new IOException("mkfifo exited with code: " + exitCode);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while creating " + path, e);
+    }
+  }
+
+  private static void sleep(final long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,234 @@
+package dev.cwby.bakashi.process;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import dev.cwby.bakashi.Main;
+import dev.cwby.bakashi.data.Json;
+import dev.cwby.bakashi.profile.Profiler;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single mpv playing a whole queue of episodes, driven through its JSON IPC socket.
+ *
+ * <p>mpv is started once with {@code --idle} and {@code --input-ipc-server}, before the first video
+ * URL is even known, and every episode is queued with {@code loadfile <url> append-play} carrying
+ * its own title and referer as per-file options. mpv then goes from one episode to the next by
+ * itself, without the gap of starting a new player. The {@code start-file} and {@code end-file}
+ * events are counted, so the caller can queue the next episode once the previous one started and
+ * tell when the queue was played through; closing mpv ends the whole queue.
+ */
+public class MpvManager implements AutoCloseable {
+
+  private static final long CONNECT_TIMEOUT_MILLIS = 5000;
+
+  private final Path socket =
+      Paths.get(Main.TEMP, "mpv-" + ProcessHandle.current().pid() + ".sock");
+  private Process process;
+  private SocketChannel channel;
+  private int startedFiles;
+  private int endedFiles;
+  private boolean exited;
+
+  /**
+   * Starts mpv, idle and with its window already open, and connects to its IPC socket.
+   *
+   * @throws IOException If mpv cannot be started or its socket does not show up.
+   */
+  public void spawn() throws IOException {
+    try (final Profiler.Span span = Profiler.span("mpv.spawn")) {
+      Files.deleteIfExists(socket);
+      this.process =
+          new ProcessBuilder(
+                  "mpv",
+                  "-fs",
+                  "--idle=yes",
+                  "--force-window=immediate",
+                  "--input-ipc-server=" + socket)
+              .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+              .redirectError(ProcessBuilder.Redirect.DISCARD)
+              .start();
+      this.channel = connect();
+      final Thread events = new Thread(this::readEvents, "bakashi-mpv-events");
+      events.setDaemon(true);
+      events.start();
+    }
+  }
+
+  /**
+   * Queues a video, played right away if mpv is idle.
+   *
+   * @param url The URL of the video.
+   * @param referer The referer the video host expects.
+   * @param title The title shown by mpv.
+   * @throws IOException If mpv was closed.
+   */
+  public synchronized void append(final String url, final String referer, final String title)
+      throws IOException {
+    // named arguments, the position of the options changed between mpv versions
+    final Map<String, Object> command = new LinkedHashMap<>();
+    command.put("name", "loadfile");
+    command.put("url", url);
+    command.put("flags", "append-play");
+    command.put("options", option("force-media-title", title) + "," + option("referrer", referer));
+    send(Map.of("command", command));
+  }
+
+  /**
+   * Waits until a number of queued videos started playing.
+   *
+   * @param count The number of videos.
+   * @return {@code false} if mpv was closed before.
+   * @throws InterruptedException If interrupted while waiting.
+   */
+  public synchronized boolean awaitStarted(final int count) throws InterruptedException {
+    while (startedFiles < count && !exited) {
+      wait();
+    }
+    return startedFiles >= count;
+  }
+
+  /**
+   * Waits until a number of queued videos were played through, or failed to play.
+   *
+   * @param count The number of videos.
+   * @return {@code false} if mpv was closed before.
+   * @throws InterruptedException If interrupted while waiting.
+   */
+  public synchronized boolean awaitEnded(final int count) throws InterruptedException {
+    while (endedFiles < count && !exited) {
+      wait();
+    }
+    return endedFiles >= count;
+  }
+
+  /** Quits mpv if it is still running and removes its socket. */
+  @Override
+  public void close() {
+    if (process == null) {
+      return;
+    }
+    try {
+      synchronized (this) {
+        if (!exited) {
+          send(Map.of("command", List.of("quit")));
+        }
+      }
+      if (!process.waitFor(2, TimeUnit.SECONDS)) {
+        process.destroyForcibly().waitFor();
+      }
+    } catch (IOException e) {
+      // mpv is already gone
+      process.destroyForcibly();
+    } catch (InterruptedException e) {
+      process.destroyForcibly();
+      Thread.currentThread().interrupt();
+    } finally {
+      try {
+        channel.close();
+        Files.deleteIfExists(socket);
+      } catch (IOException e) {
+        // a leftover socket is replaced by the next run
+      }
+      process = null;
+    }
+  }
+
+  private SocketChannel connect() throws IOException {
+    final long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+    while (true) {
+      if (Files.exists(socket)) {
+        try {
+          return SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+          // created but not listening yet
+        }
+      }
+      if (!process.isAlive()) {
+        throw new IOException("mpv exited with code: " + process.exitValue());
+      }
+      if (System.currentTimeMillis() > deadline) {
+        process.destroyForcibly();
+        throw new IOException("mpv did not open its IPC socket " + socket);
+      }
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        process.destroyForcibly();
+        throw new IOException("Interrupted while waiting for mpv", e);
+      }
+    }
+  }
+
+  /**
+   * Writes a command line. The channel is used directly: the streams of {@link
+   * java.nio.channels.Channels} lock reads and writes together, and the events are read at the
+   * same time.
+   */
+  private void send(final Map<String, ?> message) throws IOException {
+    final byte[] json = Json.MAPPER.writeValueAsBytes(message);
+    final ByteBuffer line = ByteBuffer.allocate(json.length + 1).put(json).put((byte) '\n');
+    line.flip();
+    while (line.hasRemaining()) {
+      channel.write(line);
+    }
+  }
+
+  /** Counts the playback events until mpv closes the socket, i.e exits. */
+  private void readEvents() {
+    final ByteBuffer buffer = ByteBuffer.allocate(8192);
+    final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    try {
+      while (channel.read(buffer) >= 0) {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+          final byte next = buffer.get();
+          if (next == '\n') {
+            handleMessage(Json.MAPPER.readTree(line.toByteArray()));
+            line.reset();
+          } else {
+            line.write(next);
+          }
+        }
+        buffer.clear();
+      }
+    } catch (IOException e) {
+      // the socket was closed along with mpv
+    }
+    synchronized (this) {
+      exited = true;
+      notifyAll();
+    }
+  }
+
+  private synchronized void handleMessage(final JsonNode message) {
+    // command replies are ignored, a file that fails to load still sends both events
+    switch (message.path("event").asText()) {
+      case "start-file" -> startedFiles++;
+      case "end-file" -> endedFiles++;
+      default -> {
+        return;
+      }
+    }
+    notifyAll();
+  }
+
+  /**
+   * Formats a per-file option, the value quoted with its length in bytes so that commas and
+   * quotes in titles are kept as they are.
+   */
+  private static String option(final String name, final String value) {
+    return name + "=%" + value.getBytes(StandardCharsets.UTF_8).length + "%" + value;
+  }
+}
@@ -0,0 +1,160 @@
+package dev.cwby.bakashi.process;
+
+import dev.cwby.bakashi.Main;
+import dev.cwby.bakashi.ThumbnailUtils;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A long-lived thread drawing the thumbnail of the line focused in fzf.
+ *
+ * <p>The fzf preview command only {@code printf}s the thumbnail key and the preview geometry into a
+ * named pipe, no ueberzug process is started per cursor move. The daemon reads these focus events
+ * and draws the thumbnail through the ueberzug socket once the cursor stayed on a line for {@link
+ * #DEBOUNCE_MILLIS}, so scrolling through a long list only draws the line it stops on.
+ */
+public class PreviewDaemon implements AutoCloseable {
+
+  /** How long the focus must stay on a line before its thumbnail is drawn. */
+  public static final long DEBOUNCE_MILLIS = 40;
+
+  private final UeberzugManager ueberzugManager;
+  private final Path fifo;
+  private final ScheduledExecutorService renderer =
+      Executors.newSingleThreadScheduledExecutor(
+          runnable -> {
+            final Thread thread = new Thread(runnable, "bakashi-preview-render");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private RandomAccessFile events;
+  private Thread reader;
+  private ScheduledFuture<?> pending;
+  private volatile boolean running;
+
+  /**
+   * Creates a daemon drawing through the given ueberzug layer, not started yet.
+   *
+   * @param ueberzugManager The running ueberzug layer.
+   */
+  public PreviewDaemon(final UeberzugManager ueberzugManager) {
+    this.ueberzugManager = ueberzugManager;
+    this.fifo =
+        Paths.get(Main.TEMP, "preview-" + ProcessHandle.current().pid() + "-" + System.nanoTime());
+  }
+
+  /**
+   * Creates the named pipe and starts reading focus events from it.
+   *
+   * @throws IOException If the named pipe cannot be created.
+   */
+  public void start() throws IOException {
+    try {
+      final int exitCode = new ProcessBuilder("mkfifo", fifo.toString()).start().waitFor();
+      if (exitCode != 0) {
+        throw new IOException("mkfifo exited with code: " + exitCode);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while creating " + fifo, e);
+    }
+    // a read-write open never blocks, and the pipe stays open between two preview commands
+    this.events = new RandomAccessFile(fifo.toFile(), "rw");
+    this.running = true;
+    this.reader = new Thread(this::readEvents, "bakashi-preview-events");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+   * Builds the fzf {@code --preview} option sending focus events to this daemon.
+   *
+   * @param keyField The fzf field holding the thumbnail key, starting at 1.
+   * @return The option, with a leading space, to be embedded in a double quoted shell command.
+   */
+  public String previewOption(final int keyField) {
+    return " --preview=\"printf '%s %s %s %s %s\\n' {"
+        + keyField
+        + "} \\$FZF_PREVIEW_LEFT \\$FZF_PREVIEW_TOP \\$FZF_PREVIEW_COLUMNS \\$FZF_PREVIEW_LINES > '"
+        + fifo
+        + "'\"";
+  }
+
+  @Override
+  public void close() {
+    synchronized (this) {
+      running = false;
+      renderer.shutdownNow();
+    }
+    try {
+      if (events != null) {
+        // wakes the reader up so it notices it has to stop
+        events.write('\n');
+        events.close();
+      }
+      Files.deleteIfExists(fifo);
+    } catch (IOException e) {
+      // leftovers in the temporary folder are harmless
+    }
+  }
+
+  private void readEvents() {
+    try (final BufferedReader lines =
+        new BufferedReader(
+            new InputStreamReader(
+                new FileInputStream(events.getFD()), StandardCharsets.UTF_8))) {
+      String line;
+      while (running && (line = lines.readLine()) != null) {
+        final String event = line;
+        synchronized (this) {
+          if (pending != null) {
+            pending.cancel(false);
+          }
+          if (running) {
+            pending =
+                renderer.schedule(() -> render(event), DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+          }
+        }
+      }
+    } catch (IOException e) {
+      // the pipe was closed, the session is over
+    }
+  }
+
+  /** Draws the thumbnail of a focus event, {@code <key> <left> <top> <columns> <lines>}. */
+  private void render(final String event) {
+    final String[] fields = event.trim().split(" ");
+    try {
+      if (fields.length != 5) {
+        ueberzugManager.removeImage();
+        return;
+      }
+      final Path thumbnail = ThumbnailUtils.getPreviewPath(fields[0]);
+      if (!Files.exists(thumbnail)) {
+        // not downloaded yet, or an entry without thumbnail, do not leave the previous one drawn
+        ueberzugManager.removeImage();
+        return;
+      }
+      ueberzugManager.addImage(
+          thumbnail.toString(),
+          Integer.parseInt(fields[1]),
+          Integer.parseInt(fields[2]),
+          Integer.parseInt(fields[3]),
+          Integer.parseInt(fields[4]));
+    } catch (IOException | NumberFormatException | IllegalStateException e) {
+      // a missed preview is not worth interrupting the selection
+    }
+  }
+}
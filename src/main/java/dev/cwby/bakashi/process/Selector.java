@@ -0,0 +1,128 @@
+package dev.cwby.bakashi.process;
+
+import dev.cwby.bakashi.data.AnimePage;
+import dev.cwby.bakashi.data.EpisodeData;
+import java.util.List;
+
+/**
+ * An interactive list the user picks an anime or an episode from.
+ *
+ * <p>A selection starts with {@link #spawn()}, receives its entries through the {@code append}
+ * methods, possibly while the user is already typing, and ends with {@link #closeInput()} once the
+ * list is complete. {@link FzfManager} is the default implementation, {@link FzfSession} keeps one
+ * fzf running for every selection, and {@link TerminalSelector} runs the same flow inside the JVM.
+ */
+public interface Selector extends AutoCloseable {
+
+  /** Starts a new, empty selection, discarding the entries of the previous one. */
+  void spawn();
+
+  /**
+   * Starts a new, empty selection like {@link #spawn()} for entries appended in the order they were
+   * released, e.g the episodes of an anime, with the cursor moved to one of them once the list is
+   * complete, e.g the next episode to watch. Selectors that cannot move the cursor ignore the
+   * position.
+   *
+   * <p>Listed latest first, the entries appended last show up at the top, so releases appended to
+   * a newest-first list land where they belong, above the ones already listed, and the position of
+   * every entry stays the same whatever is appended after it.
+   *
+   * @param position The position of the entry in the order of appending, {@code -1} for none. It
+   *     may be the position of an entry not appended yet, e.g the next release, only preselected
+   *     if it shows up.
+   * @param latestFirst {@code true} to list the entries in the reverse order of their appending.
+   */
+  default void spawn(final int position, final boolean latestFirst) {
+    spawn();
+  }
+
+  /**
+   * Adds episodes to the running selection without marking the list as complete.
+   *
+   * @param episodes The episodes to add.
+   */
+  void appendEpisodes(List<EpisodeData> episodes);
+
+  /**
+   * Adds anime pages to the running selection without marking the list as complete.
+   *
+   * @param pages The anime pages to add.
+   */
+  void appendAnimePages(List<AnimePage> pages);
+
+  /** Marks the list of the running selection as complete. */
+  void closeInput();
+
+  /**
+   * Adds episodes and marks the list as complete.
+   *
+   * @param episodes The episodes to add.
+   */
+  default void writeEpisodes(final List<EpisodeData> episodes) {
+    appendEpisodes(episodes);
+    closeInput();
+  }
+
+  /**
+   * Adds anime pages and marks the list as complete.
+   *
+   * @param pages The anime pages to add.
+   */
+  default void writeAnimePages(final List<AnimePage> pages) {
+    appendAnimePages(pages);
+    closeInput();
+  }
+
+  /**
+   * Waits for the user to pick an entry.
+   *
+   * @return The title of the selected entry, or {@code null} if the selection was cancelled.
+   */
+  String getResult();
+
+  /**
+   * Finds the episode of the running selection with the given title.
+   *
+   * @param result A title returned by {@link #getResult()}.
+   * @return The episode, or {@code null} if there is none with that title.
+   */
+  EpisodeData getEpisodeDataFromResult(String result);
+
+  /**
+   * Waits for the user to pick an anime page.
+   *
+   * @return The selected page, or {@code null} if the selection was cancelled.
+   */
+  AnimePage waitForAnimeSelect();
+
+  /**
+   * Waits for the user to pick an episode.
+   *
+   * @return The selected episode, or {@code null} if the selection was cancelled.
+   */
+  EpisodeData waitForEpisodeSelect();
+
+  /**
+   * Waits for the user to pick one or more episodes. Selectors without multi-selection return the
+   * single picked episode.
+   *
+   * @return The selected episodes in the order they were picked, empty if the selection was
+   *     cancelled.
+   */
+  default List<EpisodeData> waitForEpisodesSelect() {
+    final EpisodeData episode = waitForEpisodeSelect();
+    return episode == null ? List.of() : List.of(episode);
+  }
+
+  /** Ends the running selection and releases what it holds, e.g a process or the terminal. */
+  void exit();
+
+  /**
+   * Ends the whole session, once no more selections will be made. Implementations keeping state
+   * across selections, such as {@link FzfSession}, release it here.
+   */
+  @Override
+  default void close() {
+    exit();
+  }
+}
@@ -0,0 +1,46 @@
+package dev.cwby.bakashi.process;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reports how long the process took to show its first result, to compare the packagings (plain
+ * JAR, AppCDS archive, native image) against each other.
+ *
+ * <p>Enabled with the {@value #PROPERTY} system property. The first time a selector hands a line
+ * to fzf, or draws it, {@code startup: <millis> ms} is printed on the standard error, measured from
+ * the start time of the process as reported by the OS. That start time is coarse, the boot time it
+ * derives from is kept in seconds, so the build tasks time the process themselves as well.
+ *
+ * <p>With {@code -Dbakashi.startupProbe=exit} the process also exits right away, which the {@code
+ * startupBenchmark} and {@code appCdsArchive} tasks of the build rely on. Disabled, a probe costs a
+ * single volatile read.
+ */
+final class StartupProbe {
+
+  static final String PROPERTY = "bakashi.startupProbe";
+
+  private static final String MODE = System.getProperty(PROPERTY);
+  private static final AtomicBoolean REPORTED = new AtomicBoolean(MODE == null);
+
+  private StartupProbe() {}
+
+  /** Called once a line was written to the selector, only the first call reports anything. */
+  static void firstResult() {
+    if (REPORTED.get() || !REPORTED.compareAndSet(false, true)) {
+      return;
+    }
+    final long millis =
+        ProcessHandle.current()
+            .info()
+            .startInstant()
+            .map(start -> Duration.between(start, Instant.now()).toMillis())
+            .orElse(-1L);
+    System.err.println("startup: " + millis + " ms");
+    System.err.flush();
+    if ("exit".equals(MODE)) {
+      System.exit(0);
+    }
+  }
+}
@@ -0,0 +1,455 @@
+package dev.cwby.bakashi.process;
+
+import dev.cwby.bakashi.data.AnimePage;
+import dev.cwby.bakashi.data.EpisodeData;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A fuzzy selector drawn directly on the terminal by the JVM, without spawning fzf.
+ *
+ * <p>The terminal is switched to raw mode with {@code stty} and the list is drawn on the alternate
+ * screen with ANSI escape codes, in the same layout as {@code fzf --reverse}. Entries appended
+ * while the user is typing are matched by the {@link FuzzyIndex} and shown right away, so the
+ * scrapper feeds the matcher directly instead of going through a pipe.
+ *
+ * <p>There is no thumbnail preview in this mode, thumbnails are therefore not prefetched either.
+ *
+ * <p>Keys: type to filter, {@code Up}/{@code Down} (or {@code Ctrl-P}/{@code Ctrl-N}, {@code
+ * Ctrl-K}/{@code Ctrl-J}) to move, {@code PgUp}/{@code PgDn} to scroll, {@code Ctrl-U}/{@code
+ * Ctrl-W} to erase, {@code Enter} to select and {@code Esc}/{@code Ctrl-C} to cancel. As with
+ * {@code fzf --multi}, {@code Tab} (or {@code Shift-Tab} upwards) marks an entry and moves on, and
+ * {@code Ctrl-A} marks every match; {@code Enter} then selects the marked entries, in the order
+ * they were marked, instead of the one under the cursor.
+ */
+public class TerminalSelector implements Selector {
+
+  private static final String TTY = "/dev/tty";
+  private static final String PROMPT = "> ";
+  private static final int HEADER_LINES = 2;
+  private static final long ESCAPE_TIMEOUT_MILLIS = 30;
+
+  private final List<Object> items = new ArrayList<>();
+  private final List<String> titles = new ArrayList<>();
+  private final Set<Integer> marked = new LinkedHashSet<>();
+  private FuzzyIndex index = new FuzzyIndex();
+  private boolean complete;
+  private int cursor;
+  private int offset;
+  private int selectedId = -1;
+  private int preselected = -1;
+  private boolean latestFirst;
+
+  private InputStream input;
+  private OutputStream output;
+  private String savedTtyState;
+  private int rows = 24;
+  private int columns = 80;
+
+  @Override
+  public void spawn() {
+    spawn(-1, false);
+  }
+
+  @Override
+  public synchronized void spawn(final int position, final boolean latestFirst) {
+    preselected = position;
+    this.latestFirst = latestFirst;
+    items.clear();
+    titles.clear();
+    marked.clear();
+    index = new FuzzyIndex(latestFirst);
+    complete = false;
+    cursor = 0;
+    offset = 0;
+    selectedId = -1;
+    if (output == null) {
+      openTerminal();
+    }
+    draw();
+  }
+
+  @Override
+  public synchronized void appendEpisodes(final List<EpisodeData> episodes) {
+    for (final EpisodeData episode : episodes) {
+      add(episode, episode.episodeName());
+    }
+    draw();
+    if (!episodes.isEmpty()) {
+      StartupProbe.firstResult();
+    }
+  }
+
+  @Override
+  public synchronized void appendAnimePages(final List<AnimePage> pages) {
+    for (final AnimePage page : pages) {
+      add(page, page.title());
+    }
+    draw();
+    if (!pages.isEmpty()) {
+      StartupProbe.firstResult();
+    }
+  }
+
+  @Override
+  public synchronized void closeInput() {
+    complete = true;
+    // unless the user already moved or typed, an empty query lists the entries in order
+    final int rank = latestFirst ? index.size() - 1 - preselected : preselected;
+    if (preselected >= 0
+        && rank > 0
+        && rank < index.size()
+        && cursor == 0
+        && index.query().isEmpty()) {
+      moveCursor(rank);
+    }
+    preselected = -1;
+    draw();
+  }
+
+  @Override
+  public String getResult() {
+    if (output == null) {
+      return null;
+    }
+    try {
+      while (true) {
+        final int key = input.read();
+        if (key == -1 || !handleKey(key)) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      closeTerminal();
+    }
+    synchronized (this) {
+      return selectedId < 0 ? null : titles.get(selectedId);
+    }
+  }
+
+  @Override
+  public synchronized EpisodeData getEpisodeDataFromResult(final String result) {
+    // the selected entry is known by id, scanning is only needed for an arbitrary title
+    if (selectedId >= 0
+        && items.get(selectedId) instanceof EpisodeData episode
+        && episode.episodeName().equals(result)) {
+      return episode;
+    }
+    for (final Object item : items) {
+      if (item instanceof EpisodeData episode && episode.episodeName().equals(result)) {
+        return episode;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public AnimePage waitForAnimeSelect() {
+    getResult();
+    synchronized (this) {
+      return selectedId >= 0 && items.get(selectedId) instanceof AnimePage page ? page : null;
+    }
+  }
+
+  @Override
+  public EpisodeData waitForEpisodeSelect() {
+    getResult();
+    synchronized (this) {
+      return selectedId >= 0 && items.get(selectedId) instanceof EpisodeData episode
+          ? episode
+          : null;
+    }
+  }
+
+  @Override
+  public List<EpisodeData> waitForEpisodesSelect() {
+    getResult();
+    synchronized (this) {
+      final List<EpisodeData> selected = new ArrayList<>();
+      if (marked.isEmpty()) {
+        if (selectedId >= 0 && items.get(selectedId) instanceof EpisodeData episode) {
+          selected.add(episode);
+        }
+        return selected;
+      }
+      for (final int id : marked) {
+        if (items.get(id) instanceof EpisodeData episode) {
+          selected.add(episode);
+        }
+      }
+      return selected;
+    }
+  }
+
+  @Override
+  public void exit() {
+    closeTerminal();
+  }
+
+  private void add(final Object item, final String title) {
+    items.add(item);
+    titles.add(title == null ? "" : title);
+    index.add(title == null ? "" : title);
+  }
+
+  /** Handles a key read from the terminal, returning {@code false} once the selection is over. */
+  private boolean handleKey(final int key) throws IOException {
+    switch (key) {
+      case '\r':
+        synchronized (this) {
+          if (!marked.isEmpty()) {
+            selectedId = marked.iterator().next();
+          } else {
+            selectedId = index.matchCount() > 0 ? index.match(cursor) : -1;
+          }
+        }
+        return false;
+      case '\t':
+        toggleMark(1);
+        return true;
+      case 1: // Ctrl-A
+        markAll();
+        return true;
+      case 3: // Ctrl-C
+      case 7: // Ctrl-G
+        return false;
+      case 27:
+        return handleEscape();
+      case 127:
+      case 8: // Backspace
+        final String query = index.query();
+        if (!query.isEmpty()) {
+          setQuery(query.substring(0, query.length() - 1));
+        }
+        return true;
+      case 21: // Ctrl-U
+        setQuery("");
+        return true;
+      case 23: // Ctrl-W
+        setQuery(index.query().replaceFirst("\\S*\\s*$", ""));
+        return true;
+      case 16: // Ctrl-P
+      case 11: // Ctrl-K
+        moveCursor(-1);
+        return true;
+      case 14: // Ctrl-N
+      case '\n': // Ctrl-J
+        moveCursor(1);
+        return true;
+      default:
+        if (key >= 32) {
+          setQuery(index.query() + readCharacter(key));
+        }
+        return true;
+    }
+  }
+
+  /** Tells a lone {@code Esc} (cancel) from the start of an arrow or page key sequence. */
+  private boolean handleEscape() throws IOException {
+    final long deadline = System.currentTimeMillis() + ESCAPE_TIMEOUT_MILLIS;
+    while (input.available() == 0 && System.currentTimeMillis() < deadline) {
+      try {
+        Thread.sleep(1);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    if (input.available() == 0) {
+      return false;
+    }
+    final int kind = input.read();
+    if (kind != '[' && kind != 'O') {
+      return true;
+    }
+    switch (input.read()) {
+      case 'A' -> moveCursor(-1);
+      case 'B' -> moveCursor(1);
+      case 'Z' -> toggleMark(-1); // Shift-Tab
+      case '5' -> {
+        input.read(); // '~'
+        moveCursor(-listRows());
+      }
+      case '6' -> {
+        input.read(); // '~'
+        moveCursor(listRows());
+      }
+      default -> {
+        // other keys are ignored
+      }
+    }
+    return true;
+  }
+
+  /** Reads the remaining bytes of a UTF-8 character whose first byte was already read. */
+  private String readCharacter(final int first) throws IOException {
+    final int length = first >= 0xF0 ? 4 : first >= 0xE0 ? 3 : first >= 0xC0 ? 2 : 1;
+    final byte[] bytes = new byte[length];
+    bytes[0] = (byte) first;
+    for (int i = 1; i < length; i++) {
+      bytes[i] = (byte) input.read();
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private synchronized void setQuery(final String query) {
+    index.setQuery(query);
+    cursor = 0;
+    offset = 0;
+    draw();
+  }
+
+  private synchronized void moveCursor(final int delta) {
+    final int matches = index.matchCount();
+    cursor = Math.max(0, Math.min(matches - 1, cursor + delta));
+    if (cursor < offset) {
+      offset = cursor;
+    } else if (cursor >= offset + listRows()) {
+      offset = cursor - listRows() + 1;
+    }
+    draw();
+  }
+
+  /** Marks the entry under the cursor, or unmarks it, then moves the cursor by one entry. */
+  private synchronized void toggleMark(final int delta) {
+    if (index.matchCount() == 0) {
+      return;
+    }
+    final int id = index.match(cursor);
+    if (!marked.remove(id)) {
+      marked.add(id);
+    }
+    moveCursor(delta);
+  }
+
+  /** Marks every entry matching the query, like {@code select-all} in fzf. */
+  private synchronized void markAll() {
+    for (int rank = 0; rank < index.matchCount(); rank++) {
+      marked.add(index.match(rank));
+    }
+    draw();
+  }
+
+  private int listRows() {
+    return Math.max(1, rows - HEADER_LINES);
+  }
+
+  /** Redraws the whole screen, called after every change while holding the lock. */
+  private void draw() {
+    if (output == null) {
+      return;
+    }
+    final StringBuilder screen = new StringBuilder(rows * (columns + 8));
+    screen.append("\033[H").append(PROMPT).append(index.query()).append("\033[K\r\n");
+    screen
+        .append("  \033[2m")
+        .append(index.matchCount())
+        .append('/')
+        .append(index.size())
+        .append(marked.isEmpty() ? "" : " (" + marked.size() + ")")
+        .append(complete ? "" : " ...")
+        .append("\033[0m\033[K\r\n");
+    final int matches = index.matchCount();
+    cursor = Math.max(0, Math.min(cursor, matches - 1));
+    for (int row = 0; row < listRows(); row++) {
+      final int rank = offset + row;
+      if (rank < matches) {
+        final int id = index.match(rank);
+        final String title = printable(titles.get(id), columns - 2);
+        final char mark = marked.contains(id) ? '+' : ' ';
+        if (rank == cursor) {
+          screen.append("\033[1;7m>").append(mark).append(title).append("\033[0m");
+        } else {
+          screen.append(' ').append(mark).append(title);
+        }
+      }
+      screen.append("\033[K");
+      if (row < listRows() - 1) {
+        screen.append("\r\n");
+      }
+    }
+    final int promptColumn = PROMPT.length() + index.query().length() + 1;
+    screen.append("\033[1;").append(promptColumn).append('H');
+    try {
+      output.write(screen.toString().getBytes(StandardCharsets.UTF_8));
+      output.flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static String printable(final String title, final int maxLength) {
+    final StringBuilder builder = new StringBuilder(Math.max(0, maxLength));
+    for (int i = 0; i < title.length() && builder.length() < maxLength; i++) {
+      final char c = title.charAt(i);
+      builder.append(Character.isISOControl(c) ? ' ' : c);
+    }
+    return builder.toString();
+  }
+
+  private void openTerminal() {
+    try {
+      this.savedTtyState = stty("-g").trim();
+      final String[] size = stty("size").trim().split(" ");
+      // a terminal without a known size reports 0 0, the defaults are kept then
+      if (size.length == 2 && Integer.parseInt(size[0]) > 0 && Integer.parseInt(size[1]) > 0) {
+        this.rows = Integer.parseInt(size[0]);
+        this.columns = Integer.parseInt(size[1]);
+      }
+      stty("raw", "-echo");
+      this.input = new FileInputStream(TTY);
+      this.output = new FileOutputStream(TTY);
+      // alternate screen, so the terminal content is back once the selection ends
+      output.write("\033[?1049h".getBytes(StandardCharsets.US_ASCII));
+    } catch (IOException | NumberFormatException e) {
+      throw new IllegalStateException("Failed to set up the terminal: " + e.getMessage(), e);
+    }
+  }
+
+  private synchronized void closeTerminal() {
+    if (output == null) {
+      return;
+    }
+    try {
+      output.write("\033[?1049l".getBytes(StandardCharsets.US_ASCII));
+      output.flush();
+      output.close();
+      input.close();
+      stty(savedTtyState);
+    } catch (IOException e) {
+      // the terminal is gone, there is nothing left to restore
+    } finally {
+      output = null;
+      input = null;
+    }
+  }
+
+  /** Runs {@code stty} on the controlling terminal, returning its output. */
+  private static String stty(final String... arguments) throws IOException {
+    final List<String> command = new ArrayList<>(List.of("stty"));
+    command.addAll(List.of(arguments));
+    final Process process = new ProcessBuilder(command).redirectInput(new File(TTY)).start();
+    try {
+      final byte[] out = process.getInputStream().readAllBytes();
+      if (process.waitFor() != 0) {
+        throw new IOException("stty " + String.join(" ", arguments) + " failed");
+      }
+      return new String(out, StandardCharsets.UTF_8);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while running stty", e);
+    }
+  }
+}
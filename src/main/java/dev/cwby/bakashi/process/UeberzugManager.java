@@ -1,11 +1,19 @@
 package dev.cwby.bakashi.process;
 
 import dev.cwby.bakashi.Main;
+import dev.cwby.bakashi.data.Json;
+import dev.cwby.bakashi.profile.Profiler;
 
 import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Manages the lifecycle and operations of a running Ueberzug instance.
@@ -21,10 +29,15 @@ import java.nio.file.Paths;
  * accessible via the command line. - The process relies on a PID file stored in the temporary
  * directory defined by {@link Main.TEMP}. - Any failure in process execution or communication is
  * reported via exceptions.
+ *
+ * <p>Commands are sent straight to the ueberzugpp UNIX socket as JSON lines, the same messages
+ * {@code ueberzug cmd} would send, so drawing a preview does not start any process.
  */
 public class UeberzugManager {
 
   private static final String CMD = "ueberzug";
+  private static final String IDENTIFIER = "bakashicli";
+  private static volatile Boolean knownPresence;
   private final Path pidPath = Paths.get(Main.TEMP, ".bakashicli");
   private String pid;
 
@@ -37,20 +50,22 @@ public class UeberzugManager {
    * @throws IllegalStateException If the process fails to start or exits with a non-zero code.
    */
   public void spawn() {
-    final int exitCode =
-        executeProcess(
-            CMD,
-            "layer",
-            "--no-stdin",
-            "--silent",
-            "--use-escape-codes",
-            "--pid-file",
-            pidPath.toAbsolutePath().toString());
-
-    if (exitCode == 0) {
-      this.pid = readPidFromFile();
-    } else {
-      throw new IllegalStateException("Ueberzug exited with code: " + exitCode);
+    try (final Profiler.Span span = Profiler.span("ueberzug.spawn")) {
+      final int exitCode =
+          executeProcess(
+              CMD,
+              "layer",
+              "--no-stdin",
+              "--silent",
+              "--use-escape-codes",
+              "--pid-file",
+              pidPath.toAbsolutePath().toString());
+
+      if (exitCode == 0) {
+        this.pid = readPidFromFile();
+      } else {
+        throw new IllegalStateException("Ueberzug exited with code: " + exitCode);
+      }
     }
   }
 
@@ -67,23 +82,90 @@ public class UeberzugManager {
     return "/tmp/ueberzugpp-" + pid + ".socket";
   }
 
+  /**
+   * Draws an image over the terminal, replacing the one previously drawn.
+   *
+   * @param path The image file.
+   * @param x The column of the top left corner of the image.
+   * @param y The row of the top left corner of the image.
+   * @param maxWidth The maximum width of the image, in columns.
+   * @param maxHeight The maximum height of the image, in rows.
+   * @throws IOException If the command cannot be sent to the socket.
+   * @throws IllegalStateException If the Ueberzug process has not been initialized.
+   */
+  public void addImage(
+      final String path, final int x, final int y, final int maxWidth, final int maxHeight)
+      throws IOException {
+    final Map<String, Object> command = new LinkedHashMap<>();
+    command.put("action", "add");
+    command.put("identifier", IDENTIFIER);
+    command.put("x", x);
+    command.put("y", y);
+    command.put("max_width", maxWidth);
+    command.put("max_height", maxHeight);
+    command.put("path", path);
+    try (final Profiler.Span span = Profiler.span("ueberzug.draw", path)) {
+      send(command);
+    }
+  }
+
+  /**
+   * Removes the image previously drawn, if any.
+   *
+   * @throws IOException If the command cannot be sent to the socket.
+   * @throws IllegalStateException If the Ueberzug process has not been initialized.
+   */
+  public void removeImage() throws IOException {
+    send(Map.of("action", "remove", "identifier", IDENTIFIER));
+  }
+
   /**
    * Sends an exit signal to the Ueberzug process.
    *
-   * <p>This method uses the Ueberzug command to send a clean exit signal via the process socket.
+   * <p>The signal is sent through the socket, falling back to {@code ueberzug cmd} if the socket
+   * cannot be reached.
    *
    * @return The exit code of the Ueberzug process.
    * @throws IllegalStateException If the Ueberzug process is not initialized or the command fails.
    */
   public int exit() {
-    ensurePidInitialized();
-    final int exitCode = executeProcess(CMD, "cmd", "-s", getSocket(), "-a", "exit");
+    try (final Profiler.Span span = Profiler.span("ueberzug.exit")) {
+      ensurePidInitialized();
+      try {
+        send(Map.of("action", "exit"));
+        return 0;
+      } catch (IOException e) {
+        // the socket is unreachable, let the command line client report what is wrong
+      }
+      final int exitCode = executeProcess(CMD, "cmd", "-s", getSocket(), "-a", "exit");
+
+      if (exitCode != 0) {
+        throw new IllegalStateException(
+            "Ueberzug (send exit process) exited with code: " + exitCode);
+      }
 
-    if (exitCode != 0) {
-      throw new IllegalStateException("Ueberzug (send exit process) exited with code: " + exitCode);
+      return exitCode;
     }
+  }
 
-    return exitCode;
+  /**
+   * Sends a command to the Ueberzug socket as a single JSON line.
+   *
+   * <p>ueberzugpp reads the commands of a connection once the client disconnects, so every
+   * command uses its own short-lived connection, which costs far less than a process.
+   *
+   * @param command The command, serialized as a JSON object.
+   * @throws IOException If the socket cannot be reached or written.
+   */
+  private void send(final Map<String, Object> command) throws IOException {
+    final String line = Json.MAPPER.writeValueAsString(command) + "\n";
+    try (final SocketChannel channel =
+        SocketChannel.open(UnixDomainSocketAddress.of(getSocket()))) {
+      final ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
   }
 
   /**
@@ -138,6 +220,10 @@ public class UeberzugManager {
    * @return {@code true} if Ueberzug is present on the system; {@code false} otherwise.
    */
   public static boolean checkUeberzugPresence() {
+    final Boolean known = knownPresence;
+    if (known != null) {
+      return known;
+    }
     try {
       final int code = new ProcessBuilder(CMD, "--version").start().waitFor();
       return code == 0;
@@ -145,4 +231,13 @@ public class UeberzugManager {
       return false;
     }
   }
+
+  /**
+   * Skips the check of {@link #checkUeberzugPresence()}, e.g when the daemon already made it.
+   *
+   * @param present Whether ueberzug is installed.
+   */
+  public static void assumePresence(final boolean present) {
+    knownPresence = present;
+  }
 }
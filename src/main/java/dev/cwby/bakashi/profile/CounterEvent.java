@@ -0,0 +1,22 @@
+package dev.cwby.bakashi.profile;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/** An increment of one of the {@link Profiler.Counter}s, summed per counter to get its total. */
+@Name("dev.cwby.bakashi.Counter")
+@Label("Counter")
+@Category("Bakashi")
+@Description("An increment of a bakashi-cli counter, e.g bytes fetched or cache hits")
+@StackTrace(false)
+final class CounterEvent extends jdk.jfr.Event {
+
+  @Label("Counter")
+  String counter;
+
+  @Label("Delta")
+  long delta;
+}
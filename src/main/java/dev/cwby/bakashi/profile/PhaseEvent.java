@@ -0,0 +1,22 @@
+package dev.cwby.bakashi.profile;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/** A phase of a run, as timed by a {@link Profiler.Span}. */
+@Name("dev.cwby.bakashi.Phase")
+@Label("Phase")
+@Category("Bakashi")
+@Description("A timed phase of a bakashi-cli run, e.g a search or a thumbnail download")
+@StackTrace(false)
+final class PhaseEvent extends jdk.jfr.Event {
+
+  @Label("Phase")
+  String phase;
+
+  @Label("Detail")
+  String detail;
+}
@@ -0,0 +1,223 @@
+package dev.cwby.bakashi.profile;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/**
+ * Timing spans around the phases of a run, and counters of what they cost.
+ *
+ * <p>Spans and counters are emitted as the JFR events {@code dev.cwby.bakashi.Phase} and {@code
+ * dev.cwby.bakashi.Counter} while a recording has them enabled, e.g with {@code
+ * -XX:StartFlightRecording}, and are collected into a Chrome trace once {@link #enableTrace(Path)}
+ * was called by {@code --profile}. Otherwise {@link #span(String)} returns a shared no-op span and
+ * counters are dropped, so instrumented code costs an allocation the JIT removes and a branch.
+ *
+ * <pre>{@code
+ * try (final Profiler.Span span = Profiler.span("anroll.search", query)) {
+ *   ...
+ * }
+ * }</pre>
+ */
+public final class Profiler {
+
+  /** What the counters count, their names in the trace and in JFR. */
+  public enum Counter {
+    BYTES_FETCHED("bytes.fetched"),
+    RESPONSE_CACHE_HITS("response-cache.hits"),
+    RESPONSE_CACHE_REVALIDATIONS("response-cache.revalidations"),
+    RESPONSE_CACHE_MISSES("response-cache.misses"),
+    THUMBNAIL_CACHE_HITS("thumbnail-cache.hits"),
+    THUMBNAIL_CACHE_MISSES("thumbnail-cache.misses"),
+    HTTP_HEDGES("http.hedges"),
+    HTTP_RETRIES("http.retries");
+
+    private final String label;
+
+    Counter(final String label) {
+      this.label = label;
+    }
+
+    public String label() {
+      return label;
+    }
+  }
+
+  private static final Span NOOP = new Span(null, null, 0, null, null);
+
+  private static volatile TraceRecorder trace;
+
+  private Profiler() {}
+
+  /**
+   * Starts collecting spans and counters, and writes them as a Chrome trace when the JVM exits.
+   *
+   * @param output The file to write, in the Trace Event format read by {@code chrome://tracing}
+   *     and Perfetto.
+   */
+  public static synchronized void enableTrace(final Path output) {
+    if (trace != null) {
+      return;
+    }
+    final TraceRecorder recorder = new TraceRecorder(output);
+    trace = recorder;
+    Runtime.getRuntime()
+        .addShutdownHook(
+            new Thread(
+                () -> {
+                  try {
+                    recorder.write();
+                  } catch (IOException e) {
+                    System.err.println("Failed to write the profile: " + e.getMessage());
+                  }
+                },
+                "bakashi-profile-writer"));
+  }
+
+  /**
+   * Checks if anything is collected, for instrumentation that has a cost of its own.
+   *
+   * @return {@code true} if a trace is recorded or JFR records the counters.
+   */
+  public static boolean isEnabled() {
+    return trace != null || new CounterEvent().isEnabled();
+  }
+
+  /**
+   * Starts a span, to be closed at the end of the phase.
+   *
+   * @param name The name of the phase, e.g {@code anroll.search}.
+   * @return The span.
+   */
+  public static Span span(final String name) {
+    return span(name, null);
+  }
+
+  /**
+   * Starts a span, to be closed at the end of the phase.
+   *
+   * @param name The name of the phase, e.g {@code anroll.search}.
+   * @param detail What the phase works on, e.g the query or the URL, may be {@code null}.
+   * @return The span.
+   */
+  public static Span span(final String name, final String detail) {
+    final PhaseEvent event = new PhaseEvent();
+    final TraceRecorder recorder = trace;
+    if (recorder == null && !event.isEnabled()) {
+      return NOOP;
+    }
+    event.begin();
+    return new Span(name, detail, System.nanoTime(), event.isEnabled() ? event : null, recorder);
+  }
+
+  /**
+   * Adds to a counter.
+   *
+   * @param counter The counter.
+   * @param delta The amount to add.
+   */
+  public static void count(final Counter counter, final long delta) {
+    final CounterEvent event = new CounterEvent();
+    if (event.isEnabled()) {
+      event.counter = counter.label();
+      event.delta = delta;
+      event.commit();
+    }
+    final TraceRecorder recorder = trace;
+    if (recorder != null) {
+      recorder.count(counter, delta, System.nanoTime());
+    }
+  }
+
+  /**
+   * Counts the bytes read from a stream into {@link Counter#BYTES_FETCHED} once it is closed.
+   *
+   * @param stream The stream, e.g the raw body of a response.
+   * @return The stream itself when nothing is collected, a counting wrapper otherwise.
+   */
+  public static InputStream countBytes(final InputStream stream) {
+    if (!isEnabled()) {
+      return stream;
+    }
+    return new FilterInputStream(stream) {
+      private long count;
+      private boolean closed;
+
+      @Override
+      public int read() throws IOException {
+        final int read = super.read();
+        if (read >= 0) {
+          count++;
+        }
+        return read;
+      }
+
+      @Override
+      public int read(final byte[] buffer, final int offset, final int length)
+          throws IOException {
+        final int read = super.read(buffer, offset, length);
+        if (read > 0) {
+          count += read;
+        }
+        return read;
+      }
+
+      @Override
+      public long skip(final long n) throws IOException {
+        final long skipped = super.skip(n);
+        count += skipped;
+        return skipped;
+      }
+
+      @Override
+      public void close() throws IOException {
+        if (!closed) {
+          closed = true;
+          count(Counter.BYTES_FETCHED, count);
+        }
+        super.close();
+      }
+    };
+  }
+
+  /** A running phase, closing it records its duration. */
+  public static final class Span implements AutoCloseable {
+    private final String name;
+    private final String detail;
+    private final long start;
+    private final PhaseEvent event;
+    private final TraceRecorder recorder;
+
+    private Span(
+        final String name,
+        final String detail,
+        final long start,
+        final PhaseEvent event,
+        final TraceRecorder recorder) {
+      this.name = name;
+      this.detail = detail;
+      this.start = start;
+      this.event = event;
+      this.recorder = recorder;
+    }
+
+    @Override
+    public void close() {
+      if (name == null) {
+        return;
+      }
+      if (event != null) {
+        event.end();
+        if (event.shouldCommit()) {
+          event.phase = name;
+          event.detail = detail;
+          event.commit();
+        }
+      }
+      if (recorder != null) {
+        recorder.complete(name, detail, start, System.nanoTime());
+      }
+    }
+  }
+}
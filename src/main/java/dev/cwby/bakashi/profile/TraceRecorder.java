@@ -0,0 +1,96 @@
+package dev.cwby.bakashi.profile;
+
+import dev.cwby.bakashi.data.Json;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Collects spans and counter samples in memory and writes them in the Trace Event format: one
+ * complete ({@code X}) event per span on the lane of its thread, and one counter ({@code C}) event
+ * per increment, so the trace also charts bytes fetched and cache hits over time. The totals are
+ * repeated under {@code otherData} for a quick look without a viewer.
+ */
+final class TraceRecorder {
+
+  private final Path output;
+  private final long origin = System.nanoTime();
+  private final long pid = ProcessHandle.current().pid();
+  private final ConcurrentLinkedQueue<Map<String, Object>> events = new ConcurrentLinkedQueue<>();
+  private final Map<Long, String> threadNames = new ConcurrentHashMap<>();
+  private final Map<Profiler.Counter, Long> totals = new EnumMap<>(Profiler.Counter.class);
+
+  TraceRecorder(final Path output) {
+    this.output = output;
+  }
+
+  void complete(final String name, final String detail, final long start, final long end) {
+    final Thread thread = Thread.currentThread();
+    threadNames.putIfAbsent(thread.threadId(), thread.getName());
+    final Map<String, Object> event = new LinkedHashMap<>();
+    final int dot = name.indexOf('.');
+    event.put("name", name);
+    event.put("cat", dot < 0 ? name : name.substring(0, dot));
+    event.put("ph", "X");
+    event.put("ts", micros(start));
+    event.put("dur", (end - start) / 1000.0);
+    event.put("pid", pid);
+    event.put("tid", thread.threadId());
+    if (detail != null) {
+      event.put("args", Map.of("detail", detail));
+    }
+    events.add(event);
+  }
+
+  void count(final Profiler.Counter counter, final long delta, final long at) {
+    final long total;
+    synchronized (totals) {
+      total = totals.merge(counter, delta, Long::sum);
+    }
+    final Map<String, Object> event = new LinkedHashMap<>();
+    event.put("name", counter.label());
+    event.put("ph", "C");
+    event.put("ts", micros(at));
+    event.put("pid", pid);
+    event.put("args", Map.of("value", total));
+    events.add(event);
+  }
+
+  /** Writes the trace, replacing the output file. */
+  void write() throws IOException {
+    final List<Map<String, Object>> traceEvents = new ArrayList<>(events);
+    for (final Map.Entry<Long, String> thread : threadNames.entrySet()) {
+      final Map<String, Object> metadata = new LinkedHashMap<>();
+      metadata.put("name", "thread_name");
+      metadata.put("ph", "M");
+      metadata.put("pid", pid);
+      metadata.put("tid", thread.getKey());
+      metadata.put("args", Map.of("name", thread.getValue()));
+      traceEvents.add(metadata);
+    }
+    final Map<String, Object> counters = new LinkedHashMap<>();
+    synchronized (totals) {
+      totals.forEach((counter, total) -> counters.put(counter.label(), total));
+    }
+    final Map<String, Object> trace = new LinkedHashMap<>();
+    trace.put("traceEvents", traceEvents);
+    trace.put("displayTimeUnit", "ms");
+    trace.put("otherData", Map.of("counters", counters));
+    final Path parent = output.toAbsolutePath().getParent();
+    if (parent != null) {
+      Files.createDirectories(parent);
+    }
+    Json.MAPPER.writeValue(output.toFile(), trace);
+  }
+
+  private double micros(final long nanos) {
+    return (nanos - origin) / 1000.0;
+  }
+}
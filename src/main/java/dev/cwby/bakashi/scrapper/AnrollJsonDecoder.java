@@ -0,0 +1,158 @@
+package dev.cwby.bakashi.scrapper;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import dev.cwby.bakashi.data.AnimePage;
+import dev.cwby.bakashi.data.EpisodeData;
+import dev.cwby.bakashi.data.Json;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Single-pass decoder for the anroll JSON APIs.
+ *
+ * <p>The responses are read token by token straight from the body stream with a {@link JsonParser},
+ * keeping only the fields the scrapper needs and skipping everything else, so no intermediate tree
+ * or string is ever built.
+ */
+final class AnrollJsonDecoder {
+
+  /**
+   * One page of the episodes API.
+   *
+   * @param episodes The episodes listed in the page.
+   * @param totalPages The number of pages of the whole list, as reported by the API.
+   */
+  record EpisodesPage(List<EpisodeData> episodes, int totalPages) {}
+
+  private AnrollJsonDecoder() {}
+
+  /**
+   * Decodes a response of the {@code /animes/{id}/episodes} API.
+   *
+   * <p>The page count is read from {@code meta.totalOfPages}, falling back on {@code
+   * meta.totalOfEpisodes} divided by the page size, and on a single page if neither is present.
+   *
+   * @param body The response body, closed once decoded.
+   * @param mapper Builds an episode from its {@code n_episodio} and {@code generate_id}.
+   * @return The decoded page.
+   * @throws IOException If the body cannot be read or is not the expected JSON.
+   */
+  static EpisodesPage decodeEpisodes(
+      final InputStream body, final BiFunction<String, String, EpisodeData> mapper)
+      throws IOException {
+    final List<EpisodeData> episodes = new ArrayList<>();
+    int totalPages = 0;
+    int totalEpisodes = 0;
+
+    try (final JsonParser parser = Json.FACTORY.createParser(body)) {
+      expect(parser, JsonToken.START_OBJECT);
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        final String field = parser.currentName();
+        final JsonToken value = parser.nextToken();
+        if ("data".equals(field) && value == JsonToken.START_ARRAY) {
+          while (parser.nextToken() == JsonToken.START_OBJECT) {
+            String episodeNum = null;
+            String generateId = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+              final String episodeField = parser.currentName();
+              parser.nextToken();
+              switch (episodeField) {
+                case "n_episodio" -> episodeNum = parser.getValueAsString();
+                case "generate_id" -> generateId = parser.getValueAsString();
+                default -> parser.skipChildren();
+              }
+            }
+            if (episodeNum != null && generateId != null) {
+              episodes.add(mapper.apply(episodeNum, generateId));
+            }
+          }
+        } else if ("meta".equals(field) && value == JsonToken.START_OBJECT) {
+          while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String metaField = parser.currentName();
+            parser.nextToken();
+            switch (metaField) {
+              case "totalOfPages" -> totalPages = parser.getValueAsInt();
+              case "totalOfEpisodes" -> totalEpisodes = parser.getValueAsInt();
+              default -> parser.skipChildren();
+            }
+          }
+        } else {
+          parser.skipChildren();
+        }
+      }
+    }
+
+    if (totalPages <= 0 && totalEpisodes > 0 && !episodes.isEmpty()) {
+      totalPages = (totalEpisodes + episodes.size() - 1) / episodes.size();
+    }
+    return new EpisodesPage(episodes, Math.max(1, totalPages));
+  }
+
+  /**
+   * Decodes a response of the {@code api-search.anroll.net/data} API.
+   *
+   * @param body The response body, closed once decoded.
+   * @param thumbnailOf Builds the thumbnail URL of an anime from its slug.
+   * @return The anime pages found, in the order of the response.
+   * @throws IOException If the body cannot be read or is not the expected JSON.
+   */
+  static List<AnimePage> decodeSearch(
+      final InputStream body, final Function<String, String> thumbnailOf) throws IOException {
+    final List<AnimePage> pages = new ArrayList<>();
+
+    try (final JsonParser parser = Json.FACTORY.createParser(body)) {
+      expect(parser, JsonToken.START_OBJECT);
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        final String field = parser.currentName();
+        final JsonToken value = parser.nextToken();
+        if ("data".equals(field) && value == JsonToken.START_ARRAY) {
+          while (parser.nextToken() == JsonToken.START_OBJECT) {
+            pages.add(decodeAnimePage(parser, thumbnailOf));
+          }
+        } else {
+          parser.skipChildren();
+        }
+      }
+    }
+
+    return pages;
+  }
+
+  private static AnimePage decodeAnimePage(
+      final JsonParser parser, final Function<String, String> thumbnailOf) throws IOException {
+    String id = null;
+    String title = null;
+    String slug = null;
+    String synopsis = null;
+    int totalEps = 0;
+    String genericPath = null;
+
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      final String field = parser.currentName();
+      parser.nextToken();
+      switch (field) {
+        case "id" -> id = parser.getValueAsString();
+        case "title" -> title = parser.getValueAsString();
+        case "slug" -> slug = parser.getValueAsString();
+        case "synopsis" -> synopsis = parser.getValueAsString();
+        case "total_eps" -> totalEps = parser.getValueAsInt();
+        case "generic_path" -> genericPath = parser.getValueAsString();
+        default -> parser.skipChildren();
+      }
+    }
+
+    return new AnimePage(id, title, slug, synopsis, totalEps, genericPath, thumbnailOf.apply(slug));
+  }
+
+  private static void expect(final JsonParser parser, final JsonToken token) throws IOException {
+    if (parser.nextToken() != token) {
+      throw new IOException(
+          "Unexpected JSON, expected " + token + " but got " + parser.currentToken());
+    }
+  }
+}
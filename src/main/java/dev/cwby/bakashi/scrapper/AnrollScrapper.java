@@ -1,25 +1,55 @@
 package dev.cwby.bakashi.scrapper;
 
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.cwby.bakashi.Main;
 import dev.cwby.bakashi.data.AnimePage;
 import dev.cwby.bakashi.data.EpisodeData;
+import dev.cwby.bakashi.net.HttpStatusException;
+import dev.cwby.bakashi.net.HttpTransport;
+import dev.cwby.bakashi.profile.Profiler;
+import dev.cwby.bakashi.scrapper.AnrollJsonDecoder.EpisodesPage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
 
 public class AnrollScrapper implements IScrapper {
 
-  private static final ObjectMapper MAPPER = new ObjectMapper();
-  private static final HttpClient CLIENT = HttpClient.newHttpClient();
+  // how long each endpoint is served from the response cache before being revalidated
+  private static final Duration DASHBOARD_TTL = Duration.ofMinutes(5);
+  private static final Duration SEARCH_TTL = Duration.ofHours(6);
+  private static final Duration EPISODES_TTL = Duration.ofHours(1);
+  private static final Duration FINISHED_EPISODES_TTL = Duration.ofDays(7);
+
+  // where the episode data lives in the __NEXT_DATA__ payload and in the _next/data route
+  private static final String PAGE_SLUG_SERIE = "/props/pageProps/data/anime/slug_serie";
+  private static final String PAGE_N_EPISODIO = "/props/pageProps/data/n_episodio";
+  private static final String PAGE_BUILD_ID = "/buildId";
+  private static final String DATA_SLUG_SERIE = "/pageProps/data/anime/slug_serie";
+  private static final String DATA_N_EPISODIO = "/pageProps/data/n_episodio";
+
+  private volatile String buildId;
 
   @Override
   public String referer() {
@@ -28,90 +58,412 @@ public class AnrollScrapper implements IScrapper {
 
   @Override
   public List<EpisodeData> fetchEpisodesFromPage(AnimePage animePage) throws IOException {
-    String episodesApi =
-        "https://apiv3-prd.anroll.net/animes/" + animePage.id() + "/episodes?page=1&order=desc";
-    List<EpisodeData> episodes = new ArrayList<>();
-    final var request = HttpRequest.newBuilder().uri(URI.create(episodesApi)).build();
-    try {
-      final String responseBody = CLIENT.send(request, HttpResponse.BodyHandlers.ofString()).body();
-      String json = MAPPER.readTree(responseBody).get("data").toString();
-      List<JsonNode> nodes = MAPPER.readValue(json, new TypeReference<>() {});
-      for (JsonNode episode : nodes) {
-        String episodeNum = episode.get("n_episodio").asText();
-        String episodeLink = referer() + "/e/" + episode.get("generate_id").asText();
-        String episodeName = animePage.title() + " " + episodeNum;
-        // TODO: maybe URLEncoder
-        String episodeThumbnail =
-            "https://www.anroll.net/_next/image?url=https%3A%2F%2Fstatic.anroll.net%2Fimages%2Fanimes%2Fscreens%2F"
-                + animePage.slug()
-                + "%2F"
-                + episodeNum
-                + ".jpg&w=256&q=75";
-        episodes.add(new EpisodeData(episodeName, episodeLink, episodeThumbnail));
+    return streamEpisodesFromPage(animePage, batch -> {});
+  }
+
+  @Override
+  public List<EpisodeData> streamEpisodesFromPage(
+      final AnimePage animePage, final Consumer<List<EpisodeData>> consumer) throws IOException {
+    try (final Profiler.Span span = Profiler.span("anroll.episodes", animePage.slug())) {
+      final EpisodesPage first = HttpTransport.await(fetchEpisodesPage(animePage, 1));
+      consumer.accept(first.episodes());
+
+      // the pages are fetched together, but each one is handed over only after the one before it
+      final List<CompletableFuture<EpisodesPage>> remaining = new ArrayList<>();
+      CompletableFuture<Void> delivered = CompletableFuture.completedFuture(null);
+      for (int page = 2; page <= first.totalPages(); page++) {
+        final CompletableFuture<EpisodesPage> episodesPage = fetchEpisodesPage(animePage, page);
+        remaining.add(episodesPage);
+        delivered =
+            delivered.thenCombine(
+                episodesPage,
+                (previous, fetched) -> {
+                  consumer.accept(fetched.episodes());
+                  return null;
+                });
+      }
+      HttpTransport.await(delivered);
+
+      final List<EpisodeData> episodes = new ArrayList<>(first.episodes());
+      for (final CompletableFuture<EpisodesPage> page : remaining) {
+        episodes.addAll(page.join().episodes());
+      }
+
+      if (animePage.totalEpisodes() > 0 && episodes.size() >= animePage.totalEpisodes()) {
+        // every announced episode is out, the list will not change anymore
+        for (int page = 1; page <= first.totalPages(); page++) {
+          transport().extendCache(episodesApi(animePage, page), FINISHED_EPISODES_TTL);
+        }
       }
-    } catch (InterruptedException e) {
-      throw new RuntimeException(e);
+
+      return episodes;
     }
+  }
 
-    return episodes;
+  /** The episodes API is queried with {@code order=desc}. */
+  @Override
+  public boolean newestEpisodesFirst(final AnimePage animePage) {
+    return true;
+  }
+
+  private static String episodesApi(final AnimePage animePage, final int page) {
+    return "https://apiv3-prd.anroll.net/animes/"
+        + animePage.id()
+        + "/episodes?page="
+        + page
+        + "&order=desc";
+  }
+
+  private CompletableFuture<EpisodesPage> fetchEpisodesPage(
+      final AnimePage animePage, final int page) {
+    return transport()
+        .getCachedStreamAsync(
+            episodesApi(animePage, page), HttpTransport.API_TIMEOUT, EPISODES_TTL)
+        .thenApply(
+            body -> {
+              try (body) {
+                return decodeEpisodesPage(animePage, body);
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            });
+  }
+
+  /**
+   * Decodes a page of the episodes API of an anime.
+   *
+   * @param animePage The anime the episodes belong to.
+   * @param body The response body, closed once decoded.
+   * @return The decoded page.
+   * @throws IOException If the body cannot be read or is not the expected JSON.
+   */
+  EpisodesPage decodeEpisodesPage(final AnimePage animePage, final InputStream body)
+      throws IOException {
+    try (final Profiler.Span span = Profiler.span("anroll.parse.episodes")) {
+      return AnrollJsonDecoder.decodeEpisodes(
+          body,
+          (episodeNum, generateId) ->
+              new EpisodeData(
+                  animePage.title() + " " + episodeNum,
+                  referer() + "/e/" + generateId,
+                  episodeThumbnail(animePage.slug(), episodeNum)));
+    }
+  }
+
+  private static String episodeThumbnail(final String slug, final String episodeNum) {
+    // TODO: maybe URLEncoder
+    return "https://www.anroll.net/_next/image?url=https%3A%2F%2Fstatic.anroll.net%2Fimages%2Fanimes%2Fscreens%2F"
+        + slug
+        + "%2F"
+        + episodeNum
+        + ".jpg&w=256&q=75";
   }
 
   @Override
   public List<EpisodeData> getLastEpisodes() throws IOException {
-    final Document document = fetchDocument(referer());
-    final Elements articles = extractArticlesFromDashboard(document);
-    return articles.stream().map(this::extractEpisodeDataFromArticle).toList();
+    try (final Profiler.Span span = Profiler.span("anroll.dashboard")) {
+      final String knownBuildId = buildId();
+      if (knownBuildId != null) {
+        final String dataRoute = referer() + "/_next/data/" + knownBuildId + "/index.json";
+        try (InputStream body =
+                transport().getCachedStream(dataRoute, HttpTransport.API_TIMEOUT, DASHBOARD_TTL);
+            JsonParser parser = NextDataExtractor.parse(body)) {
+          final List<EpisodeData> episodes =
+              extractReleases(NextDataExtractor.readSubtree(parser, "/pageProps"));
+          if (!episodes.isEmpty()) {
+            return episodes;
+          }
+        } catch (HttpStatusException e) {
+          if (e.getStatusCode() != 404) {
+            throw e;
+          }
+          // the site was redeployed under a new build id, learn it from the page below
+        }
+      }
+
+      // not cached, so the download stops at the end of the payload: the build id it carries
+      // sends the next calls to the cached data route above
+      try (InputStream body = transport().getStream(referer(), HttpTransport.PAGE_TIMEOUT)) {
+        final ByteArrayOutputStream read = new ByteArrayOutputStream();
+        try {
+          final List<EpisodeData> episodes = decodeDashboard(new RecordingInputStream(body, read));
+          if (!episodes.isEmpty()) {
+            return episodes;
+          }
+        } catch (IOException e) {
+          // no usable __NEXT_DATA__, fall back on the rendered HTML below
+        }
+        // what was read already, then the rest of the page, downloaded once either way
+        return decodeDashboardHtml(
+            new SequenceInputStream(new ByteArrayInputStream(read.toByteArray()), body));
+      }
+    }
+  }
+
+  /**
+   * Copies everything read from a stream, so that a page can be parsed again from its start once
+   * the first pass gave up on it. Closing it leaves the stream open.
+   */
+  private static final class RecordingInputStream extends FilterInputStream {
+    private final ByteArrayOutputStream copy;
+
+    private RecordingInputStream(final InputStream in, final ByteArrayOutputStream copy) {
+      super(in);
+      this.copy = copy;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final int read = in.read();
+      if (read != -1) {
+        copy.write(read);
+      }
+      return read;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+      final int read = in.read(buffer, offset, length);
+      if (read > 0) {
+        copy.write(buffer, offset, read);
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(final long count) throws IOException {
+      // read through, so that skipped bytes are copied as well
+      final byte[] skipped = new byte[(int) Math.min(Math.max(count, 0), 8192)];
+      return Math.max(0, read(skipped, 0, skipped.length));
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() {
+      // the caller owns the stream, and may read the rest of the page from it
+    }
+  }
+
+  @Override
+  public List<EpisodeData> pollLastEpisodes() throws IOException {
+    // expired, the cached dashboard is revalidated with its ETag instead of served as is
+    final String knownBuildId = buildId();
+    if (knownBuildId != null) {
+      transport()
+          .extendCache(referer() + "/_next/data/" + knownBuildId + "/index.json", Duration.ZERO);
+    }
+    return getLastEpisodes();
+  }
+
+  /**
+   * Reads the released episodes from the {@code __NEXT_DATA__} payload of the dashboard, and
+   * remembers the build id it carries.
+   *
+   * @param page The dashboard HTML, only read up to the end of the payload.
+   * @return The released episodes, empty if the payload has none.
+   * @throws IOException If the page has no {@code __NEXT_DATA__} payload or it is not valid JSON.
+   */
+  List<EpisodeData> decodeDashboard(final InputStream page) throws IOException {
+    try (final Profiler.Span span = Profiler.span("anroll.parse.dashboard");
+        JsonParser parser = NextDataExtractor.parse(NextDataExtractor.seek(page))) {
+      final JsonNode pageProps = NextDataExtractor.readSubtree(parser, "/props/pageProps");
+      rememberBuildId(NextDataExtractor.collect(parser, Set.of("/buildId")).get("/buildId"));
+      return extractReleases(pageProps);
+    }
+  }
+
+  /**
+   * Reads the released episodes from the rendered HTML of the dashboard, the slow path taken when
+   * the {@code __NEXT_DATA__} payload is missing or unusable.
+   *
+   * @param page The dashboard HTML.
+   * @return The released episodes.
+   * @throws IOException If the page cannot be read.
+   */
+  List<EpisodeData> decodeDashboardHtml(final InputStream page) throws IOException {
+    try (final Profiler.Span span = Profiler.span("anroll.parse.dashboard-html")) {
+      final Document document = Jsoup.parse(page, null, referer());
+      final Elements articles = extractArticlesFromDashboard(document);
+      return articles.stream().map(this::extractEpisodeDataFromArticle).toList();
+    }
   }
 
   @Override
   public List<AnimePage> findAnimePage(final String search) throws IOException {
-    List<AnimePage> pages = new ArrayList<>();
-    final var request =
-        HttpRequest.newBuilder()
-            .uri(URI.create("https://api-search.anroll.net/data?q=" + search))
-            .build();
-    try {
-      final String responseBody = CLIENT.send(request, HttpResponse.BodyHandlers.ofString()).body();
-      List<JsonNode> pageNode =
-          MAPPER.readValue(
-              MAPPER.readTree(responseBody).get("data").toString(), new TypeReference<>() {});
-      for (JsonNode node : pageNode) {
-        String slug = node.get("slug").asText();
-        String thumbnail = "https://static.anroll.net/images/animes/capas/" + slug + ".jpg";
-
-        int totalEps = 0;
-        if (node.has("total_eps")) {
-          totalEps = node.get("total_eps").asInt();
-        }
+    try (final Profiler.Span span = Profiler.span("anroll.search", search);
+        InputStream body =
+            transport().getCachedStream(
+                "https://api-search.anroll.net/data?q=" + search,
+                HttpTransport.API_TIMEOUT,
+                SEARCH_TTL)) {
+      return decodeSearch(body);
+    }
+  }
 
-        pages.add(
-            new AnimePage(
-                node.get("id").asText(),
-                node.get("title").asText(),
-                slug,
-                node.get("synopsis").asText(),
-                totalEps,
-                node.get("generic_path").asText(),
-                thumbnail));
-      }
-    } catch (InterruptedException e) {
-      throw new IOException(e.getMessage());
+  /**
+   * Decodes a response of the search API.
+   *
+   * @param body The response body, closed once decoded.
+   * @return The anime pages found.
+   * @throws IOException If the body cannot be read or is not the expected JSON.
+   */
+  List<AnimePage> decodeSearch(final InputStream body) throws IOException {
+    try (final Profiler.Span span = Profiler.span("anroll.parse.search")) {
+      return AnrollJsonDecoder.decodeSearch(
+          body, slug -> "https://static.anroll.net/images/animes/capas/" + slug + ".jpg");
     }
-    return pages;
   }
 
   @Override
   public String extractVideoUrl(final String episodeLink) throws IOException {
-    final Document document = fetchDocument(episodeLink);
-    final String scriptTag = document.select("#__NEXT_DATA__").getFirst().data();
-    final JsonNode dataNode = MAPPER.readTree(scriptTag).get("props").get("pageProps").get("data");
+    try (final Profiler.Span span = Profiler.span("anroll.video-url", episodeLink)) {
+      final String knownBuildId = buildId();
+      if (knownBuildId != null && episodeLink.startsWith(referer())) {
+        final String dataRoute =
+            referer()
+                + "/_next/data/"
+                + knownBuildId
+                + episodeLink.substring(referer().length())
+                + ".json";
+        try (InputStream body = transport().getStream(dataRoute, HttpTransport.API_TIMEOUT);
+            JsonParser parser = NextDataExtractor.parse(body)) {
+          final Map<String, String> values =
+              NextDataExtractor.collect(parser, Set.of(DATA_SLUG_SERIE, DATA_N_EPISODIO));
+          if (values.size() == 2) {
+            return videoUrl(values.get(DATA_SLUG_SERIE), values.get(DATA_N_EPISODIO));
+          }
+        } catch (HttpStatusException e) {
+          if (e.getStatusCode() != 404) {
+            throw e;
+          }
+          // the site was redeployed under a new build id, learn it from the page below
+        }
+      }
+
+      // only the page up to the end of the __NEXT_DATA__ payload is downloaded
+      try (InputStream page = transport().getStream(episodeLink, HttpTransport.PAGE_TIMEOUT)) {
+        return decodeEpisodePage(page, episodeLink);
+      }
+    }
+  }
+
+  /**
+   * Reads the stream URL of an episode from the {@code __NEXT_DATA__} payload of its page, and
+   * remembers the build id it carries.
+   *
+   * @param page The episode HTML, only read up to the end of the payload.
+   * @param episodeLink The URL of the page, for error messages.
+   * @return The URL of the HLS playlist of the episode.
+   * @throws IOException If the page has no payload or the payload has no episode data.
+   */
+  String decodeEpisodePage(final InputStream page, final String episodeLink) throws IOException {
+    try (final Profiler.Span span = Profiler.span("anroll.parse.episode-page");
+        JsonParser parser = NextDataExtractor.parse(NextDataExtractor.seek(page))) {
+      final Map<String, String> values =
+          NextDataExtractor.collect(
+              parser, Set.of(PAGE_SLUG_SERIE, PAGE_N_EPISODIO, PAGE_BUILD_ID));
+      rememberBuildId(values.get(PAGE_BUILD_ID));
+      if (!values.containsKey(PAGE_SLUG_SERIE) || !values.containsKey(PAGE_N_EPISODIO)) {
+        throw new IOException("No episode data found in " + episodeLink);
+      }
+      return videoUrl(values.get(PAGE_SLUG_SERIE), values.get(PAGE_N_EPISODIO));
+    }
+  }
+
+  private static String videoUrl(final String slugSerie, final String nEpisodio) {
     final String CDN_ENDPOINT = "https://cdn-zenitsu-2-gamabunta.b-cdn.net/cf/hls/animes";
-    final String slugSerie = dataNode.get("anime").get("slug_serie").asText();
-    final String nEpisodio = dataNode.get("n_episodio").asText();
     final String streamExtension = ".mp4/media-1/stream.m3u8";
     return CDN_ENDPOINT + "/" + slugSerie + "/" + nEpisodio + streamExtension;
   }
 
+  /**
+   * Returns the Next.js build id of the site, needed to address its {@code _next/data} routes, as
+   * last seen in a {@code __NEXT_DATA__} payload by this or a previous run.
+   */
+  private String buildId() {
+    if (buildId == null && Files.exists(buildIdFile())) {
+      try {
+        buildId = Files.readString(buildIdFile()).trim();
+      } catch (IOException e) {
+        return null;
+      }
+    }
+    return buildId == null || buildId.isEmpty() ? null : buildId;
+  }
+
+  /**
+   * The transport and the paths are resolved on use: the native image builds the scrapper registry
+   * at build time, and neither an HTTP client nor a path may end up in the image heap.
+   */
+  private static HttpTransport transport() {
+    return HttpTransport.shared();
+  }
+
+  private static Path buildIdFile() {
+    return Paths.get(Main.TEMP, "anroll-build-id");
+  }
+
+  private void rememberBuildId(final String newBuildId) {
+    if (newBuildId == null || newBuildId.equals(buildId)) {
+      return;
+    }
+    buildId = newBuildId;
+    try {
+      Files.writeString(buildIdFile(), newBuildId);
+    } catch (IOException e) {
+      // only costs an HTML page on the next run
+    }
+  }
+
+  /**
+   * Finds the released episodes in the page props of the dashboard, i.e every object carrying a
+   * {@code generate_id}, an {@code n_episodio} and its {@code anime}, in document order.
+   */
+  private List<EpisodeData> extractReleases(final JsonNode pageProps) {
+    final List<EpisodeData> episodes = new ArrayList<>();
+    if (pageProps == null) {
+      return episodes;
+    }
+    final Set<String> seen = new HashSet<>();
+    final Deque<JsonNode> pending = new ArrayDeque<>();
+    pending.push(pageProps);
+    while (!pending.isEmpty()) {
+      final JsonNode node = pending.pop();
+      if (node.isObject()
+          && node.hasNonNull("generate_id")
+          && node.hasNonNull("n_episodio")
+          && node.path("anime").hasNonNull("slug_serie")) {
+        final JsonNode anime = node.get("anime");
+        final String generateId = node.get("generate_id").asText();
+        if (seen.add(generateId)) {
+          final String episodeNum = node.get("n_episodio").asText();
+          final String title =
+              anime.hasNonNull("titulo")
+                  ? anime.get("titulo").asText()
+                  : anime.path("title").asText();
+          final String slug = anime.get("slug_serie").asText();
+          episodes.add(
+              new EpisodeData(
+                  title + " " + episodeNum,
+                  referer() + "/e/" + generateId,
+                  episodeThumbnail(slug, episodeNum)));
+        }
+        continue;
+      }
+      // pushed in reverse so that the traversal keeps the document order
+      final List<JsonNode> children = new ArrayList<>();
+      node.elements().forEachRemaining(children::add);
+      for (int i = children.size() - 1; i >= 0; i--) {
+        pending.push(children.get(i));
+      }
+    }
+    return episodes;
+  }
+
   private Elements extractArticlesFromDashboard(final Document document) {
     return document
         .selectXpath("//*[@id=\"__next\"]/main/div[4]/ul")
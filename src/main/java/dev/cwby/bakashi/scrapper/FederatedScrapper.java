@@ -0,0 +1,261 @@
+package dev.cwby.bakashi.scrapper;
+
+import dev.cwby.bakashi.data.AnimePage;
+import dev.cwby.bakashi.data.EpisodeData;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Searches several scrappers at once and merges their results, the {@code -o all} origin.
+ *
+ * <p>Every origin is asked concurrently and has its own deadline: the results of an origin are
+ * handed to the consumer as soon as it answers, without duplicates of what another origin already
+ * returned, and an origin still running at its deadline is left out of the merged result, so a slow
+ * or failing one never holds back the others.
+ *
+ * <p>The origin of every returned page and episode is remembered, so listing the episodes of a page
+ * and extracting their video URLs is done by the scrapper that found them.
+ */
+public class FederatedScrapper implements IScrapper {
+
+  /** How long each origin is waited for, the timeout of an API request. */
+  public static final Duration DEFAULT_DEADLINE = Duration.ofSeconds(15);
+
+  /** Runs the requests of every origin, the calls of the scrappers are blocking. */
+  private static final ExecutorService EXECUTOR =
+      Executors.newCachedThreadPool(
+          runnable -> {
+            final Thread thread = new Thread(runnable, "bakashi-federated-search");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private final List<IScrapper> scrappers;
+  private final Duration deadline;
+  private final Map<AnimePage, IScrapper> pageOrigins = new ConcurrentHashMap<>();
+  private final Map<String, IScrapper> episodeOrigins = new ConcurrentHashMap<>();
+
+  /**
+   * Creates a federated scrapper waiting {@link #DEFAULT_DEADLINE} for each origin.
+   *
+   * @param scrappers The origins, the first to answer keeps an entry several of them return.
+   */
+  public FederatedScrapper(final List<IScrapper> scrappers) {
+    this(scrappers, DEFAULT_DEADLINE);
+  }
+
+  /**
+   * Creates a federated scrapper.
+   *
+   * @param scrappers The origins, the first to answer keeps an entry several of them return.
+   * @param deadline How long each origin is waited for.
+   */
+  public FederatedScrapper(final List<IScrapper> scrappers, final Duration deadline) {
+    if (scrappers.isEmpty()) {
+      throw new IllegalArgumentException("No scrapper to federate");
+    }
+    this.scrappers = List.copyOf(scrappers);
+    this.deadline = deadline;
+  }
+
+  @Override
+  public List<EpisodeData> getLastEpisodes() throws IOException {
+    return streamLastEpisodes(episodes -> {});
+  }
+
+  @Override
+  public List<EpisodeData> pollLastEpisodes() throws IOException {
+    return fanOutEpisodes(IScrapper::pollLastEpisodes, episodes -> {});
+  }
+
+  @Override
+  public List<EpisodeData> streamLastEpisodes(final Consumer<List<EpisodeData>> consumer)
+      throws IOException {
+    return fanOutEpisodes(IScrapper::getLastEpisodes, consumer);
+  }
+
+  private List<EpisodeData> fanOutEpisodes(
+      final Request<EpisodeData> request, final Consumer<List<EpisodeData>> consumer)
+      throws IOException {
+    return fanOut(
+        request,
+        episode -> normalize(episode.episodeName()),
+        (episode, origin) -> episodeOrigins.putIfAbsent(episode.episodeUrl(), origin),
+        consumer);
+  }
+
+  @Override
+  public List<AnimePage> findAnimePage(final String search) throws IOException {
+    return streamAnimePages(search, pages -> {});
+  }
+
+  @Override
+  public List<AnimePage> streamAnimePages(
+      final String search, final Consumer<List<AnimePage>> consumer) throws IOException {
+    return fanOut(
+        scrapper -> scrapper.findAnimePage(search),
+        page -> page.slug() != null ? normalize(page.slug()) : normalize(page.title()),
+        pageOrigins::putIfAbsent,
+        consumer);
+  }
+
+  @Override
+  public List<EpisodeData> fetchEpisodesFromPage(final AnimePage animePage) throws IOException {
+    return streamEpisodesFromPage(animePage, episodes -> {});
+  }
+
+  @Override
+  public List<EpisodeData> streamEpisodesFromPage(
+      final AnimePage animePage, final Consumer<List<EpisodeData>> consumer) throws IOException {
+    final IScrapper origin = pageOrigins.getOrDefault(animePage, scrappers.get(0));
+    final List<EpisodeData> episodes = origin.streamEpisodesFromPage(animePage, consumer);
+    for (final EpisodeData episode : episodes) {
+      episodeOrigins.putIfAbsent(episode.episodeUrl(), origin);
+    }
+    return episodes;
+  }
+
+  @Override
+  public boolean newestEpisodesFirst(final AnimePage animePage) {
+    return pageOrigins.getOrDefault(animePage, scrappers.get(0)).newestEpisodesFirst(animePage);
+  }
+
+  @Override
+  public String extractVideoUrl(final String episodeLink) throws IOException {
+    return originOf(episodeLink).extractVideoUrl(episodeLink);
+  }
+
+  /** The referer of the first origin, see {@link #sourceOf(EpisodeData)} for a given episode. */
+  @Override
+  public String referer() {
+    return scrappers.get(0).referer();
+  }
+
+  @Override
+  public IScrapper sourceOf(final EpisodeData episode) {
+    return originOf(episode.episodeUrl()).sourceOf(episode);
+  }
+
+  /**
+   * Finds the origin of an episode link, falling back on the origin whose referer it starts with
+   * for links this instance did not list, e.g ones saved by a previous run.
+   */
+  private IScrapper originOf(final String episodeLink) {
+    final IScrapper origin = episodeOrigins.get(episodeLink);
+    if (origin != null) {
+      return origin;
+    }
+    for (final IScrapper scrapper : scrappers) {
+      if (episodeLink.startsWith(scrapper.referer())) {
+        return scrapper;
+      }
+    }
+    return scrappers.get(0);
+  }
+
+  /**
+   * Runs a request on every origin, handing each answer to the consumer without the entries
+   * already delivered, and waits for every origin to answer or reach its deadline.
+   *
+   * @param request The request made to each origin.
+   * @param keyOf The identity of an entry, entries with the same key are the same.
+   * @param remember Records the origin of every delivered entry.
+   * @param consumer Receives the new entries of each answer, never concurrently.
+   * @return Every delivered entry, in the order they were delivered.
+   * @throws IOException If no origin answered, the failure of the first one.
+   */
+  private <T> List<T> fanOut(
+      final Request<T> request,
+      final Function<T, String> keyOf,
+      final BiConsumer<T, IScrapper> remember,
+      final Consumer<List<T>> consumer)
+      throws IOException {
+    final List<T> merged = new ArrayList<>();
+    final Set<String> seen = new HashSet<>();
+    final List<Throwable> failures = new ArrayList<>();
+    final List<CompletableFuture<Void>> answers = new ArrayList<>(scrappers.size());
+    for (final IScrapper scrapper : scrappers) {
+      final CompletableFuture<List<T>> answer =
+          CompletableFuture.supplyAsync(
+              () -> {
+                try {
+                  return request.send(scrapper);
+                } catch (IOException e) {
+                  throw new UncheckedIOException(e);
+                }
+              },
+              EXECUTOR);
+      answers.add(
+          answer
+              .orTimeout(deadline.toMillis(), TimeUnit.MILLISECONDS)
+              .handle(
+                  (entries, throwable) -> {
+                    synchronized (merged) {
+                      if (throwable != null) {
+                        failures.add(unwrap(throwable));
+                        return null;
+                      }
+                      final List<T> fresh = new ArrayList<>();
+                      for (final T entry : entries) {
+                        if (seen.add(keyOf.apply(entry))) {
+                          remember.accept(entry, scrapper);
+                          fresh.add(entry);
+                        }
+                      }
+                      merged.addAll(fresh);
+                      if (!fresh.isEmpty()) {
+                        consumer.accept(fresh);
+                      }
+                      return null;
+                    }
+                  }));
+    }
+    CompletableFuture.allOf(answers.toArray(CompletableFuture[]::new)).join();
+
+    synchronized (merged) {
+      if (failures.size() == scrappers.size()) {
+        final Throwable first = failures.get(0);
+        if (first instanceof IOException ioException) {
+          throw ioException;
+        }
+        throw new IOException("No origin answered within " + deadline.toSeconds() + "s", first);
+      }
+      return merged;
+    }
+  }
+
+  private static Throwable unwrap(final Throwable throwable) {
+    Throwable cause = throwable;
+    while ((cause instanceof CompletionException || cause instanceof UncheckedIOException)
+        && cause.getCause() != null) {
+      cause = cause.getCause();
+    }
+    return cause;
+  }
+
+  private static String normalize(final String value) {
+    return value == null ? "" : value.strip().toLowerCase(Locale.ROOT);
+  }
+
+  /** A request made to one origin. */
+  @FunctionalInterface
+  private interface Request<T> {
+    List<T> send(IScrapper scrapper) throws IOException;
+  }
+}
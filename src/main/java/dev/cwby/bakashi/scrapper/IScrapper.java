@@ -2,12 +2,12 @@ package dev.cwby.bakashi.scrapper;
 
 import dev.cwby.bakashi.data.AnimePage;
 import dev.cwby.bakashi.data.EpisodeData;
-import org.jsoup.Jsoup;
+import dev.cwby.bakashi.net.HttpTransport;
 import org.jsoup.nodes.Document;
 
 import java.io.IOException;
-import java.net.URI;
 import java.util.List;
+import java.util.function.Consumer;
 
 /** Simple interface for creating and managing multiples website anime scrappers. */
 public interface IScrapper {
@@ -20,6 +20,38 @@ public interface IScrapper {
    */
   List<EpisodeData> getLastEpisodes() throws IOException;
 
+  /**
+   * Fetches the last episodes again for a watcher polling for new releases, revalidating what was
+   * cached by the previous poll instead of serving it, so an unchanged list only costs a
+   * conditional request.
+   *
+   * <p>The default implementation simply calls {@link #getLastEpisodes()}.
+   *
+   * @return A list of {@link EpisodeData} objects representing the most recent episodes.
+   * @throws IOException If there is an issue fetching or parsing the webpage.
+   */
+  default List<EpisodeData> pollLastEpisodes() throws IOException {
+    return getLastEpisodes();
+  }
+
+  /**
+   * Fetches the last episodes, handing them to the consumer batch by batch as soon as each one is
+   * available.
+   *
+   * <p>Batches are never delivered concurrently. The default implementation delivers the whole
+   * result of {@link #getLastEpisodes()} as a single batch.
+   *
+   * @param consumer Receives every batch of episodes as it arrives.
+   * @return All the last episodes.
+   * @throws IOException If there is an issue fetching or parsing the webpage.
+   */
+  default List<EpisodeData> streamLastEpisodes(final Consumer<List<EpisodeData>> consumer)
+      throws IOException {
+    final List<EpisodeData> episodes = getLastEpisodes();
+    consumer.accept(episodes);
+    return episodes;
+  }
+
   /**
    * Search for an anime page using a String search.
    *
@@ -28,6 +60,25 @@ public interface IScrapper {
    */
   List<AnimePage> findAnimePage(String search) throws IOException;
 
+  /**
+   * Searches for anime pages, handing them to the consumer batch by batch as soon as each one is
+   * available, e.g one batch per origin of a {@link FederatedScrapper}.
+   *
+   * <p>Batches are never delivered concurrently. The default implementation delivers the whole
+   * result of {@link #findAnimePage(String)} as a single batch.
+   *
+   * @param search The search, URL encoded.
+   * @param consumer Receives every batch of anime pages as it arrives.
+   * @return All the anime pages found.
+   * @throws IOException If there is an issue while fetching or parsing the response
+   */
+  default List<AnimePage> streamAnimePages(
+      final String search, final Consumer<List<AnimePage>> consumer) throws IOException {
+    final List<AnimePage> pages = findAnimePage(search);
+    consumer.accept(pages);
+    return pages;
+  }
+
   /**
    * Fetches all episodes of the AnimePage.
    *
@@ -37,6 +88,38 @@ public interface IScrapper {
    */
   List<EpisodeData> fetchEpisodesFromPage(AnimePage animePage) throws IOException;
 
+  /**
+   * Fetches all episodes of the AnimePage, handing them to the consumer batch by batch as soon as
+   * each one and the ones before it are available, e.g one batch per page of a paginated API.
+   *
+   * <p>Batches are delivered one at a time, in the order of the returned list. The default
+   * implementation delivers the whole result of {@link #fetchEpisodesFromPage(AnimePage)} as a
+   * single batch.
+   *
+   * @param animePage The anime page to list the episodes of.
+   * @param consumer Receives every batch of episodes as it arrives.
+   * @return All the episodes, in the same order as {@link #fetchEpisodesFromPage(AnimePage)}.
+   * @throws IOException If there is an issue while fetching or parsing the response
+   */
+  default List<EpisodeData> streamEpisodesFromPage(
+      final AnimePage animePage, final Consumer<List<EpisodeData>> consumer) throws IOException {
+    final List<EpisodeData> episodes = fetchEpisodesFromPage(animePage);
+    consumer.accept(episodes);
+    return episodes;
+  }
+
+  /**
+   * Tells in which order {@link #streamEpisodesFromPage(AnimePage, Consumer)} lists the episodes of
+   * an anime.
+   *
+   * @param animePage The anime page.
+   * @return {@code true} if the latest episode comes first, {@code false} (the default) if the
+   *     episodes are listed in release order.
+   */
+  default boolean newestEpisodesFirst(final AnimePage animePage) {
+    return false;
+  }
+
   /**
    * Extracts the video URL from a given episode page, this is specific for every referer page.
    *
@@ -54,13 +137,25 @@ public interface IScrapper {
   String referer();
 
   /**
-   * Fetches an HTML document from a given URL using Jsoup.
+   * Returns the scrapper an episode listed by this one comes from, whose {@link
+   * #extractVideoUrl(String)} and {@link #referer()} apply to it.
+   *
+   * @param episode An episode returned by this scrapper.
+   * @return This scrapper, unless it aggregates others like {@link FederatedScrapper}.
+   */
+  default IScrapper sourceOf(final EpisodeData episode) {
+    return this;
+  }
+
+  /**
+   * Fetches an HTML document from a given URL through the shared {@link HttpTransport} and parses it
+   * using Jsoup.
    *
    * @param url The URL to fetch.
    * @return A {@link Document} object representing the fetched HTML.
    * @throws IOException If there is an issue fetching the URL.
    */
   default Document fetchDocument(final String url) throws IOException {
-    return Jsoup.parse(URI.create(url).toURL(), 60000); // 60-second timeout
+    return HttpTransport.shared().getDocument(url, HttpTransport.PAGE_TIMEOUT);
   }
 }
@@ -0,0 +1,119 @@
+package dev.cwby.bakashi.scrapper;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import dev.cwby.bakashi.data.Json;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * DOM-free access to the {@code __NEXT_DATA__} payload of Next.js pages.
+ *
+ * <p>Instead of building a Jsoup document for the whole page, the HTML bytes are scanned until the
+ * {@code <script id="__NEXT_DATA__">} tag is found, and the JSON that follows is handed directly to
+ * a streaming {@link JsonParser}. The parser stops at the end of the JSON object, so the rest of
+ * the page is never read once the caller closes the stream.
+ *
+ * <p>The same JSON shape, minus the {@code props} wrapper, is served by the {@code
+ * /_next/data/<buildId>/...json} routes, which {@link #parse(InputStream)} reads as well.
+ */
+final class NextDataExtractor {
+
+  private static final byte[] MARKER = "id=\"__NEXT_DATA__\"".getBytes(StandardCharsets.US_ASCII);
+
+  private NextDataExtractor() {}
+
+  /**
+   * Advances an HTML stream up to the first byte of the {@code __NEXT_DATA__} JSON.
+   *
+   * @param html The HTML page, read only up to the start of the payload.
+   * @return A stream positioned on the JSON payload, which the caller must close.
+   * @throws IOException If the page ends before a {@code __NEXT_DATA__} tag is found.
+   */
+  static InputStream seek(final InputStream html) throws IOException {
+    final InputStream input = new BufferedInputStream(html, 16 * 1024);
+    int matched = 0;
+    int read;
+    while (matched < MARKER.length && (read = input.read()) != -1) {
+      if (read == MARKER[matched]) {
+        matched++;
+      } else {
+        // the first marker byte does not occur again in the marker, so restarting is enough
+        matched = read == MARKER[0] ? 1 : 0;
+      }
+    }
+    while (matched == MARKER.length && (read = input.read()) != -1) {
+      if (read == '>') {
+        return input;
+      }
+    }
+    input.close();
+    throw new IOException("No __NEXT_DATA__ script found in the page");
+  }
+
+  /**
+   * Creates a parser over a JSON payload, e.g one returned by {@link #seek(InputStream)}.
+   *
+   * @param json The JSON payload.
+   * @return A streaming parser, closing the stream when closed.
+   * @throws IOException If the parser cannot be created.
+   */
+  static JsonParser parse(final InputStream json) throws IOException {
+    return Json.FACTORY.createParser(json);
+  }
+
+  /**
+   * Reads the scalar values found at the given JSON pointers, stopping as soon as all of them were
+   * found or the root value ends.
+   *
+   * @param parser A parser positioned before the root value.
+   * @param pointers The JSON pointers to collect, e.g {@code /props/pageProps/data/n_episodio}.
+   * @return The text of every pointer found, missing pointers are absent from the map.
+   * @throws IOException If the payload cannot be read.
+   */
+  static Map<String, String> collect(final JsonParser parser, final Set<String> pointers)
+      throws IOException {
+    final Map<String, String> values = new HashMap<>();
+    JsonToken token;
+    while (values.size() < pointers.size() && (token = parser.nextToken()) != null) {
+      if (token.isScalarValue()) {
+        final String pointer = parser.getParsingContext().pathAsPointer().toString();
+        if (pointers.contains(pointer)) {
+          values.put(pointer, parser.getValueAsString());
+        }
+      }
+      if (parser.getParsingContext().inRoot() && token.isStructEnd()) {
+        break;
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Reads the subtree found at the given JSON pointer into a tree, skipping everything else.
+   *
+   * @param parser A parser positioned before the root value.
+   * @param pointer The JSON pointer of the subtree, e.g {@code /props/pageProps}.
+   * @return The subtree, or {@code null} if the pointer does not exist.
+   * @throws IOException If the payload cannot be read.
+   */
+  static JsonNode readSubtree(final JsonParser parser, final String pointer) throws IOException {
+    JsonToken token;
+    while ((token = parser.nextToken()) != null) {
+      if (token.isStructStart()
+          && pointer.equals(parser.getParsingContext().pathAsPointer().toString())) {
+        return Json.MAPPER.readTree(parser);
+      }
+      if (parser.getParsingContext().inRoot() && token.isStructEnd()) {
+        break;
+      }
+    }
+    return null;
+  }
+}
@@ -1,26 +1,123 @@
 package dev.cwby.bakashi.scrapper;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.function.Supplier;
 
+/**
+ * Registry of the available scrappers, keyed by the origin name given to {@code -o}.
+ *
+ * <p>Scrappers are discovered through {@link ServiceLoader}, listed in {@code
+ * META-INF/services/dev.cwby.bakashi.scrapper.IScrapper}, and only instantiated the first time
+ * their key is asked for. The key of a discovered scrapper is its simple class name without the
+ * {@code Scrapper} suffix, in lower case, e.g {@code anroll} for {@link AnrollScrapper}.
+ */
 public class ScrapperManager {
 
-  private static final Map<String, IScrapper> SCRAPPERS =
-      new HashMap<>(Map.of("anroll", new AnrollScrapper()));
+  /** The origin used when none, or an unknown one, is given. */
+  public static final String DEFAULT_SCRAPPER = "anroll";
 
-  public static void registerScrapper(String key, IScrapper value) {
-    SCRAPPERS.put(key.toLowerCase(), value);
+  /** The origin that searches every registered scrapper at once, see {@link FederatedScrapper}. */
+  public static final String ALL_SCRAPPERS = "all";
+
+  private static final String CLASS_SUFFIX = "Scrapper";
+
+  // registration order is kept, so the origins are listed and asked in a stable order
+  private static final Map<String, Supplier<IScrapper>> PROVIDERS = new LinkedHashMap<>();
+  private static final Map<String, IScrapper> SCRAPPERS = new LinkedHashMap<>();
+  private static boolean discovered;
+
+  public static synchronized void registerScrapper(String key, IScrapper value) {
+    discover();
+    final String normalized = key.toLowerCase(Locale.ROOT);
+    PROVIDERS.put(normalized, () -> value);
+    SCRAPPERS.put(normalized, value);
   }
 
-  public static IScrapper getScrapper(String key) {
-    return SCRAPPERS.get(key.toLowerCase());
+  /**
+   * Returns the scrapper of an origin, instantiating it on first use.
+   *
+   * @param key The origin, case insensitive.
+   * @return The scrapper, or {@code null} if no scrapper is registered for the origin.
+   */
+  public static synchronized IScrapper getScrapper(String key) {
+    discover();
+    final String normalized = key.toLowerCase(Locale.ROOT);
+    IScrapper scrapper = SCRAPPERS.get(normalized);
+    if (scrapper == null) {
+      final Supplier<IScrapper> provider = PROVIDERS.get(normalized);
+      if (provider != null) {
+        scrapper = provider.get();
+        SCRAPPERS.put(normalized, scrapper);
+      }
+    }
+    return scrapper;
   }
 
+  /**
+   * Returns the scrapper of an origin, a {@link FederatedScrapper} over every registered scrapper
+   * for {@link #ALL_SCRAPPERS}, or the {@link #DEFAULT_SCRAPPER} if the origin is unknown.
+   *
+   * @param key The origin, case insensitive, may be {@code null}.
+   * @return The scrapper.
+   */
   public static IScrapper getScrapperOrDefault(String key) {
-    try {
-      return getScrapper(key);
-    } catch (Exception e) {
-      return getScrapper("bakashi");
+    if (key != null && ALL_SCRAPPERS.equalsIgnoreCase(key)) {
+      return new FederatedScrapper(getScrappers());
     }
+    final IScrapper scrapper = key == null ? null : getScrapper(key);
+    return scrapper != null ? scrapper : getScrapper(DEFAULT_SCRAPPER);
+  }
+
+  /**
+   * Returns the keys of every registered scrapper, without instantiating any of them.
+   *
+   * @return The keys, in registration order.
+   */
+  public static synchronized List<String> keys() {
+    discover();
+    return List.copyOf(PROVIDERS.keySet());
+  }
+
+  /**
+   * Returns every registered scrapper, instantiating the ones not used yet.
+   *
+   * @return The scrappers, in registration order.
+   */
+  public static synchronized List<IScrapper> getScrappers() {
+    discover();
+    final List<IScrapper> scrappers = new ArrayList<>(PROVIDERS.size());
+    for (final String key : PROVIDERS.keySet()) {
+      scrappers.add(getScrapper(key));
+    }
+    return scrappers;
+  }
+
+  /**
+   * Reads the service providers once. Only their classes are loaded here, {@link
+   * ServiceLoader.Provider#get()} is called by {@link #getScrapper(String)}.
+   */
+  private static void discover() {
+    if (discovered) {
+      return;
+    }
+    discovered = true;
+    for (final ServiceLoader.Provider<IScrapper> provider :
+        ServiceLoader.load(IScrapper.class).stream().toList()) {
+      PROVIDERS.putIfAbsent(keyOf(provider.type()), provider);
+    }
+  }
+
+  private static String keyOf(final Class<? extends IScrapper> type) {
+    final String name = type.getSimpleName();
+    final String key =
+        name.endsWith(CLASS_SUFFIX) && name.length() > CLASS_SUFFIX.length()
+            ? name.substring(0, name.length() - CLASS_SUFFIX.length())
+            : name;
+    return key.toLowerCase(Locale.ROOT);
   }
 }
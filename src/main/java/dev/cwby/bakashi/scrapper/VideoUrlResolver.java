@@ -0,0 +1,93 @@
+package dev.cwby.bakashi.scrapper;
+
+import dev.cwby.bakashi.data.EpisodeData;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Resolves the video URLs of a queue of episodes in the background, a few episodes ahead of the one
+ * being played.
+ *
+ * <p>Asking for an episode starts the resolution of the next {@code lookahead} ones, so by the time
+ * the player needs them their pages were already fetched. The queue is not resolved all at once:
+ * video URLs are often signed and expire, and the user may stop watching after a few episodes.
+ */
+public final class VideoUrlResolver {
+
+  /** The number of episodes resolved ahead of the one being played. */
+  public static final int DEFAULT_LOOKAHEAD = 2;
+
+  /**
+   * A video ready to be played.
+   *
+   * @param episode The episode.
+   * @param videoUrl The URL of its video.
+   * @param referer The referer the video host expects.
+   */
+  public record Resolved(EpisodeData episode, String videoUrl, String referer) {}
+
+  private final IScrapper scrapper;
+  private final List<EpisodeData> episodes;
+  private final int lookahead;
+  private final List<CompletableFuture<Resolved>> resolutions = new ArrayList<>();
+
+  /**
+   * Creates a resolver, nothing is resolved before the first {@link #prefetch(int)} or {@link
+   * #get(int)}.
+   *
+   * @param scrapper The scrapper the episodes were listed by.
+   * @param episodes The queue.
+   * @param lookahead The number of episodes resolved ahead.
+   */
+  public VideoUrlResolver(
+      final IScrapper scrapper, final List<EpisodeData> episodes, final int lookahead) {
+    this.scrapper = scrapper;
+    this.episodes = episodes;
+    this.lookahead = lookahead;
+  }
+
+  /**
+   * Waits for the video of an episode, starting the resolution of the following ones.
+   *
+   * @param index The position of the episode in the queue.
+   * @return The video.
+   * @throws IOException If the video URL of this episode cannot be extracted.
+   */
+  public Resolved get(final int index) throws IOException {
+    try {
+      return prefetch(index).join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof UncheckedIOException unchecked) {
+        throw unchecked.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Starts resolving an episode and the following ones, without waiting.
+   *
+   * @param index The position of the episode in the queue.
+   * @return The resolution of the episode.
+   */
+  public synchronized CompletableFuture<Resolved> prefetch(final int index) {
+    while (resolutions.size() < Math.min(episodes.size(), index + 1 + lookahead)) {
+      final EpisodeData episode = episodes.get(resolutions.size());
+      resolutions.add(CompletableFuture.supplyAsync(() -> resolve(episode)));
+    }
+    return resolutions.get(index);
+  }
+
+  private Resolved resolve(final EpisodeData episode) {
+    try {
+      final IScrapper source = scrapper.sourceOf(episode);
+      return new Resolved(episode, source.extractVideoUrl(episode.episodeUrl()), source.referer());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,144 @@
+package dev.cwby.bakashi.state;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import dev.cwby.bakashi.data.AnimePage;
+import dev.cwby.bakashi.data.EpisodeData;
+import dev.cwby.bakashi.data.Json;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * What the user watched, kept in a {@link StateStore}: when each episode was played, the last
+ * episode played of each anime, and the episode list of each anime as it was last fetched.
+ *
+ * <p>With the last episode played and the stored episode list, the next episode to watch is known
+ * before any request is made, so the episode list can be shown with it preselected right away.
+ */
+public final class PlaybackHistory {
+
+  private static final String WATCHED = "watched:";
+  private static final String LAST_PLAYED = "last-played:";
+  private static final String EPISODES = "episodes:";
+
+  private static final ObjectReader EPISODE_READER = Json.MAPPER.readerFor(EpisodeData.class);
+  private static final ObjectReader EPISODES_READER = Json.MAPPER.readerFor(EpisodeData[].class);
+  private static final ObjectWriter EPISODE_WRITER = Json.MAPPER.writerFor(EpisodeData.class);
+  private static final ObjectWriter EPISODES_WRITER = Json.MAPPER.writerFor(EpisodeData[].class);
+
+  private final StateStore store;
+
+  /**
+   * Creates a history backed by a store.
+   *
+   * @param store The opened store, closed by the caller.
+   */
+  public PlaybackHistory(final StateStore store) {
+    this.store = store;
+  }
+
+  /**
+   * Records that an episode was played.
+   *
+   * @param page The anime the episode was picked from, or {@code null} if it is not known, e.g
+   *     for the latest episodes.
+   * @param episode The episode.
+   * @throws IOException If the store cannot be written.
+   */
+  public void markWatched(final AnimePage page, final EpisodeData episode) throws IOException {
+    store.put(
+        WATCHED + episode.episodeUrl(),
+        Long.toString(System.currentTimeMillis()).getBytes(StandardCharsets.UTF_8));
+    if (page != null) {
+      store.put(LAST_PLAYED + keyOf(page), EPISODE_WRITER.writeValueAsBytes(episode));
+    }
+  }
+
+  /**
+   * Checks if an episode was ever played.
+   *
+   * @param episode The episode.
+   * @return {@code true} if it was played.
+   */
+  public boolean isWatched(final EpisodeData episode) {
+    return store.contains(WATCHED + episode.episodeUrl());
+  }
+
+  /**
+   * Returns the last episode played of an anime.
+   *
+   * @param page The anime.
+   * @return The episode, or {@code null} if none was played yet.
+   * @throws IOException If the store cannot be read.
+   */
+  public EpisodeData lastPlayed(final AnimePage page) throws IOException {
+    final byte[] value = store.get(LAST_PLAYED + keyOf(page));
+    return value == null ? null : EPISODE_READER.readValue(value);
+  }
+
+  /**
+   * Returns the episode list of an anime as it was last stored.
+   *
+   * @param page The anime.
+   * @return The episodes, empty if the list was never stored.
+   * @throws IOException If the store cannot be read.
+   */
+  public List<EpisodeData> episodes(final AnimePage page) throws IOException {
+    final byte[] value = store.get(EPISODES + keyOf(page));
+    return value == null
+        ? List.of()
+        : Arrays.asList(EPISODES_READER.<EpisodeData[]>readValue(value));
+  }
+
+  /**
+   * Stores the episode list of an anime, unless it did not change.
+   *
+   * @param page The anime.
+   * @param episodes The episodes, as fetched.
+   * @throws IOException If the store cannot be written.
+   */
+  public void saveEpisodes(final AnimePage page, final List<EpisodeData> episodes)
+      throws IOException {
+    final String key = EPISODES + keyOf(page);
+    final byte[] value = EPISODES_WRITER.writeValueAsBytes(episodes.toArray(new EpisodeData[0]));
+    if (!Arrays.equals(value, store.get(key))) {
+      store.put(key, value);
+    }
+  }
+
+  /**
+   * Finds the episode to preselect in a list: the one released right after the last episode
+   * played of the anime, or the earliest one never played if the last one is not in the list.
+   *
+   * @param page The anime.
+   * @param episodes The episode list, in release order.
+   * @return The position of the episode, {@link List#size()} if the last episode played is the
+   *     latest of the list and the next one is not released yet, or {@code -1} if nothing of the
+   *     anime was played yet or every episode was.
+   * @throws IOException If the store cannot be read.
+   */
+  public int nextPosition(final AnimePage page, final List<EpisodeData> episodes)
+      throws IOException {
+    final EpisodeData last = lastPlayed(page);
+    if (last == null) {
+      return -1;
+    }
+    for (int i = 0; i < episodes.size(); i++) {
+      if (episodes.get(i).episodeUrl().equals(last.episodeUrl())) {
+        return i + 1;
+      }
+    }
+    for (int i = 0; i < episodes.size(); i++) {
+      if (!isWatched(episodes.get(i))) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static String keyOf(final AnimePage page) {
+    return page.id() != null ? page.id() : page.slug();
+  }
+}
@@ -0,0 +1,321 @@
+package dev.cwby.bakashi.state;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+/**
+ * A small embedded key-value store persisting state between runs, as an append-only log read
+ * through a memory mapping.
+ *
+ * <p>Every {@link #put(String, byte[])} appends a record, {@code <key length><value length><crc>}
+ * followed by the key and the value, in a single write. Opening the store walks the headers of the
+ * mapped log and keeps the offset of the latest record of each key in a hash map, so only the keys
+ * are decoded and a {@link #get(String)} is one lookup plus a copy out of the mapping. A torn
+ * record at the end of the log, left by an interrupted write, is cut off.
+ *
+ * <p>Several runs may share the store: each holds a shared lock on a sibling lock file while open,
+ * and appends hold a lock on the log for the time of a single write. Overwritten records are
+ * dropped when the last run closes the store, by rewriting the live records into a new log once
+ * they make up less than half of it.
+ */
+public final class StateStore implements Closeable {
+
+  /** The environment variable overriding {@link #defaultDirectory()}. */
+  public static final String DATA_DIR_ENV = "BAKASHI_DATA_DIR";
+
+  static final String LOG_FILE = "state.log";
+  static final String LOCK_FILE = "state.lock";
+
+  private static final int HEADER_BYTES = 3 * Integer.BYTES;
+  private static final long MIN_COMPACTION_BYTES = 64 * 1024;
+
+  private final Path log;
+  private final FileChannel lockChannel;
+  private FileLock lock;
+  private FileChannel channel;
+  private MappedByteBuffer mapped;
+  private final Map<String, Long> offsets = new HashMap<>();
+  private long size;
+  private long liveBytes;
+
+  private StateStore(final Path log, final FileChannel lockChannel) {
+    this.log = log;
+    this.lockChannel = lockChannel;
+  }
+
+  /**
+   * Returns the folder the store lives in: {@value #DATA_DIR_ENV} if set, else {@code
+   * $XDG_DATA_HOME/bakashi-cli}, else {@code ~/.local/share/bakashi-cli}.
+   *
+   * @return The data folder.
+   */
+  public static Path defaultDirectory() {
+    final String configured = System.getenv(DATA_DIR_ENV);
+    if (configured != null && !configured.isBlank()) {
+      return Paths.get(configured);
+    }
+    final String xdg = System.getenv("XDG_DATA_HOME");
+    if (xdg != null && !xdg.isBlank()) {
+      return Paths.get(xdg, "bakashi-cli");
+    }
+    return Paths.get(System.getProperty("user.home"), ".local", "share", "bakashi-cli");
+  }
+
+  /**
+   * Opens the store in a folder, creating it if it does not exist yet.
+   *
+   * @param directory The data folder.
+   * @return The opened store, with the index of its keys in memory.
+   * @throws IOException If the folder or the log cannot be created or read.
+   */
+  public static StateStore open(final Path directory) throws IOException {
+    Files.createDirectories(directory);
+    final FileChannel lockChannel =
+        FileChannel.open(
+            directory.resolve(LOCK_FILE),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    final StateStore store = new StateStore(directory.resolve(LOG_FILE), lockChannel);
+    try {
+      store.lockAndLoad();
+    } catch (IOException | RuntimeException e) {
+      lockChannel.close();
+      throw e;
+    }
+    return store;
+  }
+
+  /**
+   * Reads the latest value of a key.
+   *
+   * @param key The key.
+   * @return A copy of the value, or {@code null} if the key was never written or its record is
+   *     corrupted.
+   * @throws IOException If the log cannot be mapped again after it grew.
+   */
+  public synchronized byte[] get(final String key) throws IOException {
+    final Long offset = offsets.get(key);
+    if (offset == null) {
+      return null;
+    }
+    final int start = Math.toIntExact(offset);
+    final int keyLength = mapped.getInt(start);
+    final int valueLength = mapped.getInt(start + Integer.BYTES);
+    final int crc = mapped.getInt(start + 2 * Integer.BYTES);
+    final byte[] record = new byte[keyLength + valueLength];
+    mapped.get(start + HEADER_BYTES, record);
+    if (checksum(record) != crc) {
+      return null;
+    }
+    final byte[] value = new byte[valueLength];
+    System.arraycopy(record, keyLength, value, 0, valueLength);
+    return value;
+  }
+
+  /**
+   * Writes a value, replacing the previous one of the key.
+   *
+   * @param key The key.
+   * @param value The value.
+   * @throws IOException If the record cannot be appended.
+   */
+  public synchronized void put(final String key, final byte[] value) throws IOException {
+    final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    final byte[] record = new byte[keyBytes.length + value.length];
+    System.arraycopy(keyBytes, 0, record, 0, keyBytes.length);
+    System.arraycopy(value, 0, record, keyBytes.length, value.length);
+    final ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + record.length);
+    buffer.putInt(keyBytes.length).putInt(value.length).putInt(checksum(record)).put(record);
+    buffer.flip();
+
+    // other runs may have appended since, the record goes wherever the end of the log is now
+    final long offset;
+    try (final FileLock appending = channel.lock()) {
+      offset = channel.size();
+      long position = offset;
+      while (buffer.hasRemaining()) {
+        position += channel.write(buffer, position);
+      }
+    }
+    final Long previous = offsets.put(key, offset);
+    if (previous != null) {
+      liveBytes -= recordBytes(previous);
+    }
+    size = offset + HEADER_BYTES + record.length;
+    liveBytes += HEADER_BYTES + record.length;
+    map();
+  }
+
+  /**
+   * Checks if a key was ever written.
+   *
+   * @param key The key.
+   * @return {@code true} if the key has a value.
+   */
+  public synchronized boolean contains(final String key) {
+    return offsets.containsKey(key);
+  }
+
+  /**
+   * Releases the log, compacting it if no other run has the store open.
+   *
+   * @throws IOException If the log cannot be compacted.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (channel == null) {
+      return;
+    }
+    try {
+      channel.close();
+      channel = null;
+      mapped = null;
+      lock.release();
+      FileLock exclusive;
+      try {
+        exclusive = lockChannel.tryLock();
+      } catch (OverlappingFileLockException e) {
+        // another store of this process still has it open
+        exclusive = null;
+      }
+      if (exclusive != null) {
+        try {
+          compactIfNeeded();
+        } finally {
+          exclusive.release();
+        }
+      }
+    } finally {
+      lockChannel.close();
+    }
+  }
+
+  private void lockAndLoad() throws IOException {
+    final FileLock exclusive = lockChannel.tryLock();
+    if (exclusive == null) {
+      // waits only while another run compacts the log
+      lock = lockChannel.lock(0, Long.MAX_VALUE, true);
+      load();
+      return;
+    }
+    final Object loadedFile;
+    try {
+      load();
+      if (size < channel.size()) {
+        // a torn last record, and no other run that could still be writing it
+        channel.truncate(size);
+      }
+      loadedFile = fileKey();
+    } finally {
+      exclusive.release();
+    }
+    lock = lockChannel.lock(0, Long.MAX_VALUE, true);
+    if (!Objects.equals(loadedFile, fileKey())) {
+      // compacted by a run closing in between
+      channel.close();
+      load();
+    }
+  }
+
+  private Object fileKey() throws IOException {
+    return Files.readAttributes(log, BasicFileAttributes.class).fileKey();
+  }
+
+  /** Indexes the log, leaving out a torn last record. */
+  private void load() throws IOException {
+    this.channel =
+        FileChannel.open(
+            log, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    offsets.clear();
+    liveBytes = 0;
+    size = channel.size();
+    mapped = null;
+    map();
+
+    long position = 0;
+    while (position + HEADER_BYTES <= size) {
+      final int start = Math.toIntExact(position);
+      final int keyLength = mapped.getInt(start);
+      final int valueLength = mapped.getInt(start + Integer.BYTES);
+      final long end = position + HEADER_BYTES + (long) keyLength + valueLength;
+      if (keyLength <= 0 || valueLength < 0 || end > size) {
+        break;
+      }
+      final byte[] key = new byte[keyLength];
+      mapped.get(start + HEADER_BYTES, key);
+      final Long previous = offsets.put(new String(key, StandardCharsets.UTF_8), position);
+      if (previous != null) {
+        liveBytes -= recordBytes(previous);
+      }
+      liveBytes += end - position;
+      position = end;
+    }
+    size = position;
+  }
+
+  /** Maps the log again once it grew past the current mapping. */
+  private void map() throws IOException {
+    if (mapped == null || mapped.capacity() < size) {
+      mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+  }
+
+  private long recordBytes(final long offset) {
+    final int start = Math.toIntExact(offset);
+    return HEADER_BYTES + (long) mapped.getInt(start) + mapped.getInt(start + Integer.BYTES);
+  }
+
+  /** Rewrites the live records once overwritten ones make up more than half of the log. */
+  private void compactIfNeeded() throws IOException {
+    // other runs may have appended since this one loaded the log
+    load();
+    if (size < MIN_COMPACTION_BYTES || size < 2 * liveBytes) {
+      channel.close();
+      return;
+    }
+    final Path temporary = log.resolveSibling(LOG_FILE + ".tmp");
+    try (final FileChannel output =
+        FileChannel.open(
+            temporary,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      for (final long offset : offsets.values()) {
+        final ByteBuffer record =
+            mapped.slice(Math.toIntExact(offset), Math.toIntExact(recordBytes(offset)));
+        while (record.hasRemaining()) {
+          output.write(record);
+        }
+      }
+      output.force(true);
+    } finally {
+      channel.close();
+      channel = null;
+      mapped = null;
+    }
+    Files.move(temporary, log, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static int checksum(final byte[] record) {
+    final CRC32 crc = new CRC32();
+    crc.update(record);
+    return (int) crc.getValue();
+  }
+}
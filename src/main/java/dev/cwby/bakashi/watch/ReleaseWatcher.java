@@ -0,0 +1,129 @@
+package dev.cwby.bakashi.watch;
+
+import dev.cwby.bakashi.ThumbnailUtils;
+import dev.cwby.bakashi.data.EpisodeData;
+import dev.cwby.bakashi.profile.Profiler;
+import dev.cwby.bakashi.scrapper.IScrapper;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Polls the last episodes of an origin on an interval and prints only the ones released since the
+ * previous poll, started with {@code --watch}.
+ *
+ * <p>Each poll goes through {@link IScrapper#pollLastEpisodes()}, so an unchanged list of releases
+ * only costs a conditional request. The episodes already reported are remembered in a {@link
+ * SeenSet} saved after every poll, which carries over between runs: the very first run only records
+ * what is already out.
+ *
+ * <p>A new episode is printed as one tab separated line, its name, page and video URL, once the
+ * video URL is resolved and its thumbnail queued for download, so it is ready to be played the
+ * moment it shows up.
+ */
+public final class ReleaseWatcher {
+
+  /** The name of the seen set file, in the temporary folder. */
+  public static final String SEEN_FILE = "seen-episodes";
+
+  /** The interval used when {@code --watch} is not given one, in minutes. */
+  public static final int DEFAULT_INTERVAL_MINUTES = 5;
+
+  private final IScrapper scrapper;
+  private final Duration interval;
+  private final Path seenFile;
+
+  /**
+   * Creates a watcher.
+   *
+   * @param scrapper The scrapper of the origin to watch.
+   * @param interval The time between the start of two polls.
+   * @param seenFile The file the seen set is stored in.
+   */
+  public ReleaseWatcher(final IScrapper scrapper, final Duration interval, final Path seenFile) {
+    this.scrapper = scrapper;
+    this.interval = interval;
+    this.seenFile = seenFile;
+  }
+
+  /**
+   * Polls until the process is stopped. A failed poll is reported and retried at the next
+   * interval.
+   *
+   * @throws IOException If the seen set cannot be read or written.
+   * @throws InterruptedException If interrupted while waiting for the next poll.
+   */
+  public void watch() throws IOException, InterruptedException {
+    final SeenSet seen = SeenSet.load(seenFile);
+    boolean baseline = seen.size() == 0;
+    while (true) {
+      final long start = System.nanoTime();
+      try (final Profiler.Span span = Profiler.span("watch.poll")) {
+        final List<EpisodeData> released = poll(seen);
+        if (baseline) {
+          System.err.println(
+              "Watching for new episodes, "
+                  + released.size()
+                  + " already released ones will not be reported");
+          baseline = false;
+        } else {
+          announce(released);
+        }
+        seen.save(seenFile);
+      } catch (IOException | UncheckedIOException e) {
+        final Throwable cause = e instanceof UncheckedIOException ? e.getCause() : e;
+        System.err.println("Failed to poll the last episodes: " + cause.getMessage());
+      }
+      final long elapsed = Duration.ofNanos(System.nanoTime() - start).toMillis();
+      Thread.sleep(Math.max(0, interval.toMillis() - elapsed));
+    }
+  }
+
+  private List<EpisodeData> poll(final SeenSet seen) throws IOException {
+    final List<EpisodeData> released = new ArrayList<>();
+    for (final EpisodeData episode : scrapper.pollLastEpisodes()) {
+      if (seen.add(episode.episodeUrl())) {
+        released.add(episode);
+      }
+    }
+    return released;
+  }
+
+  private void announce(final List<EpisodeData> released) {
+    // the video URLs are resolved together, then printed in the order the origin listed them
+    final List<CompletableFuture<String>> videoUrls = new ArrayList<>();
+    for (final EpisodeData episode : released) {
+      ThumbnailUtils.prefetchThumbnail(episode.thumbnailUrl());
+      videoUrls.add(CompletableFuture.supplyAsync(() -> resolveVideoUrl(episode)));
+    }
+    for (int i = 0; i < released.size(); i++) {
+      final EpisodeData episode = released.get(i);
+      String videoUrl;
+      try {
+        videoUrl = videoUrls.get(i).join();
+      } catch (CompletionException e) {
+        System.err.println(
+            "Failed to resolve the video of "
+                + episode.episodeName()
+                + ": "
+                + e.getCause().getMessage());
+        videoUrl = "";
+      }
+      System.out.println(episode.episodeName() + '\t' + episode.episodeUrl() + '\t' + videoUrl);
+    }
+    System.out.flush();
+  }
+
+  private String resolveVideoUrl(final EpisodeData episode) {
+    try {
+      return scrapper.sourceOf(episode).extractVideoUrl(episode.episodeUrl());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
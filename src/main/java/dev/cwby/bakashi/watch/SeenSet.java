@@ -0,0 +1,135 @@
+package dev.cwby.bakashi.watch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The episodes a {@link ReleaseWatcher} already reported, kept as 64-bit hashes of their URLs in an
+ * open addressing set of primitive longs.
+ *
+ * <p>Eight bytes per episode instead of a boxed string each, so years of releases stay a few
+ * hundred KiB in memory and on disk, where the set is stored as a flat array of longs. A collision
+ * would hide one new episode among billions of hashes, which is acceptable for a notification.
+ */
+final class SeenSet {
+
+  private static final int INITIAL_CAPACITY = 256;
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  // 0 marks a free slot, a URL hashing to it is stored as 1 instead
+  private long[] slots = new long[INITIAL_CAPACITY];
+  private int size;
+
+  /**
+   * Reads a set saved with {@link #save(Path)}.
+   *
+   * @param file The file, which may not exist yet.
+   * @return The set, empty if the file does not exist.
+   * @throws IOException If the file cannot be read.
+   */
+  static SeenSet load(final Path file) throws IOException {
+    final SeenSet set = new SeenSet();
+    if (!Files.exists(file)) {
+      return set;
+    }
+    final long count = Files.size(file) / Long.BYTES;
+    try (final DataInputStream input =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      for (long i = 0; i < count; i++) {
+        set.insert(input.readLong());
+      }
+    }
+    return set;
+  }
+
+  /**
+   * Writes the set to a temporary file moved over the previous one, so an interrupted watcher
+   * never leaves a truncated set behind.
+   *
+   * @param file The file.
+   * @throws IOException If the file cannot be written.
+   */
+  void save(final Path file) throws IOException {
+    final Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+    try (final DataOutputStream output =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+      for (final long hash : slots) {
+        if (hash != 0) {
+          output.writeLong(hash);
+        }
+      }
+    }
+    Files.move(
+        temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Adds the URL of an episode.
+   *
+   * @param url The URL.
+   * @return {@code true} if it was not in the set yet.
+   */
+  boolean add(final String url) {
+    return insert(hash(url));
+  }
+
+  /**
+   * Returns the number of episodes in the set.
+   *
+   * @return The number of hashes stored.
+   */
+  int size() {
+    return size;
+  }
+
+  private boolean insert(final long hash) {
+    // kept at most half full, so probes stay short
+    if ((size + 1) * 2 > slots.length) {
+      grow();
+    }
+    final int mask = slots.length - 1;
+    int slot = spread(hash) & mask;
+    while (slots[slot] != 0) {
+      if (slots[slot] == hash) {
+        return false;
+      }
+      slot = (slot + 1) & mask;
+    }
+    slots[slot] = hash;
+    size++;
+    return true;
+  }
+
+  private void grow() {
+    final long[] previous = slots;
+    slots = new long[previous.length * 2];
+    size = 0;
+    for (final long hash : previous) {
+      if (hash != 0) {
+        insert(hash);
+      }
+    }
+  }
+
+  private static int spread(final long hash) {
+    return (int) (hash ^ (hash >>> 32));
+  }
+
+  /** FNV-1a over the UTF-8 bytes of the URL. */
+  private static long hash(final String url) {
+    long hash = FNV_OFFSET_BASIS;
+    for (final byte b : url.getBytes(StandardCharsets.UTF_8)) {
+      hash ^= b & 0xff;
+      hash *= FNV_PRIME;
+    }
+    return hash == 0 ? 1 : hash;
+  }
+}
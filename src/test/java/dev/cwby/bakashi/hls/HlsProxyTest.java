@@ -0,0 +1,199 @@
+package dev.cwby.bakashi.hls;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@link HlsProxy} in front of a local stand-in CDN serving a media playlist of {@value #SEGMENTS}
+ * segments, which records every request it gets. Segment {@value #GONE_SEGMENT} is listed but
+ * answered with a {@code 410}.
+ */
+class HlsProxyTest {
+
+  private static final String REFERER = "https://www.anroll.net";
+  private static final int SEGMENTS = 8;
+  private static final int PREFETCH = 2;
+  private static final int GONE_SEGMENT = 6;
+  private static final long AWAIT_MILLIS = 5000;
+
+  private final Map<String, AtomicInteger> upstreamRequests = new ConcurrentHashMap<>();
+  private final List<String> upstreamReferers = new CopyOnWriteArrayList<>();
+  private final HttpClient client = HttpClient.newHttpClient();
+  private ExecutorService upstreamExecutor;
+  private HttpServer upstream;
+  private HlsProxy proxy;
+
+  @BeforeEach
+  void startUpstream() throws IOException {
+    this.upstreamExecutor = Executors.newCachedThreadPool();
+    this.upstream =
+        HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    upstream.setExecutor(upstreamExecutor);
+    upstream.createContext("/", this::serveUpstream);
+    upstream.start();
+  }
+
+  @AfterEach
+  void stop() {
+    if (proxy != null) {
+      proxy.close();
+    }
+    upstream.stop(0);
+    upstreamExecutor.shutdownNow();
+  }
+
+  @Test
+  void rewritesTheSegmentsToTheProxy() throws Exception {
+    final String playlistUrl = startProxy();
+
+    final String playlist = new String(get(playlistUrl).body(), StandardCharsets.UTF_8);
+    final List<String> lines = playlist.lines().toList();
+    final List<String> segments = lines.stream().filter(line -> !line.startsWith("#")).toList();
+    assertEquals(SEGMENTS, segments.size());
+    for (int i = 0; i < SEGMENTS; i++) {
+      assertEquals("/segment/" + i + "/seg" + i + ".ts", segments.get(i));
+    }
+    assertEquals(SEGMENTS, lines.stream().filter(line -> line.startsWith("#EXTINF:")).count());
+    assertTrue(lines.contains("#EXT-X-ENDLIST"));
+    assertFalse(playlist.contains(String.valueOf(upstream.getAddress().getPort())));
+  }
+
+  @Test
+  void sendsTheRefererUpstream() throws Exception {
+    final String playlistUrl = startProxy();
+
+    assertArrayEquals(segment(0), get(proxy.baseUrl() + "/segment/0/seg0.ts").body());
+    awaitUpstreamRequests("/hls/seg2.ts", 1);
+    // the playlist, and every segment fetched or prefetched so far
+    assertTrue(upstreamReferers.size() >= 4);
+    for (final String referer : upstreamReferers) {
+      assertEquals(REFERER, referer);
+    }
+    assertEquals(1, upstreamRequests.get("/hls/media.m3u8").get());
+    get(playlistUrl);
+    assertEquals(1, upstreamRequests.get("/hls/media.m3u8").get());
+  }
+
+  @Test
+  void servesPrefetchedSegmentsFromTheBuffer() throws Exception {
+    startProxy();
+    // warmed on start, before the player asks for anything
+    awaitUpstreamRequests("/hls/seg0.ts", 1);
+    awaitUpstreamRequests("/hls/seg1.ts", 1);
+    assertNull(upstreamRequests.get("/hls/seg2.ts"));
+
+    assertArrayEquals(segment(0), get(proxy.baseUrl() + "/segment/0/seg0.ts").body());
+    awaitUpstreamRequests("/hls/seg2.ts", 1);
+    assertArrayEquals(segment(1), get(proxy.baseUrl() + "/segment/1/seg1.ts").body());
+    assertArrayEquals(segment(2), get(proxy.baseUrl() + "/segment/2/seg2.ts").body());
+    // seeking back is answered locally as well
+    assertArrayEquals(segment(0), get(proxy.baseUrl() + "/segment/0/seg0.ts").body());
+
+    for (int i = 0; i <= 2; i++) {
+      assertEquals(1, upstreamRequests.get("/hls/seg" + i + ".ts").get());
+    }
+    // never further ahead than PREFETCH segments from the last one requested
+    for (int i = 2 + PREFETCH + 1; i < SEGMENTS; i++) {
+      assertNull(upstreamRequests.get("/hls/seg" + i + ".ts"));
+    }
+  }
+
+  @Test
+  void forwardsTheStatusOfAFailedSegment() throws Exception {
+    startProxy();
+
+    final String gone = "/segment/" + GONE_SEGMENT + "/seg" + GONE_SEGMENT + ".ts";
+    assertEquals(410, get(proxy.baseUrl() + gone).statusCode());
+    assertEquals(404, get(proxy.baseUrl() + "/segment/" + SEGMENTS + "/seg.ts").statusCode());
+  }
+
+  private String startProxy() throws IOException {
+    this.proxy =
+        new HlsProxy(
+            "http://127.0.0.1:" + upstream.getAddress().getPort() + "/hls/media.m3u8",
+            REFERER,
+            PREFETCH,
+            HlsProxy.DEFAULT_BUFFER_BYTES);
+    return proxy.start();
+  }
+
+  private HttpResponse<byte[]> get(final String url) throws IOException, InterruptedException {
+    return client.send(
+        HttpRequest.newBuilder(URI.create(url)).build(), HttpResponse.BodyHandlers.ofByteArray());
+  }
+
+  private void awaitUpstreamRequests(final String path, final int count)
+      throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + AWAIT_MILLIS;
+    while (System.currentTimeMillis() < deadline) {
+      final AtomicInteger requests = upstreamRequests.get(path);
+      if (requests != null && requests.get() >= count) {
+        return;
+      }
+      Thread.sleep(10);
+    }
+    throw new AssertionError("Expected " + count + " upstream requests of " + path);
+  }
+
+  private void serveUpstream(final HttpExchange exchange) throws IOException {
+    try (exchange) {
+      final String path = exchange.getRequestURI().getPath();
+      upstreamRequests.computeIfAbsent(path, key -> new AtomicInteger()).incrementAndGet();
+      upstreamReferers.add(String.valueOf(exchange.getRequestHeaders().getFirst("Referer")));
+      final byte[] body;
+      if (path.equals("/hls/media.m3u8")) {
+        body = playlist().getBytes(StandardCharsets.UTF_8);
+      } else if (path.equals("/hls/seg" + GONE_SEGMENT + ".ts")) {
+        exchange.sendResponseHeaders(410, -1);
+        return;
+      } else if (path.matches("/hls/seg\\d+\\.ts")) {
+        body = segment(Integer.parseInt(path.replaceAll("\\D", "")));
+      } else {
+        exchange.sendResponseHeaders(404, -1);
+        return;
+      }
+      exchange.sendResponseHeaders(200, body.length);
+      try (final OutputStream output = exchange.getResponseBody()) {
+        output.write(body);
+      }
+    }
+  }
+
+  private static String playlist() {
+    final StringBuilder playlist =
+        new StringBuilder("#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-TARGETDURATION:4\n");
+    for (int i = 0; i < SEGMENTS; i++) {
+      playlist.append("#EXTINF:4.000,\nseg").append(i).append(".ts\n");
+    }
+    return playlist.append("#EXT-X-ENDLIST\n").toString();
+  }
+
+  private static byte[] segment(final int index) {
+    return ("segment " + index + "\n").repeat(1000).getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,62 @@
+package dev.cwby.bakashi.net;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+
+class HostStatsTest {
+
+  @Test
+  void givesNoPercentileBeforeTheMinimumOfSamples() {
+    final HostStats host = new HostStats(1);
+    for (int i = 1; i < HostStats.MIN_SAMPLES; i++) {
+      host.record(i);
+      assertEquals(-1, host.percentile(0.95));
+    }
+    host.record(HostStats.MIN_SAMPLES);
+    assertEquals(HostStats.MIN_SAMPLES, host.percentile(0.95));
+    assertEquals(1, host.percentile(0));
+  }
+
+  @Test
+  void computesPercentilesOverTheLastWindowOnly() {
+    final HostStats host = new HostStats(1);
+    for (int i = 0; i < HostStats.WINDOW; i++) {
+      host.record(1_000_000);
+    }
+    for (int i = 1; i <= 100; i++) {
+      host.record(i);
+    }
+    // 28 of the slow samples are left in the window, past the p95
+    assertEquals(1_000_000, host.percentile(0.95));
+    assertEquals(64, host.percentile(0.5));
+    for (int i = 101; i <= HostStats.WINDOW; i++) {
+      host.record(i);
+    }
+    assertEquals(122, host.percentile(0.95));
+  }
+
+  @Test
+  void queuesAcquiresPastTheLimitInOrder() {
+    final HostStats host = new HostStats(2);
+    assertTrue(host.acquire().isDone());
+    assertTrue(host.tryAcquire());
+    assertFalse(host.tryAcquire());
+    final CompletableFuture<Void> first = host.acquire();
+    final CompletableFuture<Void> second = host.acquire();
+    assertFalse(first.isDone());
+
+    host.release();
+    assertTrue(first.isDone());
+    assertFalse(second.isDone());
+    host.release();
+    assertTrue(second.isDone());
+    // both permits are held again, by the former waiters
+    assertFalse(host.tryAcquire());
+    host.release();
+    assertTrue(host.tryAcquire());
+  }
+}
@@ -0,0 +1,270 @@
+package dev.cwby.bakashi.net;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The per-host limit, hedging and retries of {@link HttpTransport}, against a local stand-in server
+ * whose handlers stall or fail chosen requests. Every test gets a transport of its own, so the
+ * latency of the host is only what the test recorded.
+ */
+class HttpTransportTest {
+
+  /** Far above the p95 of the stand-in server, far below the attempt timeout. */
+  private static final int STALL_MILLIS = 1500;
+
+  private ExecutorService serverExecutor;
+  private HttpServer server;
+  private HttpTransport transport;
+
+  @BeforeEach
+  void start() throws IOException {
+    this.serverExecutor = Executors.newCachedThreadPool();
+    this.server =
+        HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.setExecutor(serverExecutor);
+    server.createContext("/fast", exchange -> respond(exchange, 200, "fast"));
+    server.start();
+    this.transport =
+        new HttpTransport(
+            HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build(),
+            Files.createTempDirectory("bakashi-http-test"));
+  }
+
+  @AfterEach
+  void stop() {
+    server.stop(0);
+    serverExecutor.shutdownNow();
+  }
+
+  @Test
+  void doesNotHedgeBeforeTheHostHasEnoughSamples() throws IOException {
+    warmUp(HostStats.MIN_SAMPLES - 1);
+    final AtomicInteger requests = new AtomicInteger();
+    handle(
+        "/slow",
+        exchange -> {
+          requests.incrementAndGet();
+          sleep(300);
+          respond(exchange, 200, "slow");
+        });
+
+    // one sample short of a p95, the request waits for its only answer
+    assertEquals("slow", get("/slow"));
+    assertEquals(1, requests.get());
+  }
+
+  @Test
+  void hedgesARequestPastTheP95OfTheHost() throws IOException {
+    warmUp(HostStats.MIN_SAMPLES);
+    final AtomicInteger requests = new AtomicInteger();
+    handle(
+        "/stalling",
+        exchange -> {
+          if (requests.incrementAndGet() == 1) {
+            sleep(STALL_MILLIS);
+            respond(exchange, 200, "primary");
+          } else {
+            respond(exchange, 200, "hedge");
+          }
+        });
+
+    final long start = System.nanoTime();
+    assertEquals("hedge", get("/stalling"));
+    assertTrue(elapsedMillis(start) < STALL_MILLIS);
+    assertEquals(2, requests.get());
+  }
+
+  @Test
+  void keepsTheFirstResponseWhenTheHedgeIsSlower() throws IOException {
+    warmUp(HostStats.MIN_SAMPLES);
+    final AtomicInteger requests = new AtomicInteger();
+    handle(
+        "/racing",
+        exchange -> {
+          if (requests.incrementAndGet() == 1) {
+            // past the hedge delay, but before the hedge answers
+            sleep(300);
+            respond(exchange, 200, "primary");
+          } else {
+            sleep(STALL_MILLIS);
+            respond(exchange, 200, "hedge");
+          }
+        });
+
+    final long start = System.nanoTime();
+    assertEquals("primary", get("/racing"));
+    assertTrue(elapsedMillis(start) < STALL_MILLIS);
+    assertEquals(2, requests.get());
+  }
+
+  @Test
+  void retriesTransientStatuses() throws IOException {
+    final AtomicInteger requests = new AtomicInteger();
+    handle(
+        "/flaky",
+        exchange -> {
+          final int request = requests.incrementAndGet();
+          respond(exchange, request < HttpTransport.MAX_ATTEMPTS ? 503 : 200, "ok");
+        });
+
+    assertEquals("ok", get("/flaky"));
+    assertEquals(HttpTransport.MAX_ATTEMPTS, requests.get());
+  }
+
+  @Test
+  void givesUpAfterTheLastAttempt() {
+    final AtomicInteger requests = new AtomicInteger();
+    handle(
+        "/down",
+        exchange -> {
+          requests.incrementAndGet();
+          respond(exchange, 503, "down");
+        });
+
+    final HttpStatusException failure = assertThrows(HttpStatusException.class, () -> get("/down"));
+    assertEquals(503, failure.getStatusCode());
+    assertEquals(HttpTransport.MAX_ATTEMPTS, requests.get());
+  }
+
+  @Test
+  void doesNotRetryOtherStatuses() {
+    final AtomicInteger requests = new AtomicInteger();
+    handle(
+        "/missing",
+        exchange -> {
+          requests.incrementAndGet();
+          respond(exchange, 404, "missing");
+        });
+
+    assertThrows(HttpStatusException.class, () -> get("/missing"));
+    assertEquals(1, requests.get());
+  }
+
+  @Test
+  void backsOffExponentiallyWithJitter() {
+    for (int attempt = 1; attempt < HttpTransport.MAX_ATTEMPTS; attempt++) {
+      final long ceiling = 250L << (attempt - 1);
+      long longest = 0;
+      for (int i = 0; i < 1000; i++) {
+        final long backoff = HttpTransport.backoff(attempt);
+        assertTrue(backoff >= 0 && backoff <= ceiling, "backoff " + backoff + " of " + attempt);
+        longest = Math.max(longest, backoff);
+      }
+      // the ceiling doubles with every attempt
+      assertTrue(longest > ceiling / 2, "longest backoff " + longest + " of " + attempt);
+    }
+  }
+
+  @Test
+  void holdsTheLimitOfRequestsPerHost() throws Exception {
+    final int sent = 3 * HttpTransport.MAX_REQUESTS_PER_HOST;
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger mostInFlight = new AtomicInteger();
+    final AtomicInteger arrived = new AtomicInteger();
+    handle(
+        "/held",
+        exchange -> {
+          mostInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+          arrived.incrementAndGet();
+          try {
+            release.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          inFlight.decrementAndGet();
+          respond(exchange, 200, "held");
+        });
+
+    final List<CompletableFuture<String>> responses = new ArrayList<>();
+    for (int i = 0; i < sent; i++) {
+      responses.add(transport.getStringAsync(url("/held"), HttpTransport.API_TIMEOUT));
+    }
+    awaitCount(arrived, HttpTransport.MAX_REQUESTS_PER_HOST);
+    // the others wait for a permit, they do not show up later
+    Thread.sleep(200);
+    assertEquals(HttpTransport.MAX_REQUESTS_PER_HOST, arrived.get());
+
+    release.countDown();
+    for (final CompletableFuture<String> response : responses) {
+      assertEquals("held", response.get(10, TimeUnit.SECONDS));
+    }
+    // hedges only take free permits, so even with them the limit holds
+    assertTrue(arrived.get() >= sent);
+    assertEquals(HttpTransport.MAX_REQUESTS_PER_HOST, mostInFlight.get());
+  }
+
+  /** Records the latency of a number of fast responses, a few milliseconds each. */
+  private void warmUp(final int samples) throws IOException {
+    for (int i = 0; i < samples; i++) {
+      assertEquals("fast", get("/fast"));
+    }
+  }
+
+  private String get(final String path) throws IOException {
+    return transport.getString(url(path), HttpTransport.API_TIMEOUT);
+  }
+
+  private String url(final String path) {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+  }
+
+  private void handle(final String path, final HttpHandler handler) {
+    server.createContext(path, handler);
+  }
+
+  private static void respond(final HttpExchange exchange, final int status, final String body)
+      throws IOException {
+    final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (final OutputStream output = exchange.getResponseBody()) {
+      output.write(bytes);
+    }
+  }
+
+  private static void awaitCount(final AtomicInteger count, final int expected)
+      throws InterruptedException {
+    final long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+    while (count.get() < expected && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(expected, count.get());
+  }
+
+  private static long elapsedMillis(final long start) {
+    return Duration.ofNanos(System.nanoTime() - start).toMillis();
+  }
+
+  private static void sleep(final int millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}